@@ -8,4 +8,17 @@ import java.io.IOException;
  */
 
 public class ConnectFailedException extends IOException {
+    public ConnectFailedException() {
+    }
+
+    /**
+     * @param cause 连接时的原始异常
+     */
+    public ConnectFailedException(Throwable cause) {
+        super(cause);
+    }
+
+    public ConnectFailedException(String message, Throwable cause) {
+        super(message, cause);
+    }
 }
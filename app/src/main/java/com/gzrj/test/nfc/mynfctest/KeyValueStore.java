@@ -0,0 +1,394 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * 按key保存字符串的本地文件，{@link SystemInfoStore}、{@link WriteJournal}、{@link PendingWriteQueue}共用。
+ * <p>
+ * 每次修改只在文件末尾追加一行（“+key=value”或“-key”，前面是该行的CRC32），不重写整个文件；
+ * 追加的行数超过有效条目的两倍时整理一次，写入临时文件后替换。
+ * 加载时按顺序重放，校验失败的行（如写入时断电）跳过；旧版本用{@link Properties}保存的文件加载后转换。
+ * 设置了{@link #setWriteDelay(long)}时修改只保存在内存中，延迟后在后台线程中一次追加
+ * Created by RP_S on 2017/11/11.
+ */
+
+class KeyValueStore {
+    private static final Charset UTF_8 = Charset.forName(NfcVUtil.CHAR_SET);
+
+    /*
+     * 整理前至少追加的行数
+     */
+    private static final int MIN_COMPACT_LINES = 64;
+
+    private final File file;
+
+    private final int maxEntries;
+
+    private final LinkedHashMap<String, String> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /*
+     * 写文件时加锁，先于this加锁，保证按修改的顺序写入
+     */
+    private final Object io = new Object();
+
+    /*
+     * 文件中的行数，加io锁
+     */
+    private int lines;
+
+    /*
+     * 文件最后一行不完整，下次追加前先换行，加io锁
+     */
+    private boolean torn;
+
+    /*
+     * 还未写入文件的行
+     */
+    private final StringBuilder buffer = new StringBuilder();
+
+    private long writeDelay;
+
+    private boolean scheduled;
+
+    private ScheduledExecutorService writer;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param file       文件，不存在时在第一次修改时创建
+     * @param maxEntries 最多保存的条目数，超过时删除最久未使用的，小于1时不限制
+     */
+    KeyValueStore(File file, int maxEntries) {
+        this.file = file;
+        this.maxEntries = maxEntries;
+        load();
+    }
+
+    /**
+     * @param key key
+     * @return 没有时返回null
+     */
+    synchronized String get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * 所有条目，按最近使用的顺序，最久未使用的在前
+     *
+     * @return 副本
+     */
+    synchronized Map<String, String> getAll() {
+        return new LinkedHashMap<>(entries);
+    }
+
+    void put(String key, String value) {
+        synchronized (this) {
+            if (value.equals(entries.put(key, value))) {
+                return;
+            }
+            line(buffer, key, value);
+            Iterator<String> iterator = entries.keySet().iterator();
+            while (maxEntries > 0 && entries.size() > maxEntries && iterator.hasNext()) {
+                String eldest = iterator.next();
+                iterator.remove();
+                line(buffer, eldest, null);
+            }
+        }
+        written();
+    }
+
+    void remove(String key) {
+        synchronized (this) {
+            if (entries.remove(key) == null) {
+                return;
+            }
+            line(buffer, key, null);
+        }
+        written();
+    }
+
+    /**
+     * 修改后延迟写入，期间的所有修改合并为一次追加，在后台线程中写入。
+     * 进程结束时未写入的修改会丢失，只用于可以重新取得的内容
+     *
+     * @param writeDelay 毫秒，0时立即写入（默认）
+     */
+    synchronized void setWriteDelay(long writeDelay) {
+        this.writeDelay = writeDelay;
+        if (writeDelay > 0 && writer == null) {
+            writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "key-value-store");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * 立即写入还未写入的修改
+     */
+    void flush() {
+        synchronized (io) {
+            String text;
+            StringBuilder snapshot = null;
+            synchronized (this) {
+                scheduled = false;
+                if (buffer.length() == 0) {
+                    return;
+                }
+                text = buffer.toString();
+                buffer.setLength(0);
+                if (lines > MIN_COMPACT_LINES && lines > entries.size() * 2) {
+                    snapshot = snapshot();
+                }
+            }
+            if (snapshot == null || !compact(snapshot)) {
+                append(text);
+            }
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 十六进制字符串
+     *
+     * @param bytes 数据
+     * @return
+     */
+    static String printHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        NfcVUtil.printHex(bytes, 0, bytes.length, hex, 0);
+        return new String(hex);
+    }
+
+    /**
+     * 解析十六进制字符串
+     *
+     * @param hex 字符串
+     * @return 长度不是偶数或含有非十六进制字符时返回null
+     */
+    static byte[] parseHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    /**
+     * 一行：CRC32、空格、“+key=value”或“-key”
+     *
+     * @param value 为null时表示删除
+     */
+    private static void line(StringBuilder sb, String key, String value) {
+        String op = value == null ? "-" + key : "+" + key + "=" + value;
+        sb.append(crc(op)).append(' ').append(op).append('\n');
+    }
+
+    private static String crc(String op) {
+        CRC32 crc = new CRC32();
+        byte[] bytes = op.getBytes(UTF_8);
+        crc.update(bytes, 0, bytes.length);
+        String hex = Long.toHexString(crc.getValue());
+        return "00000000".substring(hex.length()) + hex;
+    }
+
+    /*
+     * 修改之后，没有延迟时立即写入，否则在第一次修改后安排写入
+     */
+    private void written() {
+        synchronized (this) {
+            if (writeDelay > 0) {
+                if (buffer.length() > 0 && !scheduled) {
+                    scheduled = true;
+                    writer.schedule(flushTask, writeDelay, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        flush();
+    }
+
+    private void append(String text) {
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file, true);
+            out.write(((torn ? "\n" : "") + text).getBytes(UTF_8));
+            torn = false;
+            lines += count(text);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /*
+     * 所有有效的条目，加this锁
+     */
+    private StringBuilder snapshot() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            line(sb, entry.getKey(), entry.getValue());
+        }
+        return sb;
+    }
+
+    /**
+     * 只写入有效的条目，写入临时文件后替换
+     *
+     * @return 失败时返回false，文件不变
+     */
+    private boolean compact(StringBuilder sb) {
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(sb.toString().getBytes(UTF_8));
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("cannot rename " + tmp);
+            }
+            lines = count(sb);
+            torn = false;
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static int count(CharSequence text) {
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            in.mark(1);
+            if (in.read() == '#') {
+                //旧版本的Properties文件，转换后重写
+                closeQuietly(in);
+                in = null;
+                loadProperties();
+                compact(snapshot());
+                return;
+            }
+            in.reset();
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines++;
+                replay(line);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(in);
+        }
+        torn = file.length() > 0 && !endsWithNewline();
+    }
+
+    private void replay(String line) {
+        int space = line.indexOf(' ');
+        if (space != 8 || !crc(line.substring(space + 1)).equals(line.substring(0, space))) {
+            return;
+        }
+        String op = line.substring(space + 1);
+        if (op.startsWith("-")) {
+            entries.remove(op.substring(1));
+            return;
+        }
+        int eq = op.indexOf('=');
+        if (op.startsWith("+") && eq > 1) {
+            entries.put(op.substring(1, eq), op.substring(eq + 1));
+        }
+    }
+
+    private void loadProperties() throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            closeQuietly(in);
+        }
+        for (String key : properties.stringPropertyNames()) {
+            entries.put(key, properties.getProperty(key));
+        }
+    }
+
+    private boolean endsWithNewline() {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            raf.seek(file.length() - 1);
+            return raf.read() == '\n';
+        } catch (IOException e) {
+            return false;
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -1,40 +1,84 @@
 package com.gzrj.test.nfc.mynfctest;
 
+import android.annotation.TargetApi;
 import android.app.PendingIntent;
 import android.content.Intent;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
 import android.nfc.tech.NfcV;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.View;
+import android.webkit.WebView;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Date;
+import java.util.concurrent.Callable;
 
 public class MainActivity extends AppCompatActivity {
 
     // 是否开启debug
     private static boolean isDebug = true;
 
+    // 是否用reader mode发现标签，否则用前台分发（默认）
+    private static boolean isReaderMode = false;
+
+    // 是否记录通信，每次接触卡片保存一个文件到files/traces，用benchmark模块的TraceReplay重放
+    private static boolean isTrace = false;
+
     // nfc适配器
     private NfcAdapter adapter;
 
     // pendingIntent
     private PendingIntent pendingIntent;
 
-    private NfcVUtil nfcVUtil;
+    // reader mode下在nfc服务的线程中读取
+    private volatile NfcVUtil nfcVUtil;
+
+    private NfcVReaderMode readerMode;
+
+    // 最近一张卡片的存储空间，没有卡片时准备写入的内容按它检查长度
+    private volatile int lastBlockSpace;
+
+    // 批量写入模式，为null时不写入
+    private volatile Provisioner provisioner;
+
+    // 页面中的js通过它读写当前卡片
+    private TP tp;
+
+    private final Handler handler = new Handler();
+
+    /*
+     * 统计面板显示时每秒刷新
+     */
+    private final Runnable refreshMetrics = new Runnable() {
+        @Override
+        public void run() {
+            TextView metrics = getView(R.id.metrics_value, TextView.class);
+            if (metrics.getVisibility() != View.VISIBLE) {
+                return;
+            }
+            metrics.setText(NfcMetrics.getInstance().snapshot().toString());
+            handler.postDelayed(this, 1000);
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        SystemInfoStore.init(getFilesDir());
+        WriteJournal.init(getFilesDir());
+        PendingWriteQueue.init(getFilesDir());
+        ScanLog.init(getFilesDir());
         initComponents();
     }
 
@@ -101,8 +145,33 @@ public class MainActivity extends AppCompatActivity {
      */
     private void stopForeGroundDispatch() {
         if (adapter != null && adapter.isEnabled()) {
-            adapter.disableForegroundDispatch(this);
+            if (readerMode != null) {
+                readerMode.disable(adapter, this);
+            } else {
+                adapter.disableForegroundDispatch(this);
+            }
+        }
+    }
+
+    /**
+     * reader mode发现的标签直接在nfc线程中读取
+     *
+     * @return
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private NfcVReaderMode getReaderMode() {
+        if (readerMode == null) {
+            readerMode = new NfcVReaderMode(new NfcVReaderMode.Listener() {
+                @Override
+                public void onTagDiscovered(Tag tag, long discoveredNanos) {
+                    NfcV nfcV = NfcV.get(tag);
+                    if (nfcV != null) {
+                        readNfcV(nfcV, true, discoveredNanos);
+                    }
+                }
+            });
         }
+        return readerMode;
     }
 
     /**
@@ -110,25 +179,100 @@ public class MainActivity extends AppCompatActivity {
      */
     private void initComponents() {
 
+        //页面用TP.execute批量读写当前卡片
+        WebView webView = getView(R.id.web_view, WebView.class);
+        webView.getSettings().setJavaScriptEnabled(true);
+        tp = new TP(webView);
+        webView.addJavascriptInterface(tp, "TP");
+        webView.loadUrl("file:///android_asset/index.html");
+
+        //长按UID显示或隐藏通信统计
+        getView(R.id.uid_label, TextView.class).setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                TextView metrics = getView(R.id.metrics_value, TextView.class);
+                handler.removeCallbacks(refreshMetrics);
+                if (metrics.getVisibility() == View.VISIBLE) {
+                    metrics.setVisibility(View.GONE);
+                    debug("统计：" + NfcMetrics.getInstance().snapshot());
+                } else {
+                    metrics.setVisibility(View.VISIBLE);
+                    refreshMetrics.run();
+                }
+                return true;
+            }
+        });
+
         getView(R.id.write_to_block_btn, Button.class).setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
+                final String text = String.valueOf(getView(R.id.write_to_block_value, EditText.class).getText());
                 if (nfcVUtil == null) {
-                    tip("请先接触NFC卡片，且不要移动");
+                    //没有卡片时保存，接触卡片时写入
+                    try {
+                        if (lastBlockSpace > 0) {
+                            PendingWriteQueue.getInstance().putString(null, text, lastBlockSpace);
+                        } else {
+                            PendingWriteQueue.getInstance().putString(null, text);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        tip("内容过长，不能写入");
+                        return;
+                    }
+                    tip("已保存，接触卡片时写入");
                     return;
                 }
-                CharSequence text = getView(R.id.write_to_block_value, EditText.class).getText();
-                try {
-                    nfcVUtil.writeString(String.valueOf(text));
-                    tip("写入成功");
-                } catch (IOException e) {
-                    if (e instanceof ConnectFailedException) {
-                        tip("请先接触NFC卡片，且不要移动");
-                    } else {
-                        e.printStackTrace();
-                        tip("写入失败");
+                final NfcVUtil util = nfcVUtil;
+                //这张卡片的存储空间，之后接触其他卡片时会改变
+                final int space = lastBlockSpace;
+                util.writeStringResumableAsync(text, new NfcExecutor.Callback<WriteReport>() {
+                    @Override
+                    public void onSuccess(WriteReport report) {
+                        debug("写入结果：" + report);
+                        tip(report.isSuccess() ? "写入成功" : "写入失败");
                     }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        if (util.hasPendingWrite()) {
+                            tip("卡片已离开，请再次接触同一张卡片继续写入");
+                        } else if (e instanceof NoResponseException) {
+                            //还没有开始写入卡片已离开
+                            try {
+                                if (space > 0) {
+                                    PendingWriteQueue.getInstance().putString(util.getUID(), text, space);
+                                } else {
+                                    PendingWriteQueue.getInstance().putString(util.getUID(), text);
+                                }
+                            } catch (IllegalArgumentException tooLarge) {
+                                tip("内容过长，不能写入");
+                                return;
+                            }
+                            tip("卡片已离开，再次接触同一张卡片时写入");
+                        } else if (e instanceof ConnectFailedException) {
+                            tip("请先接触NFC卡片，且不要移动");
+                        } else {
+                            e.printStackTrace();
+                            tip("写入失败");
+                        }
+                    }
+                });
+            }
+        });
+
+        //长按写入按钮开始或结束批量写入
+        getView(R.id.write_to_block_btn, Button.class).setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                if (provisioner != null) {
+                    debug("结束批量写入：" + provisioner);
+                    provisioner = null;
+                    getView(R.id.provision_value, TextView.class).setVisibility(View.GONE);
+                    tip("已结束批量写入");
+                } else {
+                    startProvisioning();
                 }
+                return true;
             }
         });
 
@@ -139,15 +283,21 @@ public class MainActivity extends AppCompatActivity {
                     tip("没有读取到卡片信息");
                     return;
                 }
-                TextView textView = getView(R.id.read_block_value, TextView.class);
+                final TextView textView = getView(R.id.read_block_value, TextView.class);
                 textView.setText("");
-                try {
-                    textView.setText(nfcVUtil.readAll());
-                    tip("读取成功");
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    tip("读取失败");
-                }
+                nfcVUtil.readAllAsync(new NfcExecutor.Callback<String>() {
+                    @Override
+                    public void onSuccess(String result) {
+                        textView.setText(result);
+                        tip("读取成功");
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        e.printStackTrace();
+                        tip("读取失败");
+                    }
+                });
             }
         });
     }
@@ -161,6 +311,7 @@ public class MainActivity extends AppCompatActivity {
      */
     @Override
     protected void onResume() {
+        long discoveredNanos = System.nanoTime();
         super.onResume();
         debug("on resume...");
         debug("intent is" + this.getIntent().getAction());
@@ -168,12 +319,17 @@ public class MainActivity extends AppCompatActivity {
         Intent intent = this.getIntent();
 
         if (intent != null && NfcAdapter.ACTION_TECH_DISCOVERED.equals(intent.getAction())) {
-            this.readNfcInfo(intent);
+            this.readNfcInfo(intent, discoveredNanos);
         }
 
         if (this.checkNfC()) {
-            adapter.enableForegroundDispatch(this, pendingIntent, null, null);
+            if (isReaderMode && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                getReaderMode().enable(adapter, this);
+            } else {
+                adapter.enableForegroundDispatch(this, pendingIntent, null, null);
+            }
         }
+        refreshMetrics.run();
     }
 
     /**
@@ -183,6 +339,12 @@ public class MainActivity extends AppCompatActivity {
     protected void onPause() {
         super.onPause();
         this.stopForeGroundDispatch();
+        NfcExecutor.getInstance().cancelPending();
+        handler.removeCallbacks(refreshMetrics);
+        SystemInfoStore infoStore = SystemInfoStore.getInstance();
+        if (infoStore != null) {
+            infoStore.flush();
+        }
     }
 
     /**
@@ -192,27 +354,30 @@ public class MainActivity extends AppCompatActivity {
      */
     @Override
     protected void onNewIntent(Intent intent) {
+        //应用能取得的最早时间，见readNfcV
+        long discoveredNanos = System.nanoTime();
         super.onNewIntent(intent);
         String actioName = intent.getAction();
         debug("on new intent..." + actioName);
         if (NfcAdapter.ACTION_TECH_DISCOVERED.equals(actioName) || NfcAdapter.ACTION_TAG_DISCOVERED.equals(actioName)) {
-            readNfcInfo(intent);
+            readNfcInfo(intent, discoveredNanos);
         }
     }
 
     /**
-     * 读取nfc tag中的信息
+     * 读取nfc tag中的信息，在nfc线程中执行，完成后显示
      *
      * @param intent
+     * @param discoveredNanos 收到Intent时的{@link System#nanoTime()}
      */
-    private NfcVUtil readNfcInfo(Intent intent) {
+    private void readNfcInfo(Intent intent, long discoveredNanos) {
         debug("开始读取tag信息，来自intent：" + intent.getAction());
 
         Tag tag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
 
         if (tag == null) {
             debug("tag is null...");
-            return null;
+            return;
         }
 
         boolean support = false;
@@ -227,38 +392,194 @@ public class MainActivity extends AppCompatActivity {
         }
         if (!support) {
             this.tip("不是NfcV类型的Tag，不支持...");
-            return null;
+            return;
         }
 
-        NfcV nfcV = NfcV.get(tag);
+        final NfcV nfcV = NfcV.get(tag);
 
         if (nfcV == null) {
             debug("nfcV is null...");
-            return null;
+            return;
         }
+        readNfcV(nfcV, false, discoveredNanos);
+    }
 
-        try {
-            nfcV.connect();
+    /**
+     * 在nfc线程中读取标签，可以在任意线程调用。
+     * reader mode从nfc服务回调{@link NfcVReaderMode}时开始计时，前台分发从onNewIntent（或onResume）的第一行开始计时。
+     * 两种方式都不包括系统轮询和激活标签的时间；前台分发还少算了系统把Intent交给主线程之前的耗时
+     * （NDEF检查、Intent分发、主线程消息排队），这部分在应用中取不到，所以tap_intent比实际偏小，两者的差是reader mode节省的下限
+     *
+     * @param nfcV
+     * @param readerMode      是否通过reader mode发现
+     * @param discoveredNanos 发现时的{@link System#nanoTime()}
+     */
+    private void readNfcV(final NfcV nfcV, boolean readerMode, long discoveredNanos) {
+        NfcMetrics.getInstance().discovered(readerMode, discoveredNanos);
+        //换了一张卡片，之前排队的操作不再执行
+        NfcExecutor.getInstance().cancelPending();
+        final NfcVUtil previous = nfcVUtil;
+        final File traceFile = isTrace ? traceFile() : null;
+        NfcExecutor.getInstance().submit(NfcExecutor.Priority.USER, new Callable<NfcVUtil>() {
+            @Override
+            public NfcVUtil call() throws Exception {
+                if (previous != null) {
+                    previous.close();
+                }
+                try {
+                    //连接保持打开，空闲超时后自动关闭
+                    NfcVSession session = new NfcVSession(nfcV);
+                    NfcVUtil util = new NfcVUtil(traceFile == null ? session : new NfcVTraceRecorder(session, traceFile));
+                    util.assertConnected();
+                    //卡片离开期间可能被其他读写器修改，不使用上次接触时缓存的block内容；锁定状态和系统信息不变，保留
+                    if (util.getCache() != null) {
+                        util.getCache().invalidateBlocks(util.getUID());
+                    }
+                    //上次写入时卡片离开，继续写入
+                    if (util.hasPendingWrite()) {
+                        debug("继续写入：" + util.resumeWrite());
+                    }
+                    Provisioner current = provisioner;
+                    if (current != null) {
+                        //批量写入时每张新卡片写入下一个任务
+                        Provisioner.Result result = current.provision(util);
+                        debug("批量写入：" + result);
+                        showProvision(result);
+                    } else {
+                        //卡片不在时准备的写入
+                        WriteReport flushed = PendingWriteQueue.getInstance().flush(util);
+                        if (flushed != null) {
+                            debug("写入保存的内容：" + flushed);
+                        }
+                    }
+                    //预先读取，显示时从缓存取
+                    SystemInfo info = util.getSystemInfo();
+                    lastBlockSpace = util.getBlockSpace();
+                    byte[] image = util.readAllBlocks();
+                    ScanLog scanLog = ScanLog.getInstance();
+                    if (scanLog != null) {
+                        ScanLog.Entry last = scanLog.get(util.getUID());
+                        if (last != null) {
+                            debug("上次扫描：" + new Date(last.getTime()));
+                        }
+                        if (image != null) {
+                            //后台批量写入，不等待
+                            scanLog.append(util.getUID(), System.currentTimeMillis(), info.getRaw(), image);
+                        } else {
+                            //读取不完整的内容不记录，不影响本次显示
+                            debug("读取失败，不记录扫描");
+                        }
+                    }
+                    debug("会话：" + session);
+                    return util;
+                } finally {
+                    //全部从缓存取得时不记录发现耗时
+                    NfcMetrics.getInstance().cancelDiscovered();
+                }
+            }
+        }, new NfcExecutor.Callback<NfcVUtil>() {
+            @Override
+            public void onSuccess(NfcVUtil result) {
+                nfcVUtil = result;
+                tp.setNfcVUtil(result);
+                showNfcInfo(result);
+            }
 
-            nfcVUtil = new NfcVUtil(nfcV);
+            @Override
+            public void onFailure(Exception e) {
+                e.printStackTrace();
+                debug("读取失败：" + e.getMessage());
+                if (provisioner != null) {
+                    showProvision(null);
+                }
+            }
+        });
+    }
 
-            this.showNfcInfo(nfcVUtil);
+    /**
+     * 从应用的外部文件目录（没有时为内部文件目录）加载jobs.json或jobs.csv，开始批量写入
+     */
+    private void startProvisioning() {
+        File dir = getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getFilesDir();
+        }
+        File json = new File(dir, "jobs.json");
+        final File file = json.isFile() ? json : new File(dir, "jobs.csv");
+        if (!file.isFile()) {
+            tip("没有找到任务文件：" + file);
+            return;
+        }
+        //编码所有内容，不在主线程
+        NfcExecutor.getInstance().submit(NfcExecutor.Priority.BACKGROUND, new Callable<Provisioner>() {
+            @Override
+            public Provisioner call() throws Exception {
+                return Provisioner.load(file, null);
+            }
+        }, new NfcExecutor.Callback<Provisioner>() {
+            @Override
+            public void onSuccess(Provisioner result) {
+                provisioner = result;
+                debug("开始批量写入：" + result);
+                getView(R.id.provision_value, TextView.class).setVisibility(View.VISIBLE);
+                showProvision(null);
+                tip("批量写入：剩余" + result.getRemaining() + "个任务");
+            }
 
-            return nfcVUtil;
+            @Override
+            public void onFailure(Exception e) {
+                e.printStackTrace();
+                tip("任务文件错误：" + e.getMessage());
+            }
+        });
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-            debug("读取失败：" + e.getMessage());
-        } finally {
-            if (nfcV != null) {
-                try {
-                    nfcV.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+    /**
+     * 显示批量写入的进度和每分钟卡片数，可以在任意线程调用
+     *
+     * @param result 最近一张卡片的结果，为null时只显示进度
+     */
+    private void showProvision(final Provisioner.Result result) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Provisioner current = provisioner;
+                if (current == null) {
+                    return;
+                }
+                getView(R.id.provision_value, TextView.class).setText(current.toString());
+                if (result == null) {
+                    return;
+                }
+                switch (result.getOutcome()) {
+                    case REQUEUED:
+                    case FAILED:
+                        tip("写入失败，请换一张卡片");
+                        break;
+                    case ALREADY_WRITTEN:
+                        tip("这张卡片已写入");
+                        break;
+                    case NO_JOB:
+                        tip("任务已全部完成");
+                        break;
+                    default:
+                        break;
                 }
             }
+        });
+    }
+
+    /**
+     * 新的通信记录文件
+     *
+     * @return
+     */
+    private File traceFile() {
+        File dir = new File(getFilesDir(), "traces");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            debug("创建目录失败：" + dir);
         }
-        return null;
+        return new File(dir, "trace_" + System.currentTimeMillis() + ".nfct");
     }
 
     /**
@@ -266,20 +587,33 @@ public class MainActivity extends AppCompatActivity {
      *
      * @param nfcVUtil
      */
-    private void showNfcInfo(NfcVUtil nfcVUtil) {
-        Map<String, Object> data = new HashMap<>();
+    private void showNfcInfo(final NfcVUtil nfcVUtil) {
         try {
+            //系统信息已在nfc线程中取得，这里不会再通信
             getView(R.id.uid_value, TextView.class).setText(nfcVUtil.getUID());
             getView(R.id.afi_value, TextView.class).setText(nfcVUtil.getAFI());
             getView(R.id.dsfid_value, TextView.class).setText(nfcVUtil.getDSFID());
             getView(R.id.block_num_value, TextView.class).setText(String.valueOf(nfcVUtil.getBlockNumber()));
             getView(R.id.block_size_value, TextView.class).setText(String.valueOf(nfcVUtil.getOneBlockSize()));
             getView(R.id.uid_value, TextView.class).setText(nfcVUtil.getUID());
-            getView(R.id.read_block_value, TextView.class).setText(nfcVUtil.readAll());
-            tip("读取数据成功");
-        } catch (Exception e) {
+        } catch (IOException e) {
             e.printStackTrace();
             tip("读取失败");
+            return;
         }
+        nfcVUtil.readAllAsync(new NfcExecutor.Callback<String>() {
+            @Override
+            public void onSuccess(String result) {
+                getView(R.id.read_block_value, TextView.class).setText(result);
+                debug("缓存：" + nfcVUtil.getCache());
+                tip("读取数据成功");
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                e.printStackTrace();
+                tip("读取失败");
+            }
+        });
     }
 }
@@ -0,0 +1,206 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单线程执行所有nfc指令，避免transceive阻塞主线程。
+ * 任务按优先级排队，同优先级按提交顺序执行；结果通过Future或回调返回，回调默认在主线程执行。
+ * 卡片离开时可以取消所有排队中的任务，任务因标签无响应失败时也会自动取消
+ * Created by RP_S on 2017/10/25.
+ */
+
+public class NfcExecutor {
+
+    /**
+     * 任务优先级
+     */
+    public enum Priority {
+        /**
+         * 用户操作触发的读写
+         */
+        USER,
+
+        /**
+         * 后台任务
+         */
+        BACKGROUND
+    }
+
+    /**
+     * 任务结果回调
+     *
+     * @param <T> 结果类型
+     */
+    public interface Callback<T> {
+        void onSuccess(T result);
+
+        /**
+         * 任务抛出异常或被取消（{@link CancellationException}）时调用
+         *
+         * @param e
+         */
+        void onFailure(Exception e);
+    }
+
+    private static NfcExecutor instance;
+
+    private final ThreadPoolExecutor executor;
+
+    private final Executor callbackExecutor;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param callbackExecutor 执行回调的线程
+     */
+    public NfcExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "nfc-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 进程共享的执行器，回调在主线程执行
+     *
+     * @return
+     */
+    public static synchronized NfcExecutor getInstance() {
+        if (instance == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            instance = new NfcExecutor(new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * 提交任务
+     *
+     * @param priority 优先级
+     * @param callable 任务
+     * @param callback 回调，可以为null
+     * @param <T>      结果类型
+     * @return
+     */
+    public <T> Future<T> submit(Priority priority, Callable<T> callable, Callback<T> callback) {
+        Task<T> task = new Task<>(callable, priority, sequence.getAndIncrement(), callback);
+        executor.execute(task);
+        return task;
+    }
+
+    public <T> Future<T> submit(Priority priority, Callable<T> callable) {
+        return submit(priority, callable, null);
+    }
+
+    /**
+     * 取消所有排队中的任务，正在执行的任务不受影响。卡片离开或换了一张卡片时调用
+     *
+     * @return 取消的任务数
+     */
+    public int cancelPending() {
+        List<Runnable> pending = new ArrayList<>();
+        executor.getQueue().drainTo(pending);
+        for (Runnable runnable : pending) {
+            ((Task<?>) runnable).cancel(false);
+        }
+        return pending.size();
+    }
+
+    /**
+     * 排队中的任务数
+     *
+     * @return
+     */
+    public int getPendingCount() {
+        return executor.getQueue().size();
+    }
+
+    public void shutdown() {
+        cancelPending();
+        executor.shutdown();
+    }
+
+    private class Task<T> extends FutureTask<T> implements Comparable<Task<?>> {
+        private final Priority priority;
+
+        private final long sequence;
+
+        private final Callback<T> callback;
+
+        Task(Callable<T> callable, Priority priority, long sequence, Callback<T> callback) {
+            super(callable);
+            this.priority = priority;
+            this.sequence = sequence;
+            this.callback = callback;
+        }
+
+        @Override
+        public int compareTo(Task<?> another) {
+            int c = priority.compareTo(another.priority);
+            if (c != 0) {
+                return c;
+            }
+            return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+        }
+
+        @Override
+        protected void done() {
+            Exception failure = null;
+            T result = null;
+            try {
+                result = get();
+            } catch (CancellationException e) {
+                failure = e;
+            } catch (ExecutionException e) {
+                failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            } catch (InterruptedException e) {
+                failure = e;
+            }
+            //卡片已离开，后面的任务都会失败
+            if (failure instanceof NoResponseException) {
+                cancelPending();
+            }
+            if (callback == null) {
+                return;
+            }
+            final Exception f = failure;
+            final T r = result;
+            callbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (f == null) {
+                        callback.onSuccess(r);
+                    } else {
+                        callback.onFailure(f);
+                    }
+                }
+            });
+        }
+    }
+}
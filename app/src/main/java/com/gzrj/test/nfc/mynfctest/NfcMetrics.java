@@ -0,0 +1,485 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * nfc通信统计：每种指令的耗时直方图、收发字节数、错误响应和异常次数，以及连接、关闭、重试、重新连接次数。
+ * 计数都是无锁的原子变量，记录时不分配内存；{@link #snapshot()}取得某一时刻的副本用于显示或上报，
+ * 便于比较不同手机型号和不同批次的标签
+ * Created by RP_S on 2017/11/03.
+ */
+
+public class NfcMetrics {
+    /**
+     * 耗时直方图的桶数，第i个桶为[2^(i-1), 2^i)微秒，最后一个桶包含更长的耗时
+     */
+    public static final int BUCKETS = 24;
+
+    /*
+     * 每种指令的计数在数组中的位置
+     */
+    private static final int COUNT = 0;
+    private static final int NANOS = 1;
+    private static final int SENT = 2;
+    private static final int RECEIVED = 3;
+    private static final int ERRORS = 4;
+    private static final int FAILURES = 5;
+    private static final int HISTOGRAM = 6;
+    private static final int STRIDE = HISTOGRAM + BUCKETS;
+
+    /*
+     * 统计项：各指令，之后是其他指令、连接、关闭，以及两种发现方式下从发现标签到第一条指令完成的耗时
+     */
+    private static final String[] NAMES;
+    private static final int OTHER;
+    private static final int CONNECT;
+    private static final int CLOSE;
+    private static final int TAP_INTENT;
+    private static final int TAP_READER;
+
+    /*
+     * 指令代码到统计项的映射
+     */
+    private static final int[] SLOTS = new int[256];
+
+    static {
+        List<String> names = new ArrayList<>();
+        for (NfcVUtil.Commands command : NfcVUtil.Commands.values()) {
+            if (command == NfcVUtil.Commands.default_flag) {
+                continue;
+            }
+            names.add(command.name());
+        }
+        OTHER = names.size();
+        CONNECT = OTHER + 1;
+        CLOSE = OTHER + 2;
+        TAP_INTENT = OTHER + 3;
+        TAP_READER = OTHER + 4;
+        names.add("other");
+        names.add("connect");
+        names.add("close");
+        names.add("tap_intent");
+        names.add("tap_reader");
+        NAMES = names.toArray(new String[names.size()]);
+        for (int i = 0; i < SLOTS.length; i++) {
+            SLOTS[i] = OTHER;
+        }
+        int slot = 0;
+        for (NfcVUtil.Commands command : NfcVUtil.Commands.values()) {
+            if (command != NfcVUtil.Commands.default_flag) {
+                SLOTS[command.getCode()] = slot++;
+            }
+        }
+    }
+
+    private static NfcMetrics instance;
+
+    private final AtomicLongArray counters = new AtomicLongArray(NAMES.length * STRIDE);
+
+    /*
+     * 各错误码的次数
+     */
+    private final AtomicLongArray errorCodes = new AtomicLongArray(256);
+
+    private final AtomicLong retries = new AtomicLong();
+
+    private final AtomicLong reconnects = new AtomicLong();
+
+    private final AtomicLong noResponses = new AtomicLong();
+
+    /*
+     * 最近一次发现标签的时间和统计项，第一条指令完成时记录并清零
+     */
+    private final AtomicLong discovered = new AtomicLong();
+
+    private volatile int discoveredSlot;
+
+    private volatile long since = System.currentTimeMillis();
+
+    /**
+     * 进程共享的统计
+     *
+     * @return
+     */
+    public static synchronized NfcMetrics getInstance() {
+        if (instance == null) {
+            instance = new NfcMetrics();
+        }
+        return instance;
+    }
+
+    /**
+     * 发送指令并记录耗时、字节数和结果
+     *
+     * @param session 连接
+     * @param cmd     指令帧
+     * @return 响应
+     * @throws IOException
+     */
+    public byte[] transceive(NfcVTransceiver session, byte[] cmd) throws IOException {
+        int base = SLOTS[cmd[1] & 0xFF] * STRIDE;
+        long start = System.nanoTime();
+        byte[] res;
+        try {
+            res = session.transceive(cmd);
+        } catch (IOException e) {
+            counters.incrementAndGet(base + FAILURES);
+            if (e instanceof NoResponseException) {
+                noResponses.incrementAndGet();
+            }
+            record(base, System.nanoTime() - start);
+            counters.addAndGet(base + SENT, cmd.length);
+            throw e;
+        }
+        long end = System.nanoTime();
+        record(base, end - start);
+        counters.addAndGet(base + SENT, cmd.length);
+        if (discovered.get() != 0) {
+            long time = discovered.getAndSet(0);
+            if (time != 0) {
+                record(discoveredSlot * STRIDE, end - time);
+            }
+        }
+        if (res != null) {
+            counters.addAndGet(base + RECEIVED, res.length);
+            if (res.length > 1 && (res[0] & 0x01) != 0) {
+                counters.incrementAndGet(base + ERRORS);
+                errorCodes.incrementAndGet(res[1] & 0xFF);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * 连接并记录耗时
+     *
+     * @param session 连接
+     * @throws ConnectFailedException
+     */
+    public void connect(NfcVTransceiver session) throws ConnectFailedException {
+        int base = CONNECT * STRIDE;
+        long start = System.nanoTime();
+        try {
+            session.connect();
+        } catch (ConnectFailedException e) {
+            counters.incrementAndGet(base + FAILURES);
+            throw e;
+        } finally {
+            record(base, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 关闭后重新连接，记为一次重新连接和一次连接
+     *
+     * @param session 连接
+     * @throws IOException
+     */
+    public void reconnect(NfcVTransceiver session) throws IOException {
+        reconnects.incrementAndGet();
+        int base = CONNECT * STRIDE;
+        long start = System.nanoTime();
+        try {
+            session.reconnect();
+        } catch (IOException e) {
+            counters.incrementAndGet(base + FAILURES);
+            throw e;
+        } finally {
+            record(base, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 关闭连接并记录耗时
+     *
+     * @param session 连接
+     */
+    public void close(NfcVTransceiver session) {
+        long start = System.nanoTime();
+        session.close();
+        record(CLOSE * STRIDE, System.nanoTime() - start);
+    }
+
+    /**
+     * 发现了标签，之后第一条成功的指令完成时记录从发现到此的耗时，统计项为tap_reader或tap_intent
+     *
+     * @param readerMode      是否通过reader mode发现，否则为前台分发的Intent
+     * @param discoveredNanos 发现时的{@link System#nanoTime()}
+     */
+    public void discovered(boolean readerMode, long discoveredNanos) {
+        discoveredSlot = readerMode ? TAP_READER : TAP_INTENT;
+        discovered.set(discoveredNanos);
+    }
+
+    /**
+     * 不再记录最近一次发现标签的耗时，如该次接触没有发送指令
+     */
+    public void cancelDiscovered() {
+        discovered.set(0);
+    }
+
+    /**
+     * 记录一次重试，如批量读写失败后减小分段或改为逐block读写
+     */
+    public void retry() {
+        retries.incrementAndGet();
+    }
+
+    private void record(int base, long nanos) {
+        counters.incrementAndGet(base + COUNT);
+        counters.addAndGet(base + NANOS, nanos);
+        long micros = nanos / 1000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counters.incrementAndGet(base + HISTOGRAM + bucket);
+    }
+
+    /**
+     * 清零
+     */
+    public void reset() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        for (int i = 0; i < errorCodes.length(); i++) {
+            errorCodes.set(i, 0);
+        }
+        retries.set(0);
+        reconnects.set(0);
+        noResponses.set(0);
+        since = System.currentTimeMillis();
+    }
+
+    /**
+     * 当前统计的副本。各计数分别读取，与并发的记录之间不保证一致
+     *
+     * @return
+     */
+    public Snapshot snapshot() {
+        List<Stats> stats = new ArrayList<>(NAMES.length);
+        for (int slot = 0; slot < NAMES.length; slot++) {
+            int base = slot * STRIDE;
+            long[] histogram = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram[i] = counters.get(base + HISTOGRAM + i);
+            }
+            stats.add(new Stats(NAMES[slot], counters.get(base + COUNT), counters.get(base + NANOS),
+                    counters.get(base + SENT), counters.get(base + RECEIVED), counters.get(base + ERRORS),
+                    counters.get(base + FAILURES), histogram));
+        }
+        long[] codes = new long[errorCodes.length()];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = errorCodes.get(i);
+        }
+        return new Snapshot(since, System.currentTimeMillis(), stats, codes, retries.get(), reconnects.get(), noResponses.get());
+    }
+
+    /**
+     * 一种指令（或连接、关闭）的统计
+     */
+    public static class Stats {
+        private final String name;
+        private final long count;
+        private final long nanos;
+        private final long bytesSent;
+        private final long bytesReceived;
+        private final long errors;
+        private final long failures;
+        private final long[] histogram;
+
+        Stats(String name, long count, long nanos, long bytesSent, long bytesReceived, long errors, long failures, long[] histogram) {
+            this.name = name;
+            this.count = count;
+            this.nanos = nanos;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+            this.errors = errors;
+            this.failures = failures;
+            this.histogram = histogram;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * 总耗时，纳秒
+         *
+         * @return
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        /**
+         * 标签返回错误码的次数
+         *
+         * @return
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * 抛出异常（超时、无响应、连接失败）的次数
+         *
+         * @return
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        public long[] getHistogram() {
+            return histogram.clone();
+        }
+
+        public long getMeanMicros() {
+            return count == 0 ? 0 : nanos / count / 1000;
+        }
+
+        /**
+         * 耗时百分位数的估计值，为所在桶的上限
+         *
+         * @param percentile 0-100
+         * @return 微秒
+         */
+        public long getPercentileMicros(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= Math.max(1, target)) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (histogram.length - 1);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-15s n=%d mean=%dus p50<%dus p95<%dus p99<%dus tx=%d rx=%d err=%d fail=%d",
+                    name, count, getMeanMicros(), getPercentileMicros(50), getPercentileMicros(95),
+                    getPercentileMicros(99), bytesSent, bytesReceived, errors, failures);
+        }
+    }
+
+    /**
+     * 某一时刻的统计副本
+     */
+    public static class Snapshot {
+        private final long since;
+        private final long time;
+        private final List<Stats> stats;
+        private final long[] errorCodes;
+        private final long retries;
+        private final long reconnects;
+        private final long noResponses;
+
+        Snapshot(long since, long time, List<Stats> stats, long[] errorCodes, long retries, long reconnects, long noResponses) {
+            this.since = since;
+            this.time = time;
+            this.stats = Collections.unmodifiableList(stats);
+            this.errorCodes = errorCodes;
+            this.retries = retries;
+            this.reconnects = reconnects;
+            this.noResponses = noResponses;
+        }
+
+        /**
+         * 统计开始时间
+         *
+         * @return
+         */
+        public long getSince() {
+            return since;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public List<Stats> getStats() {
+            return stats;
+        }
+
+        /**
+         * 按名称取统计，名称为{@link NfcVUtil.Commands}的名称、other、connect、close、tap_intent或tap_reader
+         *
+         * @param name
+         * @return 没有时返回null
+         */
+        public Stats get(String name) {
+            for (Stats s : stats) {
+                if (s.getName().equals(name)) {
+                    return s;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 错误码出现的次数
+         *
+         * @param code 错误码
+         * @return
+         */
+        public long getErrorCount(int code) {
+            return errorCodes[code & 0xFF];
+        }
+
+        public long getRetries() {
+            return retries;
+        }
+
+        public long getReconnects() {
+            return reconnects;
+        }
+
+        public long getNoResponses() {
+            return noResponses;
+        }
+
+        /**
+         * 多行文本，只包含有记录的指令和错误码
+         *
+         * @return
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("seconds:").append((time - since) / 1000).append(", retries:").append(retries)
+                    .append(", reconnects:").append(reconnects).append(", no response:").append(noResponses);
+            for (Stats s : stats) {
+                if (s.getCount() > 0) {
+                    sb.append('\n').append(s);
+                }
+            }
+            for (int i = 0; i < errorCodes.length; i++) {
+                if (errorCodes[i] > 0) {
+                    sb.append(String.format(Locale.US, "\nerror 0x%02X: %d", i, errorCodes[i]));
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
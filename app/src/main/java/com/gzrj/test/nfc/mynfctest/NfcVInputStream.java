@@ -0,0 +1,182 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 按需读取标签block的输入流。每次从标签读取readahead个block，只有实际读到的block才会通信，
+ * 调用者可以只解析开头的一部分就停止
+ * Created by RP_S on 2017/10/30.
+ */
+
+public class NfcVInputStream extends InputStream {
+    public static final int DEFAULT_READAHEAD_BLOCKS = 8;
+
+    private final NfcVUtil nfcVUtil;
+
+    private final int blockSize;
+
+    /*
+     * 流结束的位置（字节，从block 0开始计算）
+     */
+    private final int end;
+
+    private final byte[] window;
+
+    /*
+     * 窗口中第一个字节的位置和有效长度
+     */
+    private int windowStart;
+
+    private int windowLength;
+
+    private int position;
+
+    private int mark;
+
+    /**
+     * 从block 0读到最后一个block
+     *
+     * @param nfcVUtil
+     * @throws IOException
+     */
+    public NfcVInputStream(NfcVUtil nfcVUtil) throws IOException {
+        this(nfcVUtil, 0, DEFAULT_READAHEAD_BLOCKS);
+    }
+
+    /**
+     * @param nfcVUtil
+     * @param firstBlock      起始block编号
+     * @param readaheadBlocks 每次读取的block数
+     * @throws IOException
+     */
+    public NfcVInputStream(NfcVUtil nfcVUtil, int firstBlock, int readaheadBlocks) throws IOException {
+        if (readaheadBlocks < 1) {
+            throw new IllegalArgumentException("readaheadBlocks must be greater than 0");
+        }
+        this.nfcVUtil = nfcVUtil;
+        this.blockSize = nfcVUtil.getOneBlockSize();
+        this.end = nfcVUtil.getBlockSpace();
+        if (firstBlock < 0 || firstBlock * blockSize > end) {
+            throw new IllegalArgumentException("block out of range:" + firstBlock);
+        }
+        this.window = new byte[readaheadBlocks * blockSize];
+        this.position = firstBlock * blockSize;
+        this.mark = position;
+    }
+
+    /**
+     * 保证position在窗口中
+     *
+     * @return 已到结尾时返回false
+     */
+    private boolean fill() throws IOException {
+        if (position >= end) {
+            return false;
+        }
+        if (position >= windowStart && position < windowStart + windowLength) {
+            return true;
+        }
+        int block = position / blockSize;
+        int count = Math.min(window.length / blockSize, nfcVUtil.getBlockNumber() - block);
+        if (!nfcVUtil.readBlocks(block, count, window, 0)) {
+            windowLength = 0;
+            throw new IOException("read blocks failed:" + block + "+" + count);
+        }
+        windowStart = block * blockSize;
+        windowLength = count * blockSize;
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return window[position++ - windowStart] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int total = 0;
+        while (total < len && fill()) {
+            int n = Math.min(len - total, windowStart + windowLength - position);
+            System.arraycopy(window, position - windowStart, b, off + total, n);
+            position += n;
+            total += n;
+        }
+        return total == 0 ? -1 : total;
+    }
+
+    /**
+     * 跳过n个字节，不读取标签
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        long skipped = Math.min(n, end - position);
+        position += skipped;
+        return skipped;
+    }
+
+    /**
+     * 跳到下一个block开始的位置之后再跳过n个block，不读取标签
+     *
+     * @param n block数
+     * @return 实际跳过的block数
+     */
+    public int skipBlocks(int n) {
+        int current = (position + blockSize - 1) / blockSize;
+        int target = Math.min(current + Math.max(n, 0), end / blockSize);
+        position = Math.max(position, target * blockSize);
+        return target - current;
+    }
+
+    /**
+     * 当前所在的block
+     *
+     * @return
+     */
+    public int getBlock() {
+        return position / blockSize;
+    }
+
+    /**
+     * 窗口中剩余的字节数，不需要通信即可读取
+     */
+    @Override
+    public int available() {
+        if (position >= windowStart && position < windowStart + windowLength) {
+            return windowStart + windowLength - position;
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    /**
+     * 记录当前位置。reset回到的位置如果仍在窗口中，不需要重新读取
+     *
+     * @param readlimit 不使用
+     */
+    @Override
+    public synchronized void mark(int readlimit) {
+        mark = position;
+    }
+
+    @Override
+    public synchronized void reset() {
+        position = mark;
+    }
+}
@@ -0,0 +1,386 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * 盘点场内的多张标签（Inventory 0x01），可按AFI和UID掩码过滤，得到UID后用{@link #open(byte[])}逐张读写。
+ * Android的transceive只能发送完整的帧，不能发送16时隙盘点中切换时隙的EOF，
+ * 所以每个时隙用一条单时隙盘点加4位掩码代替：有冲突时把掩码延长4位，依次盘点16个子时隙。
+ * Android不区分冲突和其他收发错误，同一时隙重试一次仍出错才视为冲突（冲突每次都会出现，偶发的干扰不会）；
+ * 掩码长度和帧数有上限，超过时停止细分，{@link #isComplete()}为false
+ * Created by RP_S on 2017/10/31.
+ */
+
+public class NfcVInventory {
+    /**
+     * 每次冲突细分的时隙数
+     */
+    public static final int SLOTS = 16;
+
+    private static final int SLOT_BITS = 4;
+
+    private static final int UID_BITS = 64;
+
+    /**
+     * 默认的最长掩码：同一厂商、同一型号的标签只有低48位的序列号不同
+     */
+    public static final int DEFAULT_MAX_MASK_LENGTH = 48;
+
+    /**
+     * 默认每次盘点最多发送的帧数
+     */
+    public static final int DEFAULT_MAX_FRAMES = 256;
+
+    /*
+     * 时隙中有多张标签响应
+     */
+    private static final byte[] COLLISION = new byte[0];
+
+    private static final int INVENTORY = 0x01;
+
+    /*
+     * 盘点请求flags：inventory、AFI、单时隙
+     */
+    private static final int FLAG_INVENTORY = 0x04;
+    private static final int FLAG_AFI = 0x10;
+    private static final int FLAG_ONE_SLOT = 0x20;
+
+    private final NfcVTransceiver session;
+
+    private int dataRateFlags = NfcVUtil.FLAG_HIGH_DATA_RATE;
+
+    /*
+     * AFI过滤，小于0时不过滤
+     */
+    private int afi = -1;
+
+    /*
+     * UID掩码，从UID最低位开始
+     */
+    private long mask;
+
+    private int maskLength;
+
+    private int collisionCount;
+
+    private int maxMaskLength = DEFAULT_MAX_MASK_LENGTH;
+
+    private int maxFrames = DEFAULT_MAX_FRAMES;
+
+    private int frameCount;
+
+    private boolean complete;
+
+    private NfcExecutor executor;
+
+    private NfcMetrics metrics = NfcMetrics.getInstance();
+
+    public NfcVInventory(NfcVTransceiver session) {
+        this.session = session;
+    }
+
+    /**
+     * 只盘点AFI匹配的标签
+     *
+     * @param afi 0-255，小于0时不过滤
+     */
+    public void setAFI(int afi) {
+        if (afi > 0xFF) {
+            throw new IllegalArgumentException("invalid AFI:" + afi);
+        }
+        this.afi = afi;
+    }
+
+    /**
+     * 只盘点UID低maskLength位与mask相同的标签
+     *
+     * @param mask       掩码，UID低字节在前，即与{@link android.nfc.Tag#getId()}按小端转成的long比较
+     * @param maskLength 掩码位数，0-64
+     */
+    public void setMask(long mask, int maskLength) {
+        if (maskLength < 0 || maskLength > UID_BITS) {
+            throw new IllegalArgumentException("invalid mask length:" + maskLength);
+        }
+        this.mask = maskLength == UID_BITS ? mask : mask & ((1L << maskLength) - 1);
+        this.maskLength = maskLength;
+    }
+
+    /**
+     * 冲突时掩码最长延长到多少位，仍冲突时放弃该时隙
+     *
+     * @param maxMaskLength 0-64
+     */
+    public void setMaxMaskLength(int maxMaskLength) {
+        if (maxMaskLength < 0 || maxMaskLength > UID_BITS) {
+            throw new IllegalArgumentException("invalid mask length:" + maxMaskLength);
+        }
+        this.maxMaskLength = maxMaskLength;
+    }
+
+    /**
+     * 每次盘点最多发送的帧数，包括重试
+     *
+     * @param maxFrames 至少为1
+     */
+    public void setMaxFrames(int maxFrames) {
+        if (maxFrames < 1) {
+            throw new IllegalArgumentException("maxFrames must be greater than 0");
+        }
+        this.maxFrames = maxFrames;
+    }
+
+    public void setDataRateFlags(int dataRateFlags) {
+        this.dataRateFlags = dataRateFlags & (NfcVUtil.FLAG_SUBCARRIER | NfcVUtil.FLAG_HIGH_DATA_RATE);
+    }
+
+    /**
+     * @param metrics 通信统计，为null时不统计
+     */
+    public void setMetrics(NfcMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setExecutor(NfcExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * 最近一次盘点中细分过的冲突次数
+     *
+     * @return
+     */
+    public int getCollisionCount() {
+        return collisionCount;
+    }
+
+    /**
+     * 最近一次盘点发送的帧数
+     *
+     * @return
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * 最近一次盘点是否扫完了所有时隙。达到帧数上限或最长掩码仍冲突时为false，场内可能还有没盘点到的标签
+     *
+     * @return
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * 盘点，返回场内所有标签的UID
+     *
+     * @return UID列表，低字节在前，与{@link android.nfc.Tag#getId()}相同
+     * @throws IOException 连接失败
+     */
+    public List<byte[]> inventory() throws IOException {
+        session.connect();
+        collisionCount = 0;
+        frameCount = 0;
+        complete = true;
+        List<byte[]> found = new ArrayList<>();
+        sweep(mask, maskLength, found);
+        return found;
+    }
+
+    /**
+     * 在nfc线程中盘点
+     *
+     * @param callback 回调
+     * @return
+     */
+    public Future<List<byte[]>> inventoryAsync(NfcExecutor.Callback<List<byte[]>> callback) {
+        if (executor == null) {
+            executor = NfcExecutor.getInstance();
+        }
+        return executor.submit(NfcExecutor.Priority.USER, new Callable<List<byte[]>>() {
+            @Override
+            public List<byte[]> call() throws Exception {
+                return inventory();
+            }
+        }, callback);
+    }
+
+    /**
+     * 盘点某个厂商的标签并读取block。先发送厂商的Fast Inventory Read，场内只有一张该厂商的标签时一次往返取得UID和数据；
+     * 有冲突、不支持或设置了UID掩码时改为盘点后逐张读取。其他厂商的标签不会返回
+     *
+     * @param vendor     厂商，如{@link VendorExtension#NXP}
+     * @param firstBlock 开始block
+     * @param count      block数
+     * @return UID（同{@link NfcVUtil#getUID()}）到数据的映射，按盘点顺序；读取失败的标签数据为null
+     * @throws IOException 连接失败
+     */
+    public Map<String, byte[]> inventoryRead(VendorExtension vendor, int firstBlock, int count) throws IOException {
+        if (firstBlock < 0 || count < 1 || firstBlock + count > 256) {
+            throw new IllegalArgumentException("invalid block range:" + firstBlock + "+" + count);
+        }
+        session.connect();
+        collisionCount = 0;
+        frameCount = 0;
+        complete = true;
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        int code = vendor.getFastInventoryRead();
+        //掩码部分的UID不在响应中，只在不用掩码时使用
+        if (code != VendorExtension.NONE && maskLength == 0) {
+            byte[] res;
+            frameCount++;
+            try {
+                byte[] cmd = fastFrame(code, vendor.getManufacturer(), firstBlock, count);
+                res = metrics == null ? session.transceive(cmd) : metrics.transceive(session, cmd);
+            } catch (ConnectFailedException e) {
+                throw e;
+            } catch (IOException e) {
+                res = null;
+            }
+            //掩码位数为0，响应为flags、完整的UID、数据
+            if (res != null && res.length > 9 && (res[0] & 0x01) == 0) {
+                byte[] id = new byte[8];
+                System.arraycopy(res, 1, id, 0, id.length);
+                result.put(uid(id), Arrays.copyOfRange(res, 9, res.length));
+                return result;
+            }
+        }
+        List<byte[]> found = new ArrayList<>();
+        sweep(mask, maskLength, found);
+        for (byte[] id : found) {
+            if ((id[6] & 0xFF) != vendor.getManufacturer()) {
+                continue;
+            }
+            result.put(uid(id), open(id).readBlocks(firstBlock, count));
+        }
+        return result;
+    }
+
+    /**
+     * 通过同一个连接读写盘点到的标签，不使用之前缓存的内容
+     *
+     * @param id 标签UID，低字节在前
+     * @return
+     * @throws IOException
+     */
+    public NfcVUtil open(byte[] id) throws IOException {
+        NfcVUtil util = new NfcVUtil(session, id);
+        if (util.getCache() != null) {
+            util.getCache().invalidateBlocks(util.getUID());
+        }
+        return util;
+    }
+
+    /**
+     * 盘点UID低length位为mask的标签。没有响应时该时隙为空，确认冲突后延长掩码继续
+     */
+    private void sweep(long mask, int length, List<byte[]> found) throws IOException {
+        if (frameCount >= maxFrames) {
+            complete = false;
+            return;
+        }
+        byte[] res = slot(mask, length);
+        if (res == null) {
+            return;
+        }
+        if (res != COLLISION) {
+            byte[] id = new byte[8];
+            System.arraycopy(res, 2, id, 0, id.length);
+            found.add(id);
+            return;
+        }
+        if (length + SLOT_BITS > maxMaskLength || frameCount >= maxFrames) {
+            complete = false;
+            return;
+        }
+        collisionCount++;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            sweep(mask | ((long) slot << length), length + SLOT_BITS, found);
+        }
+    }
+
+    /**
+     * 盘点一个时隙
+     *
+     * @return 一张标签的响应；时隙为空或响应无效时返回null；确认冲突时返回{@link #COLLISION}
+     */
+    private byte[] slot(long mask, int length) throws IOException {
+        byte[] cmd = frame(mask, length);
+        for (int attempt = 0; ; attempt++) {
+            frameCount++;
+            byte[] res;
+            try {
+                res = metrics == null ? session.transceive(cmd) : metrics.transceive(session, cmd);
+            } catch (NoResponseException e) {
+                return null;
+            } catch (ConnectFailedException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt > 0 || frameCount >= maxFrames) {
+                    return COLLISION;
+                }
+                continue;
+            }
+            //格式不对的响应来自单张标签，不是冲突
+            return res.length >= 10 && (res[0] & 0x01) == 0 ? res : null;
+        }
+    }
+
+    /**
+     * 单时隙Fast Inventory Read请求：flags、指令、厂商代码、[AFI]、掩码位数0、开始block、block数减一。
+     * 设置option flag，否则响应中没有UID
+     */
+    private byte[] fastFrame(int code, int manufacturer, int firstBlock, int count) {
+        boolean withAFI = afi >= 0;
+        byte[] cmd = new byte[6 + (withAFI ? 1 : 0)];
+        int p = 0;
+        cmd[p++] = (byte) (dataRateFlags | FLAG_INVENTORY | FLAG_ONE_SLOT | NfcVUtil.FLAG_OPTION | (withAFI ? FLAG_AFI : 0));
+        cmd[p++] = (byte) code;
+        cmd[p++] = (byte) manufacturer;
+        if (withAFI) {
+            cmd[p++] = (byte) afi;
+        }
+        cmd[p++] = 0;
+        cmd[p++] = (byte) firstBlock;
+        cmd[p] = (byte) (count - 1);
+        return cmd;
+    }
+
+    /**
+     * UID高字节在前的十六进制字符串
+     */
+    private static String uid(byte[] id) {
+        char[] hex = new char[id.length * 2];
+        for (int i = 0; i < id.length; i++) {
+            NfcVUtil.printHex(id, id.length - 1 - i, 1, hex, i * 2);
+        }
+        return new String(hex);
+    }
+
+    /**
+     * 单时隙盘点请求：flags、0x01、[AFI]、掩码位数、掩码（低字节在前）
+     */
+    private byte[] frame(long mask, int length) {
+        int maskBytes = (length + 7) / 8;
+        boolean withAFI = afi >= 0;
+        byte[] cmd = new byte[3 + (withAFI ? 1 : 0) + maskBytes];
+        int p = 0;
+        cmd[p++] = (byte) (dataRateFlags | FLAG_INVENTORY | FLAG_ONE_SLOT | (withAFI ? FLAG_AFI : 0));
+        cmd[p++] = INVENTORY;
+        if (withAFI) {
+            cmd[p++] = (byte) afi;
+        }
+        cmd[p++] = (byte) length;
+        for (int i = 0; i < maskBytes; i++) {
+            cmd[p++] = (byte) (mask >>> (i * 8));
+        }
+        return cmd;
+    }
+}
@@ -0,0 +1,156 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 按block写入标签的输出流。数据先放在缓冲中，写满的block按批量写入；
+ * {@link NfcVOutputStream#flush()}只写完整的block，最后不满一个block的部分在close时补0写入
+ * Created by RP_S on 2017/10/30.
+ */
+
+public class NfcVOutputStream extends OutputStream {
+    private final NfcVUtil nfcVUtil;
+
+    private final int blockSize;
+
+    private final int blockNumber;
+
+    private final byte[] buffer;
+
+    /*
+     * 缓冲中第一个block的编号
+     */
+    private int block;
+
+    private int count;
+
+    private boolean closed;
+
+    /**
+     * 从block 0开始写，每次最多写{@link NfcVUtil#getWriteBatchBlocks()}个block
+     *
+     * @param nfcVUtil
+     * @throws IOException
+     */
+    public NfcVOutputStream(NfcVUtil nfcVUtil) throws IOException {
+        this(nfcVUtil, 0, nfcVUtil.getWriteBatchBlocks());
+    }
+
+    /**
+     * @param nfcVUtil
+     * @param firstBlock   起始block编号
+     * @param bufferBlocks 缓冲的block数，写满后写入标签
+     * @throws IOException
+     */
+    public NfcVOutputStream(NfcVUtil nfcVUtil, int firstBlock, int bufferBlocks) throws IOException {
+        if (bufferBlocks < 1) {
+            throw new IllegalArgumentException("bufferBlocks must be greater than 0");
+        }
+        this.nfcVUtil = nfcVUtil;
+        this.blockSize = nfcVUtil.getOneBlockSize();
+        this.blockNumber = nfcVUtil.getBlockNumber();
+        if (firstBlock < 0 || firstBlock > blockNumber) {
+            throw new IllegalArgumentException("block out of range:" + firstBlock);
+        }
+        this.buffer = new byte[bufferBlocks * blockSize];
+        this.block = firstBlock;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == buffer.length) {
+            writeBlocks(count / blockSize);
+        }
+        checkCapacity(1);
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureOpen();
+        checkCapacity(len);
+        while (len > 0) {
+            if (count == buffer.length) {
+                writeBlocks(count / blockSize);
+            }
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void checkCapacity(int len) throws IOException {
+        if ((long) block * blockSize + count + len > (long) blockNumber * blockSize) {
+            throw new IOException("tag memory full");
+        }
+    }
+
+    /**
+     * 写入缓冲中完整的block，不满一个block的部分保留
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        int full = count / blockSize;
+        if (full > 0) {
+            writeBlocks(full);
+        }
+    }
+
+    /**
+     * 写入缓冲中的前n个block，剩余部分移到缓冲开头
+     */
+    private void writeBlocks(int n) throws IOException {
+        if (!nfcVUtil.writeBlocks(block, buffer, 0, n)) {
+            throw new IOException("write blocks failed:" + block + "+" + n);
+        }
+        int written = n * blockSize;
+        System.arraycopy(buffer, written, buffer, 0, count - written);
+        count -= written;
+        block += n;
+    }
+
+    /**
+     * 下一个要写入的block
+     *
+     * @return
+     */
+    public int getBlock() {
+        return block;
+    }
+
+    /**
+     * 写入剩余数据，最后一个block不满时补0
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (count > 0) {
+                int blocks = (count + blockSize - 1) / blockSize;
+                for (int i = count; i < blocks * blockSize; i++) {
+                    buffer[i] = 0;
+                }
+                count = blocks * blockSize;
+                writeBlocks(blocks);
+            }
+        } finally {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import android.annotation.TargetApi;
+import android.app.Activity;
+import android.nfc.NfcAdapter;
+import android.nfc.Tag;
+import android.os.Build;
+import android.os.Bundle;
+
+/**
+ * 用reader mode发现标签，代替前台分发的PendingIntent和onNewIntent。
+ * 只轮询NfcV，跳过系统的NDEF检查，发现的标签在nfc服务的线程中直接交给{@link Listener}，不经过Intent和主线程。
+ * 系统在连接空闲时定期检查标签是否还在，检查与指令争用射频，可以用{@link #setPresenceCheckDelay(int)}调整间隔
+ * Created by RP_S on 2017/11/08.
+ */
+
+@TargetApi(Build.VERSION_CODES.KITKAT)
+public class NfcVReaderMode implements NfcAdapter.ReaderCallback {
+    /**
+     * 默认的标签在场检查间隔，毫秒，系统默认为125
+     */
+    public static final int DEFAULT_PRESENCE_CHECK_DELAY = 500;
+
+    /**
+     * 发现标签的回调
+     */
+    public interface Listener {
+        /**
+         * 在nfc服务的线程中调用，不能直接操作界面
+         *
+         * @param tag             标签
+         * @param discoveredNanos 发现时的{@link System#nanoTime()}
+         */
+        void onTagDiscovered(Tag tag, long discoveredNanos);
+    }
+
+    private final Listener listener;
+
+    private int presenceCheckDelay = DEFAULT_PRESENCE_CHECK_DELAY;
+
+    private boolean platformSounds = true;
+
+    public NfcVReaderMode(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 标签在场检查的间隔，越大检查越少、指令之间的等待越短，但标签离开后越晚发现
+     *
+     * @param presenceCheckDelay 毫秒，必须大于0
+     */
+    public void setPresenceCheckDelay(int presenceCheckDelay) {
+        if (presenceCheckDelay <= 0) {
+            throw new IllegalArgumentException("presenceCheckDelay must be greater than 0");
+        }
+        this.presenceCheckDelay = presenceCheckDelay;
+    }
+
+    public int getPresenceCheckDelay() {
+        return presenceCheckDelay;
+    }
+
+    /**
+     * 发现标签时是否播放系统提示音，默认播放
+     *
+     * @param platformSounds
+     */
+    public void setPlatformSounds(boolean platformSounds) {
+        this.platformSounds = platformSounds;
+    }
+
+    /**
+     * reader mode的flags：只轮询NfcV，跳过NDEF检查
+     *
+     * @return
+     */
+    public int getFlags() {
+        int flags = NfcAdapter.FLAG_READER_NFC_V | NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK;
+        if (!platformSounds) {
+            flags |= NfcAdapter.FLAG_READER_NO_PLATFORM_SOUNDS;
+        }
+        return flags;
+    }
+
+    /**
+     * reader mode的参数：在场检查间隔
+     *
+     * @return
+     */
+    public Bundle getExtras() {
+        Bundle extras = new Bundle();
+        extras.putInt(NfcAdapter.EXTRA_READER_PRESENCE_CHECK_DELAY, presenceCheckDelay);
+        return extras;
+    }
+
+    /**
+     * 开始reader mode，在onResume中调用。开启期间前台分发不起作用
+     *
+     * @param adapter  nfc适配器
+     * @param activity 前台的Activity
+     */
+    public void enable(NfcAdapter adapter, Activity activity) {
+        adapter.enableReaderMode(activity, this, getFlags(), getExtras());
+    }
+
+    /**
+     * 停止reader mode，在onPause中调用
+     *
+     * @param adapter  nfc适配器
+     * @param activity 前台的Activity
+     */
+    public void disable(NfcAdapter adapter, Activity activity) {
+        adapter.disableReaderMode(activity);
+    }
+
+    @Override
+    public void onTagDiscovered(Tag tag) {
+        listener.onTagDiscovered(tag, System.nanoTime());
+    }
+}
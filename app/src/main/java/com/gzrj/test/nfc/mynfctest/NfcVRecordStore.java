@@ -0,0 +1,361 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 按字段随机读写标签内容。开头的几个block是目录，记录每个字段id所在的block范围，
+ * 字段数据以TLV（id、2字节长度、数据）格式保存在各自的block中。
+ * 读取一个字段只读取目录和该字段的block，更新一个字段只写入该字段的block，位置变化时再写入目录中该字段的条目
+ * <p>
+ * 目录格式：0xF7、目录block数、最大字段数，之后每个字段3字节：id（0为空）、起始block、block数。
+ * 0xF7在UTF-8中不会出现，与{@link PayloadCodecs}的编码头也不同，{@link NfcVUtil#readAll()}不会误认
+ * Created by RP_S on 2017/11/02.
+ */
+
+public class NfcVRecordStore {
+    public static final int DEFAULT_MAX_FIELDS = 12;
+
+    private static final int MAGIC = 0xF7;
+
+    private static final int HEADER = 3;
+
+    private static final int ENTRY = 3;
+
+    private static final int TLV_HEADER = 3;
+
+    private final NfcVUtil nfcVUtil;
+
+    private int blockSize;
+
+    private int blockNumber;
+
+    /*
+     * 目录内容，第一次使用时读取，为null时未读取
+     */
+    private byte[] directory;
+
+    private int directoryBlocks;
+
+    private int maxFields;
+
+    /*
+     * 读取目录时先读取的block数，目录更大时再读剩余部分
+     */
+    private int directoryHint;
+
+    public NfcVRecordStore(NfcVUtil nfcVUtil) {
+        this.nfcVUtil = nfcVUtil;
+    }
+
+    /**
+     * 标签是否已按记录格式初始化
+     *
+     * @return
+     * @throws IOException
+     */
+    public boolean isFormatted() throws IOException {
+        return loadDirectory();
+    }
+
+    /**
+     * 初始化为空的记录格式，原有内容不再能读取
+     *
+     * @param maxFields 最大字段数
+     * @throws IOException
+     */
+    public void format(int maxFields) throws IOException {
+        init();
+        if (maxFields < 1 || maxFields > 255) {
+            throw new IllegalArgumentException("maxFields must be 1-255");
+        }
+        int blocks = (HEADER + maxFields * ENTRY + blockSize - 1) / blockSize;
+        if (blocks >= blockNumber) {
+            throw new IllegalArgumentException("directory too large:" + blocks + " blocks");
+        }
+        byte[] image = new byte[blocks * blockSize];
+        image[0] = (byte) MAGIC;
+        image[1] = (byte) blocks;
+        image[2] = (byte) maxFields;
+        if (!nfcVUtil.writeBlocks(0, image, 0, blocks)) {
+            throw new IOException("write directory failed");
+        }
+        directory = image;
+        directoryBlocks = blocks;
+        this.maxFields = maxFields;
+    }
+
+    /**
+     * 读取一个字段
+     *
+     * @param id 字段id，1-255
+     * @return 字段不存在时返回null
+     * @throws IOException 读取失败或标签未初始化
+     */
+    public byte[] get(int id) throws IOException {
+        checkId(id);
+        requireDirectory();
+        int slot = find(id);
+        if (slot < 0) {
+            return null;
+        }
+        int first = first(slot);
+        int count = count(slot);
+        byte[] data = nfcVUtil.readBlocks(first, count);
+        if (data == null) {
+            throw new IOException("read field " + id + " failed");
+        }
+        int length = ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+        if ((data[0] & 0xFF) != id || TLV_HEADER + length > data.length) {
+            throw new IOException("field " + id + " corrupted");
+        }
+        return Arrays.copyOfRange(data, TLV_HEADER, TLV_HEADER + length);
+    }
+
+    /**
+     * 读取一个字符串字段，按{@link PayloadCodecs}解码
+     *
+     * @param id 字段id，1-255
+     * @return 字段不存在时返回null
+     * @throws IOException
+     */
+    public String getString(int id) throws IOException {
+        byte[] data = get(id);
+        return data == null ? null : PayloadCodecs.decode(data);
+    }
+
+    /**
+     * 写入一个字段。原来的block足够时原地写入，不修改目录；
+     * 否则先写入新的空闲位置，再修改目录，写入过程中卡片离开时原来的内容仍然有效
+     *
+     * @param id    字段id，1-255
+     * @param value 数据
+     * @throws IOException 写入失败、标签未初始化或没有足够的空间
+     */
+    public void put(int id, byte[] value) throws IOException {
+        checkId(id);
+        if (value.length > 0xFFFF) {
+            throw new IllegalArgumentException("value too large:" + value.length);
+        }
+        requireDirectory();
+        int needed = (TLV_HEADER + value.length + blockSize - 1) / blockSize;
+        byte[] data = new byte[needed * blockSize];
+        data[0] = (byte) id;
+        data[1] = (byte) (value.length >> 8);
+        data[2] = (byte) value.length;
+        System.arraycopy(value, 0, data, TLV_HEADER, value.length);
+
+        int slot = find(id);
+        if (slot >= 0 && count(slot) >= needed) {
+            write(first(slot), data, needed);
+            return;
+        }
+        if (slot < 0) {
+            slot = find(0);
+            if (slot < 0) {
+                throw new IOException("directory full");
+            }
+        }
+        int first = allocate(needed);
+        if (first < 0) {
+            throw new IOException("no space for field " + id + ":" + needed + " blocks");
+        }
+        write(first, data, needed);
+        byte[] updated = directory.clone();
+        int p = HEADER + slot * ENTRY;
+        updated[p] = (byte) id;
+        updated[p + 1] = (byte) first;
+        updated[p + 2] = (byte) needed;
+        writeDirectory(updated);
+    }
+
+    /**
+     * 写入一个字符串字段，按{@link PayloadCodecs}自动选择编码
+     *
+     * @param id 字段id，1-255
+     * @param s  字符串
+     * @throws IOException
+     */
+    public void putString(int id, String s) throws IOException {
+        put(id, PayloadCodecs.encode(s, null));
+    }
+
+    /**
+     * 删除一个字段，只修改目录
+     *
+     * @param id 字段id，1-255
+     * @return 字段不存在时返回false
+     * @throws IOException
+     */
+    public boolean remove(int id) throws IOException {
+        checkId(id);
+        requireDirectory();
+        int slot = find(id);
+        if (slot < 0) {
+            return false;
+        }
+        byte[] updated = directory.clone();
+        Arrays.fill(updated, HEADER + slot * ENTRY, HEADER + (slot + 1) * ENTRY, (byte) 0);
+        writeDirectory(updated);
+        return true;
+    }
+
+    /**
+     * 已有的字段id
+     *
+     * @return
+     * @throws IOException
+     */
+    public int[] getFieldIds() throws IOException {
+        requireDirectory();
+        int[] ids = new int[maxFields];
+        int n = 0;
+        for (int slot = 0; slot < maxFields; slot++) {
+            if (id(slot) != 0) {
+                ids[n++] = id(slot);
+            }
+        }
+        return Arrays.copyOf(ids, n);
+    }
+
+    /**
+     * 剩余的空闲block数，不一定连续
+     *
+     * @return
+     * @throws IOException
+     */
+    public int getFreeBlocks() throws IOException {
+        requireDirectory();
+        int used = directoryBlocks;
+        for (int slot = 0; slot < maxFields; slot++) {
+            if (id(slot) != 0) {
+                used += count(slot);
+            }
+        }
+        return blockNumber - used;
+    }
+
+    private void init() throws IOException {
+        if (blockSize == 0) {
+            blockSize = nfcVUtil.getOneBlockSize();
+            blockNumber = nfcVUtil.getBlockNumber();
+            directoryHint = Math.min(blockNumber, (HEADER + DEFAULT_MAX_FIELDS * ENTRY + blockSize - 1) / blockSize);
+        }
+    }
+
+    private void requireDirectory() throws IOException {
+        if (!loadDirectory()) {
+            throw new IOException("record store not formatted");
+        }
+    }
+
+    /**
+     * 读取目录，先按默认大小读取，目录更大时再读取剩余的block
+     *
+     * @return 标签未初始化时返回false
+     */
+    private boolean loadDirectory() throws IOException {
+        if (directory != null) {
+            return true;
+        }
+        init();
+        byte[] head = nfcVUtil.readBlocks(0, directoryHint);
+        if (head == null) {
+            throw new IOException("read directory failed");
+        }
+        int blocks = head[1] & 0xFF;
+        int fields = head[2] & 0xFF;
+        if ((head[0] & 0xFF) != MAGIC || blocks < 1 || blocks >= blockNumber
+                || HEADER + fields * ENTRY > blocks * blockSize) {
+            return false;
+        }
+        byte[] image = Arrays.copyOf(head, blocks * blockSize);
+        if (blocks > directoryHint
+                && !nfcVUtil.readBlocks(directoryHint, blocks - directoryHint, image, directoryHint * blockSize)) {
+            throw new IOException("read directory failed");
+        }
+        directory = image;
+        directoryBlocks = blocks;
+        maxFields = fields;
+        return true;
+    }
+
+    /**
+     * 只写入目录中有变化的block
+     */
+    private void writeDirectory(byte[] updated) throws IOException {
+        for (int block = 0; block < directoryBlocks; block++) {
+            int from = block * blockSize;
+            boolean changed = false;
+            for (int i = from; i < from + blockSize; i++) {
+                if (updated[i] != directory[i]) {
+                    changed = true;
+                    break;
+                }
+            }
+            if (changed && !nfcVUtil.writeBlocks(block, updated, from, 1)) {
+                //部分写入，重新读取
+                directory = null;
+                throw new IOException("write directory failed");
+            }
+        }
+        directory = updated;
+    }
+
+    private void write(int first, byte[] data, int count) throws IOException {
+        if (!nfcVUtil.writeBlocks(first, data, 0, count)) {
+            throw new IOException("write blocks failed:" + first + "+" + count);
+        }
+    }
+
+    /**
+     * 在目录之后找一段连续的空闲block，第一个合适的位置。
+     * 要移动的字段原来占用的block仍视为已用，避免新内容覆盖还有效的旧内容
+     *
+     * @return 找不到时返回-1
+     */
+    private int allocate(int count) {
+        boolean[] used = new boolean[blockNumber];
+        Arrays.fill(used, 0, directoryBlocks, true);
+        for (int slot = 0; slot < maxFields; slot++) {
+            if (id(slot) != 0) {
+                Arrays.fill(used, first(slot), Math.min(blockNumber, first(slot) + count(slot)), true);
+            }
+        }
+        int run = 0;
+        for (int block = directoryBlocks; block < blockNumber; block++) {
+            run = used[block] ? 0 : run + 1;
+            if (run == count) {
+                return block - count + 1;
+            }
+        }
+        return -1;
+    }
+
+    private int find(int id) {
+        for (int slot = 0; slot < maxFields; slot++) {
+            if (id(slot) == id) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int id(int slot) {
+        return directory[HEADER + slot * ENTRY] & 0xFF;
+    }
+
+    private int first(int slot) {
+        return directory[HEADER + slot * ENTRY + 1] & 0xFF;
+    }
+
+    private int count(int slot) {
+        return directory[HEADER + slot * ENTRY + 2] & 0xFF;
+    }
+
+    private static void checkId(int id) {
+        if (id < 1 || id > 255) {
+            throw new IllegalArgumentException("field id must be 1-255");
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import android.nfc.TagLostException;
+import android.nfc.tech.NfcV;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一张卡片的连接会话。卡片在场时保持连接，空闲超过{@link NfcVSession#setIdleTimeout(long)}后自动关闭，
+ * 下次使用时按指数退避重新连接。分别统计连接耗时和指令耗时
+ * Created by RP_S on 2017/10/26.
+ */
+
+public class NfcVSession implements NfcVTransceiver {
+    public static final long DEFAULT_IDLE_TIMEOUT = 3000;
+
+    public static final int DEFAULT_MAX_CONNECT_ATTEMPTS = 3;
+
+    public static final long DEFAULT_INITIAL_BACKOFF = 20;
+
+    public static final long DEFAULT_MAX_BACKOFF = 320;
+
+    /*
+     * 空闲关闭的定时器，所有会话共用
+     */
+    private static final ScheduledExecutorService IDLE_TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "nfc-session-idle");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final NfcV nfcV;
+
+    /*
+     * 空闲多久以后关闭连接，毫秒，不大于0时不自动关闭
+     */
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    private int maxConnectAttempts = DEFAULT_MAX_CONNECT_ATTEMPTS;
+
+    private long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+
+    private long maxBackoff = DEFAULT_MAX_BACKOFF;
+
+    private ScheduledFuture<?> idleClose;
+
+    private long lastUsed;
+
+    private int connectCount;
+
+    private long connectNanos;
+
+    private int reconnectCount;
+
+    private int commandCount;
+
+    private long commandNanos;
+
+    public NfcVSession(NfcV nfcV) {
+        this.nfcV = nfcV;
+    }
+
+    public NfcV getNfcV() {
+        return nfcV;
+    }
+
+    /**
+     * 标签UID，低字节在前
+     *
+     * @return
+     */
+    @Override
+    public byte[] getId() {
+        return nfcV.getTag().getId();
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return nfcV.getMaxTransceiveLength();
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return nfcV.isConnected();
+    }
+
+    /**
+     * 如未连接，先连接。失败时按指数退避重试，最多{@link NfcVSession#setMaxConnectAttempts(int)}次
+     *
+     * @throws ConnectFailedException 带有最后一次连接失败的原因
+     */
+    @Override
+    public synchronized void connect() throws ConnectFailedException {
+        if (nfcV.isConnected()) {
+            return;
+        }
+        long backoff = initialBackoff;
+        IOException cause = null;
+        for (int attempt = 0; attempt < maxConnectAttempts; attempt++) {
+            if (attempt > 0) {
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                backoff = Math.min(backoff * 2, maxBackoff);
+            }
+            long start = System.nanoTime();
+            try {
+                nfcV.connect();
+                return;
+            } catch (IOException e) {
+                cause = e;
+            } finally {
+                connectCount++;
+                connectNanos += System.nanoTime() - start;
+            }
+        }
+        throw new ConnectFailedException("connect failed after " + maxConnectAttempts + " attempts", cause);
+    }
+
+    /**
+     * 关闭后重新连接，用于超时或无响应以后
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void reconnect() throws IOException {
+        closeConnection();
+        reconnectCount++;
+        connect();
+    }
+
+    /**
+     * 发送指令，未连接时先连接。
+     * 重新连接后标签回到ready状态，{@link NfcVUtil}发送前会先检查连接，经过自己的连接处理重新选中
+     *
+     * @param cmd 指令
+     * @return 响应
+     * @throws NoResponseException 标签没有响应，原因为{@link TagLostException}
+     * @throws IOException
+     */
+    @Override
+    public synchronized byte[] transceive(byte[] cmd) throws IOException {
+        connect();
+        long start = System.nanoTime();
+        try {
+            return nfcV.transceive(cmd);
+        } catch (TagLostException e) {
+            throw new NoResponseException(e);
+        } finally {
+            commandCount++;
+            commandNanos += System.nanoTime() - start;
+            touch();
+        }
+    }
+
+    /**
+     * 关闭连接，之后使用时会重新连接
+     */
+    @Override
+    public synchronized void close() {
+        if (idleClose != null) {
+            idleClose.cancel(false);
+            idleClose = null;
+        }
+        closeConnection();
+    }
+
+    private void closeConnection() {
+        try {
+            nfcV.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 记录使用时间，重新计算空闲关闭
+     */
+    private void touch() {
+        lastUsed = System.currentTimeMillis();
+        if (idleTimeout <= 0 || idleClose != null) {
+            return;
+        }
+        idleClose = IDLE_TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                closeIfIdle();
+            }
+        }, idleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void closeIfIdle() {
+        idleClose = null;
+        long idle = System.currentTimeMillis() - lastUsed;
+        if (idle >= idleTimeout) {
+            closeConnection();
+        } else {
+            //期间有使用，顺延
+            idleClose = IDLE_TIMER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    closeIfIdle();
+                }
+            }, idleTimeout - idle, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public synchronized long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @param maxConnectAttempts 不能小于1
+     */
+    public synchronized void setMaxConnectAttempts(int maxConnectAttempts) {
+        if (maxConnectAttempts < 1) {
+            throw new IllegalArgumentException("maxConnectAttempts must be greater than 0");
+        }
+        this.maxConnectAttempts = maxConnectAttempts;
+    }
+
+    /**
+     * 退避时间，第一次重试等待initialBackoff毫秒，之后每次加倍，不超过maxBackoff
+     *
+     * @param initialBackoff
+     * @param maxBackoff
+     */
+    public synchronized void setBackoff(long initialBackoff, long maxBackoff) {
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * 连接次数，包括失败的
+     *
+     * @return
+     */
+    public synchronized int getConnectCount() {
+        return connectCount;
+    }
+
+    /**
+     * 连接总耗时，纳秒
+     *
+     * @return
+     */
+    public synchronized long getConnectNanos() {
+        return connectNanos;
+    }
+
+    public synchronized int getReconnectCount() {
+        return reconnectCount;
+    }
+
+    public synchronized int getCommandCount() {
+        return commandCount;
+    }
+
+    /**
+     * 指令总耗时，纳秒
+     *
+     * @return
+     */
+    public synchronized long getCommandNanos() {
+        return commandNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "connect:" + connectCount + "/" + connectNanos / 1000000 + "ms, reconnect:" + reconnectCount
+                + ", command:" + commandCount + "/" + commandNanos / 1000000 + "ms";
+    }
+}
@@ -0,0 +1,290 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 通信记录文件，由{@link NfcVTraceRecorder}写入，用于在电脑上重放和分析现场的通信。
+ * <p>
+ * 格式：文件头为"NFVT"、版本、UID长度和UID（低字节在前）、一帧最大长度、开始时间（毫秒），
+ * 之后每个事件为：类型、与上一事件开始时间的差、耗时、结果，指令事件再跟请求帧和响应帧。
+ * 时间单位为纳秒，整数和长度都用变长编码（每字节7位，最高位为1表示还有后续字节）
+ * Created by RP_S on 2017/11/07.
+ */
+
+public class NfcVTrace {
+    static final int MAGIC = 0x4E465654;
+
+    static final int VERSION = 1;
+
+    /*
+     * 事件类型
+     */
+    public static final int CONNECT = 1;
+    public static final int RECONNECT = 2;
+    public static final int CLOSE = 3;
+    public static final int TRANSCEIVE = 4;
+
+    /*
+     * 事件结果
+     */
+    public static final int OK = 0;
+    public static final int NO_RESPONSE = 1;
+    public static final int CONNECT_FAILED = 2;
+    public static final int IO_ERROR = 3;
+
+    private final byte[] id;
+
+    private final int maxTransceiveLength;
+
+    private final long startMillis;
+
+    private final List<Event> events;
+
+    NfcVTrace(byte[] id, int maxTransceiveLength, long startMillis, List<Event> events) {
+        this.id = id;
+        this.maxTransceiveLength = maxTransceiveLength;
+        this.startMillis = startMillis;
+        this.events = Collections.unmodifiableList(events);
+    }
+
+    /**
+     * 读取记录，文件末尾不完整的事件（如写入时进程被结束）会被忽略
+     *
+     * @param in 输入流，不会关闭
+     * @return
+     * @throws IOException 不是记录文件或版本不支持
+     */
+    public static NfcVTrace read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("not a trace file");
+        }
+        int version = data.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported trace version:" + version);
+        }
+        byte[] id = new byte[readVarInt(data)];
+        data.readFully(id);
+        int maxTransceiveLength = readVarInt(data);
+        long startMillis = data.readLong();
+        List<Event> events = new ArrayList<>();
+        long time = 0;
+        while (true) {
+            int type = data.read();
+            if (type < 0) {
+                break;
+            }
+            try {
+                time += readVarLong(data);
+                long duration = readVarLong(data);
+                int result = data.readUnsignedByte();
+                byte[] request = null;
+                byte[] response = null;
+                if (type == TRANSCEIVE) {
+                    request = new byte[readVarInt(data)];
+                    data.readFully(request);
+                    if (result == OK) {
+                        response = new byte[readVarInt(data)];
+                        data.readFully(response);
+                    }
+                }
+                events.add(new Event(type, time, duration, result, request, response));
+            } catch (EOFException e) {
+                break;
+            }
+        }
+        return new NfcVTrace(id, maxTransceiveLength, startMillis, events);
+    }
+
+    static void writeHeader(OutputStream out, byte[] id, int maxTransceiveLength, long startMillis) throws IOException {
+        writeInt(out, MAGIC);
+        out.write(VERSION);
+        writeVarLong(out, id.length);
+        out.write(id);
+        writeVarLong(out, maxTransceiveLength);
+        writeInt(out, (int) (startMillis >>> 32));
+        writeInt(out, (int) startMillis);
+    }
+
+    private static void writeInt(OutputStream out, int v) throws IOException {
+        out.write(v >>> 24);
+        out.write(v >>> 16);
+        out.write(v >>> 8);
+        out.write(v);
+    }
+
+    static void writeVarLong(OutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        long v = readVarLong(in);
+        if (v < 0 || v > Integer.MAX_VALUE) {
+            throw new IOException("malformed length:" + v);
+        }
+        return (int) v;
+    }
+
+    /**
+     * 标签UID，低字节在前
+     *
+     * @return
+     */
+    public byte[] getId() {
+        return id.clone();
+    }
+
+    public int getMaxTransceiveLength() {
+        return maxTransceiveLength;
+    }
+
+    /**
+     * 开始记录的时间，毫秒
+     *
+     * @return
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public List<Event> getEvents() {
+        return events;
+    }
+
+    /**
+     * 指令事件数，即往返次数
+     *
+     * @return
+     */
+    public int getRoundTrips() {
+        int n = 0;
+        for (Event event : events) {
+            if (event.getType() == TRANSCEIVE) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 所有事件的耗时之和，纳秒
+     *
+     * @return
+     */
+    public long getBusyNanos() {
+        long nanos = 0;
+        for (Event event : events) {
+            nanos += event.getDurationNanos();
+        }
+        return nanos;
+    }
+
+    @Override
+    public String toString() {
+        int connects = 0;
+        int failures = 0;
+        for (Event event : events) {
+            if (event.getType() == CONNECT || event.getType() == RECONNECT) {
+                connects++;
+            }
+            if (event.getResult() != OK) {
+                failures++;
+            }
+        }
+        return "events:" + events.size() + ", roundTrips:" + getRoundTrips() + ", connects:" + connects
+                + ", failures:" + failures + ", busy:" + getBusyNanos() / 1000 + "us";
+    }
+
+    /**
+     * 一次连接、关闭或指令
+     */
+    public static class Event {
+        private final int type;
+        private final long timeNanos;
+        private final long durationNanos;
+        private final int result;
+        private final byte[] request;
+        private final byte[] response;
+
+        Event(int type, long timeNanos, long durationNanos, int result, byte[] request, byte[] response) {
+            this.type = type;
+            this.timeNanos = timeNanos;
+            this.durationNanos = durationNanos;
+            this.result = result;
+            this.request = request;
+            this.response = response;
+        }
+
+        /**
+         * {@link #CONNECT}、{@link #RECONNECT}、{@link #CLOSE}或{@link #TRANSCEIVE}
+         *
+         * @return
+         */
+        public int getType() {
+            return type;
+        }
+
+        /**
+         * 开始时间，从记录开始算起，纳秒
+         *
+         * @return
+         */
+        public long getTimeNanos() {
+            return timeNanos;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        /**
+         * {@link #OK}、{@link #NO_RESPONSE}、{@link #CONNECT_FAILED}或{@link #IO_ERROR}
+         *
+         * @return
+         */
+        public int getResult() {
+            return result;
+        }
+
+        /**
+         * 请求帧，不是指令事件时为null
+         *
+         * @return
+         */
+        public byte[] getRequest() {
+            return request;
+        }
+
+        /**
+         * 响应帧，不是指令事件或没有响应时为null
+         *
+         * @return
+         */
+        public byte[] getResponse() {
+            return response;
+        }
+    }
+}
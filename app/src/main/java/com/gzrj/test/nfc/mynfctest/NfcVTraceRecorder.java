@@ -0,0 +1,173 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 记录通信的连接，包装真正的连接，把每次连接、关闭和指令的请求帧、响应帧及耗时写入{@link NfcVTrace}格式的文件。
+ * 写入有缓冲，{@link #close()}时写入文件并关闭，之后的通信不再记录。写文件出错时停止记录，不影响通信
+ * Created by RP_S on 2017/11/07.
+ */
+
+public class NfcVTraceRecorder implements NfcVTransceiver {
+    private final NfcVTransceiver delegate;
+
+    private OutputStream out;
+
+    /*
+     * 上一事件开始的时间，第一个事件从记录开始算
+     */
+    private long last = System.nanoTime();
+
+    /**
+     * @param delegate 真正的连接
+     * @param out      输出流，关闭时一起关闭
+     * @throws IOException 写入文件头失败
+     */
+    public NfcVTraceRecorder(NfcVTransceiver delegate, OutputStream out) throws IOException {
+        this.delegate = delegate;
+        this.out = new BufferedOutputStream(out);
+        NfcVTrace.writeHeader(this.out, delegate.getId(), delegate.getMaxTransceiveLength(), System.currentTimeMillis());
+    }
+
+    /**
+     * 记录到文件
+     *
+     * @param delegate 真正的连接
+     * @param file     记录文件，已存在时覆盖
+     * @throws IOException
+     */
+    public NfcVTraceRecorder(NfcVTransceiver delegate, File file) throws IOException {
+        this(delegate, new FileOutputStream(file));
+    }
+
+    /**
+     * 被包装的连接，{@link NfcVUtil}发送指令时在它上面同步，与会话的空闲关闭互斥
+     *
+     * @return
+     */
+    public NfcVTransceiver getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public byte[] getId() {
+        return delegate.getId();
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return delegate.getMaxTransceiveLength();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return delegate.isConnected();
+    }
+
+    @Override
+    public void connect() throws ConnectFailedException {
+        if (delegate.isConnected()) {
+            return;
+        }
+        long begin = System.nanoTime();
+        try {
+            delegate.connect();
+        } catch (ConnectFailedException e) {
+            record(NfcVTrace.CONNECT, begin, NfcVTrace.CONNECT_FAILED, null, null);
+            throw e;
+        }
+        record(NfcVTrace.CONNECT, begin, NfcVTrace.OK, null, null);
+    }
+
+    @Override
+    public void reconnect() throws IOException {
+        long begin = System.nanoTime();
+        try {
+            delegate.reconnect();
+        } catch (IOException e) {
+            record(NfcVTrace.RECONNECT, begin, result(e), null, null);
+            throw e;
+        }
+        record(NfcVTrace.RECONNECT, begin, NfcVTrace.OK, null, null);
+    }
+
+    @Override
+    public byte[] transceive(byte[] cmd) throws IOException {
+        long begin = System.nanoTime();
+        byte[] res;
+        try {
+            res = delegate.transceive(cmd);
+        } catch (IOException e) {
+            record(NfcVTrace.TRANSCEIVE, begin, result(e), cmd, null);
+            throw e;
+        }
+        record(NfcVTrace.TRANSCEIVE, begin, res == null ? NfcVTrace.NO_RESPONSE : NfcVTrace.OK, cmd, res);
+        return res;
+    }
+
+    /**
+     * 关闭连接，写入并关闭记录文件
+     */
+    @Override
+    public void close() {
+        long begin = System.nanoTime();
+        delegate.close();
+        record(NfcVTrace.CLOSE, begin, NfcVTrace.OK, null, null);
+        synchronized (this) {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                out = null;
+            }
+        }
+    }
+
+    private static int result(IOException e) {
+        if (e instanceof NoResponseException) {
+            return NfcVTrace.NO_RESPONSE;
+        }
+        if (e instanceof ConnectFailedException) {
+            return NfcVTrace.CONNECT_FAILED;
+        }
+        return NfcVTrace.IO_ERROR;
+    }
+
+    /**
+     * 写入一个事件。请求帧在返回前已写入缓冲，调用者之后复用该数组不影响记录
+     */
+    private synchronized void record(int type, long begin, int result, byte[] request, byte[] response) {
+        if (out == null) {
+            return;
+        }
+        long end = System.nanoTime();
+        try {
+            out.write(type);
+            NfcVTrace.writeVarLong(out, Math.max(0, begin - last));
+            NfcVTrace.writeVarLong(out, end - begin);
+            out.write(result);
+            if (type == NfcVTrace.TRANSCEIVE) {
+                NfcVTrace.writeVarLong(out, request.length);
+                out.write(request);
+                if (result == NfcVTrace.OK) {
+                    NfcVTrace.writeVarLong(out, response.length);
+                    out.write(response);
+                }
+            }
+            last = begin;
+        } catch (IOException e) {
+            e.printStackTrace();
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+            out = null;
+        }
+    }
+}
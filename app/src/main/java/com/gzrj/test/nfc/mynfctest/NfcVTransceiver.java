@@ -0,0 +1,56 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.IOException;
+
+/**
+ * 与标签之间收发ISO 15693指令帧。
+ * 手机上由{@link NfcVSession}实现，测试和性能测试中可以换成模拟的标签
+ * Created by RP_S on 2017/10/27.
+ */
+
+public interface NfcVTransceiver {
+    /**
+     * 标签UID，低字节在前
+     *
+     * @return
+     */
+    byte[] getId();
+
+    /**
+     * 一帧最大长度
+     *
+     * @return
+     */
+    int getMaxTransceiveLength();
+
+    boolean isConnected();
+
+    /**
+     * 如未连接，先连接
+     *
+     * @throws ConnectFailedException
+     */
+    void connect() throws ConnectFailedException;
+
+    /**
+     * 关闭后重新连接，用于超时或无响应以后
+     *
+     * @throws IOException
+     */
+    void reconnect() throws IOException;
+
+    /**
+     * 发送指令，未连接时先连接
+     *
+     * @param cmd 指令
+     * @return 响应
+     * @throws NoResponseException 标签没有响应
+     * @throws IOException
+     */
+    byte[] transceive(byte[] cmd) throws IOException;
+
+    /**
+     * 关闭连接
+     */
+    void close();
+}
@@ -3,6 +3,17 @@ package com.gzrj.test.nfc.mynfctest;
 import android.nfc.tech.NfcV;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
 /**
  * NfcV读写工具类
@@ -14,12 +25,82 @@ import java.io.IOException;
 public class NfcVUtil {
     public static final String CHAR_SET = "utf-8";
 
+    /**
+     * 批量写入时一次最多写入的block数，默认值
+     */
+    public static final int DEFAULT_WRITE_BATCH_BLOCKS = 4;
+
+    /**
+     * 可恢复写入中每次写入出现异常后重试的次数，默认值
+     */
+    public static final int DEFAULT_MAX_WRITE_RETRIES = 2;
+
+    /*
+     * 响应中的错误码：不支持的指令、无法识别的指令、不支持的选项
+     */
+    private static final int ERROR_NOT_SUPPORTED = 0x01;
+    private static final int ERROR_NOT_RECOGNIZED = 0x02;
+    private static final int ERROR_OPTION_NOT_SUPPORTED = 0x03;
+    private static final int ERROR_BLOCK_NOT_AVAILABLE = 0x10;
+    private static final int ERROR_BLOCK_LOCKED = 0x12;
+
+    /*
+     * 批量写入的结果
+     */
+    private static final int BATCH_OK = 0;
+    private static final int BATCH_FAILED = 1;
+    private static final int BATCH_UNSUPPORTED = 2;
+
+    /**
+     * 各芯片类型是否支持Write Multiple Blocks(0x24)，key为{@link NfcVUtil#getICType()}。
+     * 每种芯片只探测一次
+     */
+    private static final Map<Integer, Boolean> WRITE_BATCH_SUPPORT = new ConcurrentHashMap<>();
+
+    /**
+     * 各芯片类型是否支持Get Multiple Block Security Status(0x2C)，key为{@link NfcVUtil#getICType()}
+     */
+    private static final Map<Integer, Boolean> BLOCK_SECURITY_SUPPORT = new ConcurrentHashMap<>();
+
+    /**
+     * 各芯片类型是否支持厂商的快速读取指令，key为{@link NfcVUtil#getICType()}，见{@link VendorExtension}
+     */
+    private static final Map<Integer, Boolean> FAST_READ_SUPPORT = new ConcurrentHashMap<>();
+
+    /**
+     * 各芯片类型批量读取时一次成功读取的block数，key为{@link NfcVUtil#getICType()}
+     */
+    private static final Map<Integer, Integer> READ_BATCH_BLOCKS = new ConcurrentHashMap<>();
+
+    /**
+     * 各芯片类型按{@link #READ_BATCH_BLOCKS}连续成功读取的次数，达到{@link #READ_BATCH_GROW_AFTER}时加倍再试
+     */
+    private static final Map<Integer, Integer> READ_BATCH_SUCCESSES = new ConcurrentHashMap<>();
+
+    /**
+     * 批量读取的block数减小后，连续成功多少次再加倍，避免一次干扰后一直按小分段读取
+     */
+    public static final int READ_BATCH_GROW_AFTER = 16;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /*
+     * 请求flags：双副载波、高速率、selected模式、addressed模式、option
+     */
+    public static final int FLAG_SUBCARRIER = 0x01;
+    public static final int FLAG_HIGH_DATA_RATE = 0x02;
+    public static final int FLAG_SELECTED = 0x10;
+    public static final int FLAG_ADDRESSED = 0x20;
+    public static final int FLAG_OPTION = 0x40;
+
     /**
      * 指令集
      */
-    private enum Commands {
+    enum Commands {
         default_flag(0x22),
 
+        inventory(0x01),
+
         read_block(0x20),
 
         read_batch(0x23),
@@ -36,41 +117,128 @@ public class NfcVUtil {
 
         lock_DSFID(0x2A),
 
-        tag_info(0x2B);
+        select(0x25),
+
+        reset_to_ready(0x26),
+
+        tag_info(0x2B),
+
+        block_security(0x2C),
+
+        /*
+         * 厂商自定义指令，见{@link VendorExtension}
+         */
+        fast_inventory_read(0xA1),
+
+        fast_read_batch(0xC3);
 
         private int code;
 
         Commands(int code) {
             this.code = code;
         }
+
+        int getCode() {
+            return code;
+        }
     }
 
-    private NfcV mNfcV;
+    private NfcVTransceiver session;
+
+    /*
+     * 发送指令时锁住的对象：最里层的会话，空闲关闭在它上面同步
+     */
+    private final Object sessionLock;
+    /*
+     * 芯片类型，作为map的key，避免每次装箱
+     */
+    private Integer icType;
+    /*
+     * 按帧长度复用的指令数组，下标为帧长度，flag和UID已填好。
+     * transceive按数组长度发送，所以不同长度的帧各用一个数组
+     */
+    private byte[][] frames = new byte[0][];
+    /*
+     * 厂商自定义指令的帧，UID前多一个厂商代码，与标准指令分开复用
+     */
+    private byte[][] customFrames = new byte[0][];
+    /*
+     * 芯片厂商的自定义指令，没有时为null
+     */
+    private VendorExtension vendor;
+    /*
+     * 指令头长度（flag + 指令 + addressed模式下的UID），即参数开始的位置
+     */
+    private int header;
+    /*
+     * 是否希望使用selected模式，以及当前是否已选中
+     */
+    private boolean selectedMode;
+    private boolean selected;
+    /*
+     * 副载波和速率flags
+     */
+    private int dataRateFlags = FLAG_HIGH_DATA_RATE;
+    /*
+     * 写、锁指令是否设置option flag，部分芯片（如TI）写入时要求设置
+     */
+    private boolean optionFlag;
     /*
      * UID数组形式
      */
     private byte[] ID;
     private String UID;
-    //Data Storage Format Identifier
-    private String DSFID;
-    //Application Family Identifier
-    private String AFI;
     /*
-     * block的个数
+     * 系统信息，第一次使用时取得
      */
-    private int blockNumber;
+    private SystemInfo infoRmation;
     /*
-     * 一个block长度
+     * 批量写入时一次最多写入的block数
      */
-    private int oneBlockSize;
-    /**
-     * block总存储空间，字节数
+    private int writeBatchBlocks = DEFAULT_WRITE_BATCH_BLOCKS;
+    /*
+     * 标签内容缓存，为null时不使用缓存
      */
-    private int blockSpace;
+    private TagCache cache = TagCache.getInstance();
     /*
-     * 信息
+     * 本地保存的系统信息，为null时不保存
      */
-    private byte[] infoRmation;
+    private SystemInfoStore infoStore = SystemInfoStore.getInstance();
+    /*
+     * 已锁定的block，第一次写入前读取，为null时未读取
+     */
+    private BitSet lockedBlocks;
+    /*
+     * 写入前是否读取锁定状态，跳过已锁定的block
+     */
+    private boolean lockAware = true;
+    /*
+     * 未完成写入的记录，为null时不能恢复写入
+     */
+    private WriteJournal journal = WriteJournal.getInstance();
+    private int maxWriteRetries = DEFAULT_MAX_WRITE_RETRIES;
+    /*
+     * 通信统计，为null时不统计
+     */
+    private NfcMetrics metrics = NfcMetrics.getInstance();
+    /*
+     * 写入字符串使用的编码，为null时自动选择编码后最短的
+     */
+    private PayloadCodec codec;
+    /*
+     * 读取文本时复用的缓冲和解码器，第一次读取时创建
+     */
+    private ByteBuffer textBuffer;
+    private CharBuffer textChars;
+    private CharsetDecoder decoder;
+    /*
+     * 读入不带数组的ByteBuffer时使用的临时数组
+     */
+    private byte[] scratch;
+    /*
+     * 执行异步操作的nfc线程，第一次使用时取{@link NfcExecutor#getInstance()}
+     */
+    private NfcExecutor executor;
 
     /**
      * 初始化
@@ -79,8 +247,34 @@ public class NfcVUtil {
      * @throws IOException
      */
     public NfcVUtil(NfcV mNfcV) throws IOException {
-        this.mNfcV = mNfcV;
-        ID = this.mNfcV.getTag().getId();
+        this(new NfcVSession(mNfcV));
+    }
+
+    /**
+     * 初始化，使用已有的连接会话或模拟的标签
+     *
+     * @param session 连接会话
+     * @throws IOException
+     */
+    public NfcVUtil(NfcVTransceiver session) throws IOException {
+        this(session, session.getId());
+    }
+
+    /**
+     * 初始化，通过已有的连接读写场内另一张标签，如{@link NfcVInventory}盘点到的标签。
+     * 所有指令都使用addressed模式带上该标签的UID
+     *
+     * @param session 连接会话
+     * @param id      标签UID，低字节在前
+     * @throws IOException
+     */
+    public NfcVUtil(NfcVTransceiver session, byte[] id) throws IOException {
+        this.session = session;
+        this.sessionLock = innermost(session);
+        ID = id.clone();
+        header = 2 + ID.length;
+        icType = ((ID[6] & 0xFF) << 8) | (ID[5] & 0xFF);
+        vendor = VendorExtension.forUID(ID);
         byte[] uid = new byte[ID.length];
         int j = 0;
         for (int i = ID.length - 1; i >= 0; i--) {
@@ -88,304 +282,1542 @@ public class NfcVUtil {
             j++;
         }
         this.UID = printHexString(uid);
-        getInfoRmation();
     }
 
     /**
-     * nfc元件唯一id
+     * 设置标签内容缓存，为null时每次都从标签读取
      *
-     * @return
+     * @param cache
      */
-    public String getUID() {
-        return UID;
+    public void setCache(TagCache cache) {
+        this.cache = cache;
+    }
+
+    public TagCache getCache() {
+        return cache;
     }
 
     /**
-     * Data Storage Format Identifier
+     * 设置本地保存的系统信息，为null时每个实例都会发送一次Get System Information
      *
-     * @return
+     * @param infoStore
      */
-    public String getDSFID() {
-        return DSFID;
+    public void setInfoStore(SystemInfoStore infoStore) {
+        this.infoStore = infoStore;
     }
 
     /**
-     * Application Family Identifier
+     * 设置写入字符串使用的编码，见{@link PayloadCodecs}
      *
-     * @return
+     * @param codec 为null时自动选择编码后最短的
      */
-    public String getAFI() {
-        return AFI;
+    public void setCodec(PayloadCodec codec) {
+        this.codec = codec;
+    }
+
+    public PayloadCodec getCodec() {
+        return codec;
     }
 
     /**
-     * block总存储空间，字节数
+     * 设置未完成写入的记录
+     *
+     * @param journal 为null时{@link NfcVUtil#writeStringResumable(String)}中断后不能恢复
      */
-    public int getBlockSpace() {
-        return getBlockNumber() * getOneBlockSize();
+    public void setJournal(WriteJournal journal) {
+        this.journal = journal;
     }
 
-    public int getBlockNumber() {
-        return blockNumber + 1;
+    public WriteJournal getJournal() {
+        return journal;
     }
 
-    public int getOneBlockSize() {
-        return oneBlockSize + 1;
+    /**
+     * 可恢复写入中每次写入出现异常后重新连接并重试的次数
+     *
+     * @param maxWriteRetries 不能小于0
+     */
+    public void setMaxWriteRetries(int maxWriteRetries) {
+        if (maxWriteRetries < 0) {
+            throw new IllegalArgumentException("maxWriteRetries must not be negative");
+        }
+        this.maxWriteRetries = maxWriteRetries;
     }
 
     /**
-     * 如未连接，先连接。连接失败时抛出异常
+     * 设置通信统计
      *
-     * @throws ConnectFailedException
+     * @param metrics 为null时不统计
      */
-    public void assertConnected() throws ConnectFailedException {
-        if (!mNfcV.isConnected()) {
-            try {
-                mNfcV.connect();
-            } catch (IOException e) {
-                throw new ConnectFailedException();
-            }
-        }
+    public void setMetrics(NfcMetrics metrics) {
+        this.metrics = metrics;
     }
 
-    private byte[] initCmd(Commands command) {
-        return initCmd(command, 0);
+    public NfcMetrics getMetrics() {
+        return metrics;
     }
 
-    private byte[] initCmd(Commands command, int dataLength) {
-        byte[] cmd = new byte[2 + ID.length + dataLength];
-        cmd[0] = (byte) Commands.default_flag.code;
-        cmd[1] = (byte) command.code;
-        System.arraycopy(ID, 0, cmd, 2, ID.length);
-        return cmd;
+    /**
+     * 设置执行异步操作的nfc线程
+     *
+     * @param executor
+     */
+    public void setExecutor(NfcExecutor executor) {
+        this.executor = executor;
+    }
+
+    public NfcExecutor getExecutor() {
+        if (executor == null) {
+            executor = NfcExecutor.getInstance();
+        }
+        return executor;
     }
 
     /**
-     * 打印字符数组
+     * nfc元件唯一id
      *
-     * @param bytes
      * @return
      */
-    private String byteString(byte[] bytes) {
-        StringBuilder s = new StringBuilder();
-        for (byte b : bytes) {
-            s.append(b).append("_");
-        }
-        return s.toString();
+    public String getUID() {
+        return UID;
     }
 
     /**
-     * 将byte[]转换成16进制字符串
+     * Data Storage Format Identifier
      *
-     * @param data 要转换成字符串的字节数组
-     * @return 16进制字符串
+     * @return 标签没有返回时为null
+     * @throws IOException
      */
+    public String getDSFID() throws IOException {
+        SystemInfo info = getSystemInfo();
+        return info.hasDSFID() ? printHexString(new byte[]{info.getDSFID()}) : null;
+    }
 
-    private String printHexString(byte[] data) {
-        StringBuffer s = new StringBuffer();
-        for (int i = 0; i < data.length; i++) {
-            String hex = Integer.toHexString(data[i] & 0xFF).toUpperCase();
-            if (hex.length() == 1) {
-                hex = '0' + hex;
-            }
-            s.append(hex);
-        }
-        return s.toString();
+    /**
+     * Application Family Identifier
+     *
+     * @return 标签没有返回时为null
+     * @throws IOException
+     */
+    public String getAFI() throws IOException {
+        SystemInfo info = getSystemInfo();
+        return info.hasAFI() ? printHexString(new byte[]{info.getAFI()}) : null;
     }
 
     /**
-     * 取得标签信息
+     * block总存储空间，字节数
      */
-    private byte[] getInfoRmation() throws IOException {
-        assertConnected();
-        byte[] cmd = initCmd(Commands.tag_info);
-        infoRmation = mNfcV.transceive(cmd);
-        blockNumber = infoRmation[12];
-        oneBlockSize = infoRmation[13];
-        AFI = printHexString(new byte[]{infoRmation[11]});
-        DSFID = printHexString(new byte[]{infoRmation[10]});
-        return infoRmation;
+    public int getBlockSpace() throws IOException {
+        return getBlockNumber() * getOneBlockSize();
+    }
+
+    public int getBlockNumber() throws IOException {
+        return getSystemInfo().getBlockNumber();
+    }
+
+    public int getOneBlockSize() throws IOException {
+        return getSystemInfo().getBlockSize();
     }
 
     /**
-     * 清空数据区
+     * 芯片类型：UID中的厂商代码（第6字节）和厂商定义的芯片标识（第5字节）
      *
      * @return
      */
-    public boolean clearAllBlocks() throws IOException {
-        assertConnected();
-        int n = this.getBlockNumber();
-        byte[] bytes = new byte[this.getOneBlockSize()];
-        //用0清空
-        for (int i = 0; i < bytes.length; i++) {
-            bytes[i] = 0x00;
-        }
-        for (int i = 0; i < n; i++) {
-            this.write(i, bytes);
-        }
-        return true;
+    public int getICType() {
+        return icType;
     }
 
     /**
-     * 读取所有block数据
+     * 芯片厂商的自定义指令，默认按UID选择。设为null时只使用标准指令
      *
-     * @return
-     * @throws IOException
+     * @param vendor
      */
-    public byte[] readAllBlocks() throws IOException {
-        assertConnected();
-        byte cmd[] = initCmd(Commands.default_flag.read_batch, 2);
-        cmd[10] = 0x00;
-        cmd[11] = (byte) this.getBlockNumber();
-        byte res[] = mNfcV.transceive(cmd);
-        if (res[0] == 0x00) {
-            byte result[] = new byte[res.length - 1];
-            System.arraycopy(res, 0, result, 0, this.getOneBlockSize() * this.getBlockNumber());
-            return result;
-        }
-        return null;
+    public void setVendorExtension(VendorExtension vendor) {
+        this.vendor = vendor;
+    }
+
+    public VendorExtension getVendorExtension() {
+        return vendor;
     }
 
     /**
-     * 读取所有block信息，返回字符串
+     * 当前芯片是否支持厂商的快速读取指令，未探测时返回null
      *
      * @return
-     * @throws IOException
      */
-    public String readAll() throws IOException {
-        return new String(this.readAllBlocks(), CHAR_SET);
-    }
-
-    //failed。会失败，原因尚未找到
-    private boolean write(String s) throws IOException {
-        if (s == null || s.length() == 0) {
-            return true;
-        }
-        assertConnected();
-        byte[] bytes = s.getBytes(CHAR_SET);
-        int end = (int) Math.ceil((bytes.length + 0.0) / this.getOneBlockSize());
-        end = Math.min(end, this.getBlockNumber());
-        //截取bytes
-        int len = end * this.getOneBlockSize();
-        //bytes只可能小于等于data长度
-        byte[] data = new byte[len];
-        //将bytes内容复制到data中，多余的位置为空
-        System.arraycopy(bytes, 0, data, 0, bytes.length);
-
-        byte[] cmd = initCmd(Commands.write_batch, 2 + data.length);
-
-        cmd[10] = 0x00;
-        cmd[11] = (byte) end;
-        System.arraycopy(data, 0, cmd, 12, data.length);
-
-        byte res[] = mNfcV.transceive(cmd);
-        return res[0] == 0x00;
+    public Boolean isFastReadSupported() {
+        return FAST_READ_SUPPORT.get(icType);
     }
 
     /**
-     * 写入一block数据
+     * 当前芯片批量读取时一次读取的block数，未读取过时返回null
      *
-     * @param block block编号
-     * @param data  数据，长度只能是1block长度
      * @return
-     * @throws IOException
-     * @throws IllegalArgumentException
      */
-    public boolean write(int block, byte[] data) throws IOException, IllegalArgumentException {
-        if (data == null) {
-            throw new IllegalArgumentException("data must not be null");
-        }
-        if (data.length != this.getOneBlockSize()) {
-            throw new IllegalArgumentException("data length must be one block size:" + this.getOneBlockSize());
-        }
-        assertConnected();
-        byte[] cmd = initCmd(Commands.write_block, 1 + data.length);
-        cmd[10] = (byte) block;
-        System.arraycopy(data, 0, cmd, 11, data.length);
-        byte res[] = mNfcV.transceive(cmd);
-        return res[0] == 0x00;
+    public Integer getReadBatchBlocks() {
+        return READ_BATCH_BLOCKS.get(icType);
     }
 
     /**
-     * 从第零block开始写入字符串，使用默认编码{@link NfcVUtil#CHAR_SET}。
-     * 若字符串长度大于block总空间，则多余的内容丢失。会先清空所有内容
+     * 当前芯片是否支持批量写入，未探测时返回null
      *
-     * @param s 字符串
      * @return
-     * @throws IOException
-     * @throws IllegalArgumentException
      */
-    public boolean writeString(String s) throws IOException, IllegalArgumentException {
-        if (s == null || s.length() == 0) {
-            return true;
-        }
+    public Boolean isWriteBatchSupported() {
+        return WRITE_BATCH_SUPPORT.get(icType);
+    }
 
-        this.clearAllBlocks();
+    /**
+     * 写入前是否按锁定状态跳过已锁定的block，默认为true。
+     * 每张卡片第一次写入时多一次Get Multiple Block Security Status，之后从缓存读取
+     *
+     * @param lockAware
+     */
+    public void setLockAware(boolean lockAware) {
+        this.lockAware = lockAware;
+    }
 
-        byte[] bytes = s.getBytes(CHAR_SET);
+    public boolean isLockAware() {
+        return lockAware;
+    }
 
-        int end = (int) Math.ceil((bytes.length + 0.0) / this.getOneBlockSize());
+    /**
+     * 批量写入时一次最多写入的block数，实际值还受一帧最大长度限制
+     *
+     * @param writeBatchBlocks 不能小于1
+     */
+    public void setWriteBatchBlocks(int writeBatchBlocks) {
+        if (writeBatchBlocks < 1) {
+            throw new IllegalArgumentException("writeBatchBlocks must be greater than 0");
+        }
+        this.writeBatchBlocks = writeBatchBlocks;
+    }
 
-        end = Math.min(end, this.getBlockNumber());
+    public int getWriteBatchBlocks() {
+        return writeBatchBlocks;
+    }
 
-        //截取bytes
-        int len = end * this.getOneBlockSize();
-        //bytes只可能小于等于data长度
-        byte[] data = new byte[len];
-        //将bytes内容复制到data中，多余的位置为空
-        System.arraycopy(bytes, 0, data, 0, Math.min(bytes.length, data.length));
+    /**
+     * 如未连接，先连接。连接失败时抛出异常
+     *
+     * @throws ConnectFailedException
+     */
+    public void assertConnected() throws ConnectFailedException {
+        if (session.isConnected()) {
+            return;
+        }
+        if (metrics == null) {
+            session.connect();
+        } else {
+            metrics.connect(session);
+        }
+        afterConnect();
+    }
 
-        for (int i = 0; i < end; i++) {
-            byte[] block = new byte[this.getOneBlockSize()];
-            System.arraycopy(data, i * this.getOneBlockSize(), block, 0, block.length);
-            this.write(i, block);
+    /**
+     * 重新连接后标签回到ready状态，需要重新选中，失败时使用addressed模式
+     */
+    private void afterConnect() {
+        if (!selected) {
+            return;
+        }
+        setSelected(false);
+        if (selectedMode) {
+            try {
+                doSelect();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
-        return true;
     }
 
     /**
-     * 写afi。写入以后下次读取就是这个值了
+     * 发送Select(0x25)，之后的指令使用selected模式，不再带UID，每帧少8个字节。
+     * 选中失败时继续使用addressed模式。重新连接后会自动重新选中
      *
-     * @param AFI
-     * @return
+     * @return 是否选中
      * @throws IOException
      */
-    public boolean writeAFI(byte AFI) throws IOException {
+    public boolean select() throws IOException {
         assertConnected();
-        byte[] cmd = initCmd(Commands.write_AFI, 1);
-        cmd[10] = AFI;
-        byte res[] = mNfcV.transceive(cmd);
-        return res[0] == 0x00;
+        selectedMode = true;
+        return doSelect();
+    }
+
+    private boolean doSelect() throws IOException {
+        setSelected(false);
+        byte[] cmd = initCmd(Commands.select, 0);
+        boolean ok;
+        try {
+            byte[] res = transceive(cmd);
+            ok = res != null && res.length > 0 && res[0] == 0x00;
+        } catch (IOException e) {
+            //不支持的标签可能不响应
+            reconnectSession();
+            ok = false;
+        }
+        setSelected(ok);
+        return ok;
     }
 
     /**
-     * 锁afi。不清楚锁是什么作用，锁了以后不能改？
+     * 回到addressed模式，发送Reset to Ready(0x26)取消选中
      *
-     * @return
      * @throws IOException
      */
-    public boolean lockAFI() throws IOException {
-        assertConnected();
-        byte[] cmd = initCmd(Commands.lock_AFI);
-        byte res[] = mNfcV.transceive(cmd);
-        return res[0] == 0x00;
+    public void deselect() throws IOException {
+        selectedMode = false;
+        if (selected) {
+            try {
+                transceive(initCmd(Commands.reset_to_ready, 0));
+            } finally {
+                setSelected(false);
+            }
+        }
     }
 
     /**
-     * 写dsfid。写入以后下次读取就是这个值了
+     * 是否正在使用selected模式
      *
-     * @param DSFID
      * @return
-     * @throws IOException
      */
-    public boolean writeDSFID(byte DSFID) throws IOException {
-        assertConnected();
-        byte[] cmd = initCmd(Commands.write_DSFID, 1);
-        cmd[10] = DSFID;
-        byte res[] = mNfcV.transceive(cmd);
+    public boolean isSelected() {
+        return selected;
+    }
+
+    private void setSelected(boolean selected) {
+        this.selected = selected;
+        header = selected ? 2 : 2 + ID.length;
+        //指令头变了，缓存的帧不能再用
+        frames = new byte[0][];
+        customFrames = new byte[0][];
+    }
+
+    /**
+     * 副载波和速率flags，{@link NfcVUtil#FLAG_SUBCARRIER}、{@link NfcVUtil#FLAG_HIGH_DATA_RATE}的组合
+     *
+     * @param dataRateFlags
+     */
+    public void setDataRateFlags(int dataRateFlags) {
+        this.dataRateFlags = dataRateFlags & (FLAG_SUBCARRIER | FLAG_HIGH_DATA_RATE);
+    }
+
+    public int getDataRateFlags() {
+        return dataRateFlags;
+    }
+
+    /**
+     * 写、锁指令是否设置option flag
+     *
+     * @param optionFlag
+     */
+    public void setOptionFlag(boolean optionFlag) {
+        this.optionFlag = optionFlag;
+    }
+
+    public boolean isOptionFlag() {
+        return optionFlag;
+    }
+
+    public NfcVTransceiver getSession() {
+        return session;
+    }
+
+    /**
+     * 关闭后重新连接，用于超时或无响应以后
+     *
+     * @throws IOException
+     */
+    private void reconnect() throws IOException {
+        reconnectSession();
+        afterConnect();
+    }
+
+    private void reconnectSession() throws IOException {
+        if (metrics == null) {
+            session.reconnect();
+        } else {
+            metrics.reconnect(session);
+        }
+    }
+
+    /**
+     * 发送指令，记录到{@link NfcMetrics}。
+     * 会话空闲关闭后不让会话自己重新连接，先经过{@link #assertConnected()}重新选中；
+     * 选中失败时指令已按selected模式生成，改为addressed模式再发送。检查和发送期间锁住最里层的会话，
+     * 包装了{@link NfcVTraceRecorder}时空闲关闭也不会插在中间
+     */
+    private byte[] transceive(byte[] cmd) throws IOException {
+        synchronized (sessionLock) {
+            if (!session.isConnected()) {
+                assertConnected();
+                cmd = readdress(cmd);
+            }
+            return metrics == null ? session.transceive(cmd) : metrics.transceive(session, cmd);
+        }
+    }
+
+    /**
+     * 去掉{@link NfcVTraceRecorder}的包装，取真正的会话
+     */
+    private static NfcVTransceiver innermost(NfcVTransceiver session) {
+        while (session instanceof NfcVTraceRecorder) {
+            session = ((NfcVTraceRecorder) session).getDelegate();
+        }
+        return session;
+    }
+
+    /**
+     * 当前没有选中时，把selected模式的指令改为addressed模式：去掉selected flag，在指令（自定义指令为厂商代码）之后插入UID
+     */
+    private byte[] readdress(byte[] cmd) {
+        if (selected || (cmd[0] & FLAG_SELECTED) == 0) {
+            return cmd;
+        }
+        int code = cmd[1] & 0xFF;
+        int p = code >= 0xA0 && code <= 0xDF ? 3 : 2;
+        byte[] addressed = new byte[cmd.length + ID.length];
+        System.arraycopy(cmd, 0, addressed, 0, p);
+        System.arraycopy(ID, 0, addressed, p, ID.length);
+        System.arraycopy(cmd, p, addressed, p + ID.length, cmd.length - p);
+        addressed[0] = (byte) ((cmd[0] & ~FLAG_SELECTED) | FLAG_ADDRESSED);
+        return addressed;
+    }
+
+    /**
+     * 关闭连接，之后使用时会重新连接
+     */
+    public void close() {
+        if (metrics == null) {
+            session.close();
+        } else {
+            metrics.close(session);
+        }
+    }
+
+    private void retry() {
+        if (metrics != null) {
+            metrics.retry();
+        }
+    }
+
+    /**
+     * 取得指令帧，数据部分由调用者填写。返回的数组会被下一条同长度的指令复用
+     */
+    byte[] initCmd(Commands command, int dataLength) {
+        int len = header + dataLength;
+        if (len >= frames.length) {
+            frames = Arrays.copyOf(frames, len + 1);
+        }
+        byte[] cmd = frames[len];
+        if (cmd == null) {
+            cmd = new byte[len];
+            if (!selected) {
+                System.arraycopy(ID, 0, cmd, 2, ID.length);
+            }
+            frames[len] = cmd;
+        }
+        int flags = dataRateFlags | (selected ? FLAG_SELECTED : FLAG_ADDRESSED);
+        if (optionFlag && isWrite(command)) {
+            flags |= FLAG_OPTION;
+        }
+        cmd[0] = (byte) flags;
+        cmd[1] = (byte) command.code;
+        return cmd;
+    }
+
+    /**
+     * 取得厂商自定义指令帧：flags、指令、厂商代码、[UID]，参数从header + 1开始，由调用者填写
+     */
+    private byte[] initCustomCmd(int code, int manufacturer, int dataLength) {
+        int len = header + 1 + dataLength;
+        if (len >= customFrames.length) {
+            customFrames = Arrays.copyOf(customFrames, len + 1);
+        }
+        byte[] cmd = customFrames[len];
+        if (cmd == null) {
+            cmd = new byte[len];
+            if (!selected) {
+                System.arraycopy(ID, 0, cmd, 3, ID.length);
+            }
+            customFrames[len] = cmd;
+        }
+        cmd[0] = (byte) (dataRateFlags | (selected ? FLAG_SELECTED : FLAG_ADDRESSED));
+        cmd[1] = (byte) code;
+        cmd[2] = (byte) manufacturer;
+        return cmd;
+    }
+
+    private static boolean isWrite(Commands command) {
+        switch (command) {
+            case write_block:
+            case write_batch:
+            case write_AFI:
+            case lock_AFI:
+            case write_DSFID:
+            case lock_DSFID:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 打印字符数组
+     *
+     * @param bytes
+     * @return
+     */
+    private String byteString(byte[] bytes) {
+        StringBuilder s = new StringBuilder();
+        for (byte b : bytes) {
+            s.append(b).append("_");
+        }
+        return s.toString();
+    }
+
+    /**
+     * 将byte[]转换成16进制字符串
+     *
+     * @param data 要转换成字符串的字节数组
+     * @return 16进制字符串
+     */
+
+    private String printHexString(byte[] data) {
+        char[] chars = new char[data.length * 2];
+        printHex(data, 0, data.length, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * 将byte[]转换成16进制字符，写入调用者提供的数组，不分配内存
+     *
+     * @param data       字节数组
+     * @param offset     起始位置
+     * @param length     字节数
+     * @param dest       目标数组，至少length * 2个字符
+     * @param destOffset 目标数组中的起始位置
+     * @return 写入的字符数
+     */
+    public static int printHex(byte[] data, int offset, int length, char[] dest, int destOffset) {
+        for (int i = 0; i < length; i++) {
+            int b = data[offset + i] & 0xFF;
+            dest[destOffset++] = HEX_DIGITS[b >>> 4];
+            dest[destOffset++] = HEX_DIGITS[b & 0x0F];
+        }
+        return length * 2;
+    }
+
+    /**
+     * 取得标签信息。依次从{@link TagCache}、{@link SystemInfoStore}取，都没有时才发送Get System Information
+     *
+     * @return
+     * @throws IOException
+     */
+    public SystemInfo getSystemInfo() throws IOException {
+        if (infoRmation != null) {
+            return infoRmation;
+        }
+        byte[] raw = cache == null ? null : cache.getInfo(UID);
+        if (raw == null && infoStore != null) {
+            raw = infoStore.get(UID);
+        }
+        SystemInfo info = null;
+        if (raw != null) {
+            try {
+                info = SystemInfo.parse(raw);
+            } catch (IOException e) {
+                //保存的内容有问题，重新读取
+                info = null;
+            }
+        }
+        if (info == null) {
+            assertConnected();
+            byte[] cmd = initCmd(Commands.tag_info, 0);
+            info = SystemInfo.parse(transceive(cmd));
+        }
+        setSystemInfo(info);
+        return info;
+    }
+
+    private void setSystemInfo(SystemInfo info) {
+        infoRmation = info;
+        byte[] raw = info.getRaw();
+        if (cache != null) {
+            cache.putInfo(UID, info.getBlockNumber(), info.getBlockSize(), raw);
+        }
+        if (infoStore != null) {
+            infoStore.put(UID, raw);
+        }
+    }
+
+    /**
+     * 清除已取得和本地保存的系统信息，下次使用时重新读取。block超出范围时会自动调用
+     */
+    public void invalidateSystemInfo() {
+        infoRmation = null;
+        if (cache != null) {
+            cache.invalidate(UID);
+        }
+        if (infoStore != null) {
+            infoStore.remove(UID);
+        }
+    }
+
+    /**
+     * 写AFI、DSFID成功后更新信息和缓存
+     */
+    private void updateInfo(boolean afi, byte value) {
+        SystemInfo info = infoRmation == null ? null : infoRmation.with(afi, value);
+        if (info == null) {
+            invalidateSystemInfo();
+        } else {
+            setSystemInfo(info);
+        }
+    }
+
+    /**
+     * 响应为block不存在时，说明保存的系统信息不对
+     */
+    private void checkOutOfRange(byte[] res) {
+        if (res != null && res.length > 1 && (res[0] & 0x01) != 0 && (res[1] & 0xFF) == ERROR_BLOCK_NOT_AVAILABLE) {
+            invalidateSystemInfo();
+        }
+    }
+
+    /**
+     * 清空数据区
+     *
+     * @return
+     */
+    public boolean clearAllBlocks() throws IOException {
+        //用0清空
+        byte[] bytes = new byte[this.getBlockNumber() * this.getOneBlockSize()];
+        return this.writeBlocks(0, bytes).isSuccess();
+    }
+
+    /**
+     * 读取所有block数据
+     *
+     * @return 失败时返回null
+     * @throws IOException
+     */
+    public byte[] readAllBlocks() throws IOException {
+        return this.readBlocks(0, this.getBlockNumber());
+    }
+
+    /**
+     * 读取所有block信息，返回字符串。
+     * 按内容头部记录的编码解码，不含填充；没有编码头的旧格式按{@link NfcVUtil#CHAR_SET}解码到第一个填充的0为止。
+     * 读取缓冲、解码器和字符缓冲在多次读取间复用，除返回的字符串外不分配内存
+     *
+     * @return
+     * @throws IOException
+     */
+    public String readAll() throws IOException {
+        int space = this.getBlockSpace();
+        if (textBuffer == null || textBuffer.capacity() < space) {
+            textBuffer = ByteBuffer.allocate(space);
+        }
+        textBuffer.clear();
+        if (!readInto(textBuffer, 0, this.getBlockNumber())) {
+            throw new IOException("read blocks failed");
+        }
+        byte[] bytes = textBuffer.array();
+        if (!PayloadCodecs.hasHeader(bytes)) {
+            int end = 0;
+            while (end < space && bytes[end] != 0) {
+                end++;
+            }
+            return decodeText(0, end);
+        }
+        if (PayloadCodecs.getCodecId(bytes) != PayloadCodecs.UTF8.getId()) {
+            return PayloadCodecs.decode(bytes, space);
+        }
+        int total = PayloadCodecs.encodedLength(bytes);
+        if (total < 0 || total > space) {
+            throw new IOException("payload truncated");
+        }
+        int start = PayloadCodecs.getHeaderLength(bytes);
+        return decodeText(start, total - start);
+    }
+
+    /**
+     * 用复用的解码器解码textBuffer中的一段
+     */
+    private String decodeText(int offset, int length) {
+        if (decoder == null) {
+            decoder = Charset.forName(CHAR_SET).newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        int max = (int) Math.ceil(length * (double) decoder.maxCharsPerByte());
+        if (textChars == null || textChars.capacity() < max) {
+            textChars = CharBuffer.allocate(max);
+        }
+        textBuffer.limit(offset + length);
+        textBuffer.position(offset);
+        textChars.clear();
+        decoder.reset();
+        decoder.decode(textBuffer, textChars, true);
+        decoder.flush(textChars);
+        textChars.flip();
+        return textChars.toString();
+    }
+
+    /**
+     * 读取连续的多个block到dst的当前位置，成功后position增加读取的字节数。
+     * dst带数组时直接读入数组，否则经过一个复用的临时数组
+     *
+     * @param dst        目标缓冲，剩余空间至少为count个block
+     * @param firstBlock 起始block编号
+     * @param count      block个数
+     * @return 失败时返回false，dst不变
+     * @throws IOException
+     * @throws IllegalArgumentException
+     */
+    public boolean readInto(ByteBuffer dst, int firstBlock, int count) throws IOException, IllegalArgumentException {
+        int len = count * this.getOneBlockSize();
+        if (dst.remaining() < len) {
+            throw new IllegalArgumentException("buffer too small:" + dst.remaining() + " < " + len);
+        }
+        if (dst.hasArray()) {
+            if (!readBlocks(firstBlock, count, dst.array(), dst.arrayOffset() + dst.position())) {
+                return false;
+            }
+            dst.position(dst.position() + len);
+            return true;
+        }
+        if (scratch == null || scratch.length < len) {
+            scratch = new byte[len];
+        }
+        if (!readBlocks(firstBlock, count, scratch, 0)) {
+            return false;
+        }
+        dst.put(scratch, 0, len);
+        return true;
+    }
+
+    /**
+     * 读取连续的多个block，只返回数据部分（不含状态字节）。
+     * 按一帧能容纳的block数分段使用Read Multiple Blocks(0x23)读取，某段出错或超时时减半重试，
+     * 减到1仍失败时改用Read Single Block(0x20)。
+     * 每种芯片读取成功时的分段大小会记录下来，下次直接使用。
+     * 已缓存的block直接从{@link TagCache}返回，只读取未缓存的部分
+     *
+     * @param firstBlock 起始block编号
+     * @param count      block个数
+     * @return 失败时返回null
+     * @throws IOException
+     * @throws IllegalArgumentException
+     */
+    public byte[] readBlocks(int firstBlock, int count) throws IOException, IllegalArgumentException {
+        if (count < 1 || firstBlock < 0 || firstBlock + count > this.getBlockNumber()) {
+            throw new IllegalArgumentException("blocks out of range:" + firstBlock + "+" + count);
+        }
+        byte result[] = new byte[count * this.getOneBlockSize()];
+        return readBlocks(firstBlock, count, result, 0) ? result : null;
+    }
+
+    /**
+     * 与{@link NfcVUtil#readBlocks(int, int)}相同，数据写入调用者提供的数组，不分配内存
+     *
+     * @param firstBlock 起始block编号
+     * @param count      block个数
+     * @param dest       目标数组，至少count * block长度
+     * @param offset     目标数组中的起始位置
+     * @return 失败时返回false
+     * @throws IOException
+     * @throws IllegalArgumentException
+     */
+    public boolean readBlocks(int firstBlock, int count, byte[] dest, int offset) throws IOException, IllegalArgumentException {
+        if (count < 1 || firstBlock < 0 || firstBlock + count > this.getBlockNumber()) {
+            throw new IllegalArgumentException("blocks out of range:" + firstBlock + "+" + count);
+        }
+        int blockSize = this.getOneBlockSize();
+        if (dest.length < offset + count * blockSize) {
+            throw new IllegalArgumentException("dest too small");
+        }
+        if (cache == null) {
+            return readBlocksFromTag(firstBlock, count, dest, offset);
+        }
+        if (cache.read(UID, firstBlock, count, dest, offset)) {
+            return true;
+        }
+        //首尾已缓存的部分不读取
+        int from = firstBlock;
+        int to = firstBlock + count;
+        while (from < to && cache.isCached(UID, from)) {
+            from++;
+        }
+        while (to > from && cache.isCached(UID, to - 1)) {
+            to--;
+        }
+        if (!readBlocksFromTag(from, to - from, dest, offset + (from - firstBlock) * blockSize)) {
+            return false;
+        }
+        cache.update(UID, getBlockNumber(), blockSize, from, to - from, dest, offset + (from - firstBlock) * blockSize);
+        if (from > firstBlock) {
+            cache.copy(UID, firstBlock, from - firstBlock, dest, offset);
+        }
+        if (to < firstBlock + count) {
+            cache.copy(UID, to, firstBlock + count - to, dest, offset + (to - firstBlock) * blockSize);
+        }
+        return true;
+    }
+
+    private boolean readBlocksFromTag(int firstBlock, int count, byte[] result, int resultOffset) throws IOException {
+        assertConnected();
+        int blockSize = this.getOneBlockSize();
+        //响应：状态 + 数据，block数量最多256
+        int frameLimit = Math.max(1, Math.min(256, (session.getMaxTransceiveLength() - 1) / blockSize));
+        Integer best = READ_BATCH_BLOCKS.get(icType);
+        int chunk = best == null ? frameLimit : Math.min(best, frameLimit);
+        Integer streak = READ_BATCH_SUCCESSES.get(icType);
+        int successes = streak == null ? 0 : streak;
+        int i = 0;
+        while (i < count) {
+            int n = Math.min(chunk, count - i);
+            boolean ok;
+            try {
+                ok = readBatch(firstBlock + i, n, result, resultOffset + i * blockSize);
+            } catch (IOException e) {
+                if (n == 1) {
+                    throw e;
+                }
+                //超时后需要重新连接
+                reconnect();
+                ok = false;
+            }
+            if (ok) {
+                i += n;
+                //按当前分段连续成功多次后加倍，失败时会再减半
+                if (n == chunk && chunk < frameLimit && ++successes >= READ_BATCH_GROW_AFTER) {
+                    chunk = Math.min(frameLimit, chunk * 2);
+                    successes = 0;
+                }
+                continue;
+            }
+            retry();
+            successes = 0;
+            if (n == 1) {
+                //不支持批量读取的芯片
+                if (!readBlock(firstBlock + i, result, resultOffset + i * blockSize)) {
+                    return false;
+                }
+                i++;
+                continue;
+            }
+            chunk = Math.max(1, n / 2);
+        }
+        if (best == null || best != chunk) {
+            READ_BATCH_BLOCKS.put(icType, chunk);
+        }
+        READ_BATCH_SUCCESSES.put(icType, successes);
+        return true;
+    }
+
+    /**
+     * Read Multiple Blocks(0x23)，数据复制到dest的offset处。
+     * 芯片支持时改用厂商的快速读取指令，不支持时用标准指令再读一次，之后同类芯片只用标准指令
+     */
+    private boolean readBatch(int firstBlock, int count, byte[] dest, int offset) throws IOException {
+        int fast = vendor == null ? VendorExtension.NONE : vendor.getFastReadBatch();
+        Boolean supported = FAST_READ_SUPPORT.get(icType);
+        if (fast == VendorExtension.NONE || Boolean.FALSE.equals(supported)) {
+            return readBatch(initCmd(Commands.read_batch, 2), header, firstBlock, count, dest, offset) == BATCH_OK;
+        }
+        int result;
+        try {
+            result = readBatch(initCustomCmd(fast, vendor.getManufacturer(), 2), header + 1, firstBlock, count, dest, offset);
+        } catch (IOException e) {
+            if (supported != null) {
+                throw e;
+            }
+            //部分手机收不到加倍速率的响应，重新连接后用标准指令确认卡片还在
+            reconnect();
+            result = BATCH_UNSUPPORTED;
+        }
+        if (result == BATCH_OK) {
+            if (supported == null) {
+                FAST_READ_SUPPORT.put(icType, true);
+            }
+            return true;
+        }
+        if (result == BATCH_FAILED) {
+            //指令可用，由调用者减小分段
+            return false;
+        }
+        boolean ok = readBatch(initCmd(Commands.read_batch, 2), header, firstBlock, count, dest, offset) == BATCH_OK;
+        if (ok && supported == null) {
+            FAST_READ_SUPPORT.put(icType, false);
+        }
+        return ok;
+    }
+
+    /**
+     * 发送读取多个block的指令，参数从p开始
+     *
+     * @return {@link #BATCH_OK}、{@link #BATCH_FAILED}，指令不支持时返回{@link #BATCH_UNSUPPORTED}
+     */
+    private int readBatch(byte[] cmd, int p, int firstBlock, int count, byte[] dest, int offset) throws IOException {
+        cmd[p] = (byte) firstBlock;
+        //协议中block数量为实际数量减一
+        cmd[p + 1] = (byte) (count - 1);
+        byte res[] = transceive(cmd);
+        checkOutOfRange(res);
+        int len = count * this.getOneBlockSize();
+        if (res == null || res.length < 1 + len || res[0] != 0x00) {
+            return isUnsupported(res) ? BATCH_UNSUPPORTED : BATCH_FAILED;
+        }
+        System.arraycopy(res, 1, dest, offset, len);
+        return BATCH_OK;
+    }
+
+    /**
+     * Read Single Block(0x20)，数据复制到dest的offset处
+     */
+    private boolean readBlock(int block, byte[] dest, int offset) throws IOException {
+        byte cmd[] = initCmd(Commands.read_block, 1);
+        cmd[header] = (byte) block;
+        byte res[] = transceive(cmd);
+        checkOutOfRange(res);
+        int len = this.getOneBlockSize();
+        if (res == null || res.length < 1 + len || res[0] != 0x00) {
+            return false;
+        }
+        System.arraycopy(res, 1, dest, offset, len);
+        return true;
+    }
+
+    /**
+     * 写入一block数据
+     *
+     * @param block block编号
+     * @param data  数据，长度只能是1block长度
+     * @return
+     * @throws IOException
+     * @throws IllegalArgumentException
+     */
+    public boolean write(int block, byte[] data) throws IOException, IllegalArgumentException {
+        if (data == null) {
+            throw new IllegalArgumentException("data must not be null");
+        }
+        if (data.length != this.getOneBlockSize()) {
+            throw new IllegalArgumentException("data length must be one block size:" + this.getOneBlockSize());
+        }
+        assertConnected();
+        if (isLocked(block, 1)) {
+            return false;
+        }
+        return writeBlock(block, data, 0);
+    }
+
+    private boolean writeBlock(int block, byte[] data, int offset) throws IOException {
+        int blockSize = this.getOneBlockSize();
+        byte[] cmd = initCmd(Commands.write_block, 1 + blockSize);
+        cmd[header] = (byte) block;
+        System.arraycopy(data, offset, cmd, header + 1, blockSize);
+        boolean ok = false;
+        try {
+            byte res[] = transceive(cmd);
+            checkOutOfRange(res);
+            ok = res[0] == 0x00;
+            if (!ok && res.length > 1 && (res[1] & 0xFF) == ERROR_BLOCK_LOCKED) {
+                setLocked(block);
+            }
+        } finally {
+            updateCache(block, 1, data, offset, ok);
+        }
+        return ok;
+    }
+
+    /**
+     * 写入后更新缓存，失败时标记为不可信
+     */
+    private void updateCache(int firstBlock, int count, byte[] data, int offset, boolean ok) throws IOException {
+        if (cache == null) {
+            return;
+        }
+        if (ok) {
+            cache.update(UID, getBlockNumber(), getOneBlockSize(), firstBlock, count, data, offset);
+        } else {
+            for (int i = firstBlock; i < firstBlock + count; i++) {
+                cache.markDirty(UID, i);
+            }
+        }
+    }
+
+    /**
+     * 从firstBlock开始写入连续的多个block。
+     * 芯片支持Write Multiple Blocks(0x24)时按{@link NfcVUtil#getWriteBatchBlocks()}分段批量写入，
+     * 否则逐block连续写入。是否支持在每种芯片第一次批量写入时探测
+     *
+     * @param firstBlock 起始block编号
+     * @param data       数据，长度必须是block长度的整数倍
+     * @return 写入、失败的block
+     * @throws IOException
+     * @throws IllegalArgumentException
+     */
+    public WriteReport writeBlocks(int firstBlock, byte[] data) throws IOException, IllegalArgumentException {
+        if (data == null) {
+            throw new IllegalArgumentException("data must not be null");
+        }
+        int blockSize = this.getOneBlockSize();
+        if (data.length % blockSize != 0) {
+            throw new IllegalArgumentException("data length must be a multiple of block size:" + blockSize);
+        }
+        int count = data.length / blockSize;
+        if (firstBlock < 0 || firstBlock + count > this.getBlockNumber()) {
+            throw new IllegalArgumentException("blocks out of range:" + firstBlock + "+" + count);
+        }
+        WriteReport report = new WriteReport();
+        assertConnected();
+        writeBlocks(report, firstBlock, data, 0, count);
+        return report;
+    }
+
+    /**
+     * 与{@link NfcVUtil#writeBlocks(int, byte[])}相同，但只写data中的一段且不生成{@link WriteReport}，不分配内存
+     *
+     * @param firstBlock 起始block编号
+     * @param data       数据
+     * @param offset     数据中的起始位置
+     * @param count      block个数
+     * @return 全部成功时返回true
+     * @throws IOException
+     * @throws IllegalArgumentException
+     */
+    public boolean writeBlocks(int firstBlock, byte[] data, int offset, int count) throws IOException, IllegalArgumentException {
+        if (data == null || offset < 0 || data.length < offset + count * this.getOneBlockSize()) {
+            throw new IllegalArgumentException("data too small");
+        }
+        if (count < 1 || firstBlock < 0 || firstBlock + count > this.getBlockNumber()) {
+            throw new IllegalArgumentException("blocks out of range:" + firstBlock + "+" + count);
+        }
+        assertConnected();
+        //有已锁定的block时不可能全部成功，不发送任何写指令
+        if (isLocked(firstBlock, count)) {
+            return false;
+        }
+        return writeBlocks(null, firstBlock, data, offset, count) == 0;
+    }
+
+    /**
+     * 已锁定的block不发送写指令，直接记为失败，批量写入在已锁定的block处分段
+     *
+     * @param report 为null时不记录写入的block
+     * @return 失败的block数，report不为null时总是0
+     */
+    private int writeBlocks(WriteReport report, int firstBlock, byte[] data, int offset, int count) throws IOException {
+        int failed = 0;
+        int blockSize = this.getOneBlockSize();
+        //一帧：指令头 + 起始block + 数量 + 数据
+        int frameLimit = (session.getMaxTransceiveLength() - header - 2) / blockSize;
+        int chunk = Math.max(1, Math.min(writeBatchBlocks, frameLimit));
+        BitSet locked = lockAware ? getLockedBlocks() : null;
+        int i = 0;
+        while (i < count) {
+            int n = Math.min(chunk, count - i);
+            if (locked != null) {
+                int next = locked.nextSetBit(firstBlock + i);
+                if (next == firstBlock + i) {
+                    if (report == null) {
+                        failed++;
+                    } else {
+                        report.failed(next);
+                    }
+                    i++;
+                    continue;
+                }
+                if (next >= 0 && next < firstBlock + i + n) {
+                    n = next - firstBlock - i;
+                }
+            }
+            Boolean supported = isWriteBatchSupported();
+            if (n > 1 && !Boolean.FALSE.equals(supported)) {
+                int result;
+                try {
+                    result = writeBatch(firstBlock + i, data, offset + i * blockSize, n);
+                } catch (IOException e) {
+                    if (supported != null) {
+                        throw e;
+                    }
+                    //探测时部分芯片对不支持的指令不响应，重新连接后按不支持处理
+                    reconnect();
+                    result = BATCH_UNSUPPORTED;
+                }
+                if (result == BATCH_OK) {
+                    if (supported == null) {
+                        WRITE_BATCH_SUPPORT.put(icType, Boolean.TRUE);
+                    }
+                    for (int j = 0; report != null && j < n; j++) {
+                        report.written(firstBlock + i + j);
+                    }
+                    i += n;
+                    continue;
+                }
+                if (result == BATCH_UNSUPPORTED) {
+                    WRITE_BATCH_SUPPORT.put(icType, Boolean.FALSE);
+                }
+                //其他错误时逐block写入，找出失败的block
+                retry();
+            }
+            for (int j = 0; j < n; j++) {
+                int block = firstBlock + i + j;
+                boolean ok = writeBlock(block, data, offset + (i + j) * blockSize);
+                if (report == null) {
+                    failed += ok ? 0 : 1;
+                } else if (ok) {
+                    report.written(block);
+                } else {
+                    report.failed(block);
+                }
+            }
+            i += n;
+        }
+        return failed;
+    }
+
+    /**
+     * 已锁定的block，每张卡片只读取一次，保存在{@link TagCache}中。
+     * 使用Get Multiple Block Security Status(0x2C)，一帧读取尽量多的block，出错时减半
+     *
+     * @return 芯片不支持时返回null
+     * @throws IOException
+     */
+    public BitSet getLockedBlocks() throws IOException {
+        if (lockedBlocks == null && cache != null) {
+            lockedBlocks = cache.getLocks(UID);
+        }
+        if (lockedBlocks == null && !Boolean.FALSE.equals(BLOCK_SECURITY_SUPPORT.get(icType))) {
+            assertConnected();
+            lockedBlocks = readBlockSecurity();
+            if (lockedBlocks != null && cache != null) {
+                cache.putLocks(UID, getBlockNumber(), getOneBlockSize(), lockedBlocks);
+            }
+        }
+        return lockedBlocks == null ? null : (BitSet) lockedBlocks.clone();
+    }
+
+    /**
+     * 从firstBlock开始的count个block中是否有已锁定的，不知道锁定状态时返回false
+     */
+    private boolean isLocked(int firstBlock, int count) throws IOException {
+        BitSet locked = lockAware ? getLockedBlocks() : null;
+        if (locked == null) {
+            return false;
+        }
+        int next = locked.nextSetBit(firstBlock);
+        return next >= 0 && next < firstBlock + count;
+    }
+
+    /**
+     * 写入时标签返回已锁定，更新锁定状态
+     */
+    private void setLocked(int block) throws IOException {
+        if (lockedBlocks == null) {
+            return;
+        }
+        lockedBlocks.set(block);
+        if (cache != null) {
+            cache.putLocks(UID, getBlockNumber(), getOneBlockSize(), lockedBlocks);
+        }
+    }
+
+    private BitSet readBlockSecurity() throws IOException {
+        int n = getBlockNumber();
+        Boolean supported = BLOCK_SECURITY_SUPPORT.get(icType);
+        BitSet locked = new BitSet(n);
+        //协议中block数量为实际数量减一，最多256
+        int chunk = Math.min(n, 256);
+        int first = 0;
+        while (first < n) {
+            int count = Math.min(chunk, n - first);
+            byte[] cmd = initCmd(Commands.block_security, 2);
+            cmd[header] = (byte) first;
+            cmd[header + 1] = (byte) (count - 1);
+            byte res[];
+            try {
+                res = transceive(cmd);
+            } catch (IOException e) {
+                if (supported != null) {
+                    throw e;
+                }
+                //探测时部分芯片对不支持的指令不响应，重新连接后按不支持处理
+                reconnect();
+                BLOCK_SECURITY_SUPPORT.put(icType, Boolean.FALSE);
+                return null;
+            }
+            //响应：状态字节 + 每block一个安全状态字节，最低位为锁定
+            if (res.length >= 1 + count && res[0] == 0x00) {
+                for (int j = 0; j < count; j++) {
+                    if ((res[1 + j] & 0x01) != 0) {
+                        locked.set(first + j);
+                    }
+                }
+                first += count;
+                continue;
+            }
+            int error = res.length > 1 && (res[0] & 0x01) != 0 ? res[1] & 0xFF : -1;
+            if (error == ERROR_NOT_SUPPORTED || error == ERROR_NOT_RECOGNIZED) {
+                BLOCK_SECURITY_SUPPORT.put(icType, Boolean.FALSE);
+                return null;
+            }
+            if (count == 1) {
+                return null;
+            }
+            retry();
+            chunk = count / 2;
+        }
+        BLOCK_SECURITY_SUPPORT.put(icType, Boolean.TRUE);
+        return locked;
+    }
+
+    /**
+     * Write Multiple Blocks(0x24)
+     *
+     * @return {@link NfcVUtil#BATCH_OK}、{@link NfcVUtil#BATCH_FAILED}或{@link NfcVUtil#BATCH_UNSUPPORTED}
+     */
+    private int writeBatch(int firstBlock, byte[] data, int offset, int count) throws IOException {
+        int len = count * this.getOneBlockSize();
+        byte[] cmd = initCmd(Commands.write_batch, 2 + len);
+        cmd[header] = (byte) firstBlock;
+        //协议中block数量为实际数量减一
+        cmd[header + 1] = (byte) (count - 1);
+        System.arraycopy(data, offset, cmd, header + 2, len);
+        byte res[];
+        try {
+            res = transceive(cmd);
+            checkOutOfRange(res);
+        } catch (IOException e) {
+            updateCache(firstBlock, count, data, offset, false);
+            throw e;
+        }
+        if (res[0] == 0x00) {
+            updateCache(firstBlock, count, data, offset, true);
+            return BATCH_OK;
+        }
+        updateCache(firstBlock, count, data, offset, false);
+        return isUnsupported(res) ? BATCH_UNSUPPORTED : BATCH_FAILED;
+    }
+
+    /**
+     * 响应是否为指令或选项不支持
+     */
+    private static boolean isUnsupported(byte[] res) {
+        if (res == null || res.length < 2 || (res[0] & 0x01) == 0) {
+            return false;
+        }
+        int error = res[1] & 0xFF;
+        return error == ERROR_NOT_SUPPORTED || error == ERROR_NOT_RECOGNIZED || error == ERROR_OPTION_NOT_SUPPORTED;
+    }
+
+    /**
+     * 从第零block开始写入字符串，编码见{@link NfcVUtil#setCodec(PayloadCodec)}。
+     * 只写入与目标内容不同的block，见{@link NfcVUtil#writeString(String, boolean)}
+     *
+     * @param s 字符串
+     * @return
+     * @throws IOException
+     * @throws IllegalArgumentException
+     */
+    public boolean writeString(String s) throws IOException, IllegalArgumentException {
+        return writeString(s, false).isSuccess();
+    }
+
+    /**
+     * 从第零block开始写入字符串。内容前加上编码id和长度，编码见{@link NfcVUtil#setCodec(PayloadCodec)}，
+     * 数字、大写编码等内容占用的block更少，写入指令也更少。
+     * <p>
+     * clearFirst为true时，先清空所有block再写入全部数据（原来的方式）；
+     * 为false时，先读取一次当前内容，逐block与目标内容（不足部分用0填充到整个存储空间）比较，只写入不同的block。
+     * 两种方式写完后标签内容相同，但差异写入的指令数少，写入过程中卡片离开时损坏的block也少
+     *
+     * @param s          字符串
+     * @param clearFirst 是否先清空所有block
+     * @return 写入、跳过、失败的block
+     * @throws IOException
+     * @throws IllegalArgumentException 编码后的内容超过block总空间
+     */
+    public WriteReport writeString(String s, boolean clearFirst) throws IOException, IllegalArgumentException {
+        WriteReport report = new WriteReport();
+        if (s == null || s.length() == 0) {
+            return report;
+        }
+
+        byte[] bytes = PayloadCodecs.encode(s, codec);
+
+        int blockSize = this.getOneBlockSize();
+
+        if (bytes.length > this.getBlockSpace()) {
+            throw new IllegalArgumentException("payload too large:" + bytes.length + " > " + this.getBlockSpace());
+        }
+
+        if (clearFirst) {
+            this.clearAllBlocks();
+
+            int end = (int) Math.ceil((bytes.length + 0.0) / blockSize);
+
+            end = Math.min(end, this.getBlockNumber());
+
+            //截取bytes
+            int len = end * blockSize;
+            //bytes只可能小于等于data长度
+            byte[] data = new byte[len];
+            //将bytes内容复制到data中，多余的位置为空
+            System.arraycopy(bytes, 0, data, 0, Math.min(bytes.length, data.length));
+
+            writeBlocks(report, 0, data, 0, end);
+            return report;
+        }
+
+        //目标内容，多余的位置为0
+        byte[] image = new byte[this.getBlockSpace()];
+        System.arraycopy(bytes, 0, image, 0, Math.min(bytes.length, image.length));
+        writeImage(report, image);
+        return report;
+    }
+
+    /**
+     * 差异写入整个存储空间：先读取一次当前内容，只写入与image不同的block，连续的不同block合并成一段批量写入
+     *
+     * @param image 目标内容，长度为{@link NfcVUtil#getBlockSpace()}
+     * @return 写入、跳过、失败的block
+     * @throws IOException
+     * @throws IllegalArgumentException
+     */
+    public WriteReport writeImage(byte[] image) throws IOException, IllegalArgumentException {
+        if (image == null || image.length != this.getBlockSpace()) {
+            throw new IllegalArgumentException("image length must be block space:" + this.getBlockSpace());
+        }
+        WriteReport report = new WriteReport();
+        writeImage(report, image);
+        return report;
+    }
+
+    private void writeImage(WriteReport report, byte[] image) throws IOException {
+        int blockSize = this.getOneBlockSize();
+        int n = this.getBlockNumber();
+
+        //读取失败时不跳过任何block
+        byte[] current = this.readBlocks(0, n);
+
+        //连续的不同block合并成一段批量写入
+        int runStart = -1;
+        for (int i = 0; i <= n; i++) {
+            boolean changed = i < n && (current == null || !rangeEquals(current, image, i * blockSize, blockSize));
+            if (changed) {
+                if (runStart < 0) {
+                    runStart = i;
+                }
+                continue;
+            }
+            if (runStart >= 0) {
+                writeBlocks(report, runStart, image, runStart * blockSize, i - runStart);
+                runStart = -1;
+            }
+            if (i < n) {
+                report.skipped(i);
+            }
+        }
+    }
+
+    /**
+     * 可恢复的写入，与{@link NfcVUtil#writeString(String, boolean)}差异写入的内容相同。
+     * 写入前按UID记录目标内容，每写入一段记录已确认的block；出现异常时重新连接重试，
+     * 超过{@link NfcVUtil#setMaxWriteRetries(int)}次后保存进度并抛出异常，
+     * 同一张卡片再次接触时用{@link NfcVUtil#resumeWrite()}从第一个未确认的block继续。
+     * 同一张卡片上次未完成的写入内容相同时直接继续
+     *
+     * @param s 字符串
+     * @return 写入、跳过、失败的block
+     * @throws IOException 重试后仍失败，进度已保存
+     * @throws IllegalArgumentException 编码后的内容超过block总空间
+     */
+    public WriteReport writeStringResumable(String s) throws IOException, IllegalArgumentException {
+        if (s == null || s.length() == 0) {
+            return new WriteReport();
+        }
+        byte[] bytes = PayloadCodecs.encode(s, codec);
+        int blockSize = this.getOneBlockSize();
+        int n = this.getBlockNumber();
+        if (bytes.length > n * blockSize) {
+            throw new IllegalArgumentException("payload too large:" + bytes.length + " > " + n * blockSize);
+        }
+        byte[] image = new byte[n * blockSize];
+        System.arraycopy(bytes, 0, image, 0, bytes.length);
+
+        WriteJournal.Entry entry = journal == null ? null : journal.get(UID);
+        if (entry == null || entry.getFirstBlock() != 0 || entry.getHash() != WriteJournal.hash(image)
+                || !Arrays.equals(entry.getImage(), image)) {
+            entry = new WriteJournal.Entry(0, image);
+            //与当前内容相同的block不需要写入
+            byte[] current = this.readBlocks(0, n);
+            for (int i = 0; current != null && i < n; i++) {
+                if (rangeEquals(current, image, i * blockSize, blockSize)) {
+                    entry.confirm(i);
+                }
+            }
+            if (journal != null) {
+                journal.put(UID, entry);
+            }
+        }
+        return resume(entry);
+    }
+
+    /**
+     * 是否有上次中断的写入，见{@link NfcVUtil#resumeWrite()}
+     *
+     * @return
+     */
+    public boolean hasPendingWrite() {
+        return journal != null && journal.get(UID) != null;
+    }
+
+    /**
+     * 继续上次中断的{@link NfcVUtil#writeStringResumable(String)}，只写入未确认的block
+     *
+     * @return 没有中断的写入时返回null
+     * @throws IOException 重试后仍失败，进度已保存
+     */
+    public WriteReport resumeWrite() throws IOException {
+        WriteJournal.Entry entry = journal == null ? null : journal.get(UID);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.getImage().length % getOneBlockSize() != 0
+                || entry.getFirstBlock() + entry.getBlockCount(getOneBlockSize()) > getBlockNumber()) {
+            //与卡片不符，放弃
+            journal.remove(UID);
+            return null;
+        }
+        return resume(entry);
+    }
+
+    /**
+     * 按段写入未确认的block，写入成功的block立即确认。
+     * 标签返回错误的block（如已锁定）不再重试，全部处理完后删除记录；只有异常中断时保存进度
+     */
+    private WriteReport resume(WriteJournal.Entry entry) throws IOException {
+        WriteReport report = new WriteReport();
+        int blockSize = getOneBlockSize();
+        int first = entry.getFirstBlock();
+        int n = entry.getBlockCount(blockSize);
+        byte[] image = entry.getImage();
+        int attempts = 0;
+        boolean finished = false;
+        try {
+            int i = 0;
+            while (i < n) {
+                if (entry.isConfirmed(i)) {
+                    report.skipped(first + i);
+                    i++;
+                    continue;
+                }
+                int end = i + 1;
+                while (end < n && end - i < writeBatchBlocks && !entry.isConfirmed(end)) {
+                    end++;
+                }
+                WriteReport part = new WriteReport();
+                try {
+                    assertConnected();
+                    writeBlocks(part, first + i, image, i * blockSize, end - i);
+                } catch (IOException e) {
+                    //写block是幂等的，重新连接后重写这一段
+                    if (++attempts > maxWriteRetries) {
+                        throw e;
+                    }
+                    retry();
+                    reconnect();
+                    continue;
+                }
+                for (int block : part.getWrittenBlocks()) {
+                    entry.confirm(block - first);
+                    report.written(block);
+                }
+                for (int block : part.getFailedBlocks()) {
+                    report.failed(block);
+                }
+                i = end;
+            }
+            finished = true;
+        } finally {
+            if (journal != null) {
+                if (finished) {
+                    journal.remove(UID);
+                } else {
+                    journal.put(UID, entry);
+                }
+            }
+        }
+        return report;
+    }
+
+    private static boolean rangeEquals(byte[] a, byte[] b, int offset, int length) {
+        if (a.length < offset + length || b.length < offset + length) {
+            return false;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 写afi。写入以后下次读取就是这个值了
+     *
+     * @param AFI
+     * @return
+     * @throws IOException
+     */
+    public boolean writeAFI(byte AFI) throws IOException {
+        assertConnected();
+        byte[] cmd = initCmd(Commands.write_AFI, 1);
+        cmd[header] = AFI;
+        byte res[] = transceive(cmd);
+        if (res[0] == 0x00) {
+            updateInfo(true, AFI);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 锁afi。不清楚锁是什么作用，锁了以后不能改？
+     *
+     * @return
+     * @throws IOException
+     */
+    public boolean lockAFI() throws IOException {
+        assertConnected();
+        byte[] cmd = initCmd(Commands.lock_AFI, 0);
+        byte res[] = transceive(cmd);
         return res[0] == 0x00;
     }
 
+    /**
+     * 写dsfid。写入以后下次读取就是这个值了
+     *
+     * @param DSFID
+     * @return
+     * @throws IOException
+     */
+    public boolean writeDSFID(byte DSFID) throws IOException {
+        assertConnected();
+        byte[] cmd = initCmd(Commands.write_DSFID, 1);
+        cmd[header] = DSFID;
+        byte res[] = transceive(cmd);
+        if (res[0] == 0x00) {
+            updateInfo(false, DSFID);
+            return true;
+        }
+        return false;
+    }
+
     /**
      * 锁dsfid。不清楚锁是什么作用，锁了以后不能改？
      *
@@ -394,9 +1826,119 @@ public class NfcVUtil {
      */
     public boolean lockDSFID() throws IOException {
         assertConnected();
-        byte[] cmd = initCmd(Commands.lock_DSFID);
-        byte res[] = mNfcV.transceive(cmd);
+        byte[] cmd = initCmd(Commands.lock_DSFID, 0);
+        byte res[] = transceive(cmd);
         return res[0] == 0x00;
     }
 
+    /**
+     * 在nfc线程中执行{@link NfcVUtil#readAll()}
+     *
+     * @param callback 回调，可以为null
+     * @return
+     */
+    public Future<String> readAllAsync(NfcExecutor.Callback<String> callback) {
+        return getExecutor().submit(NfcExecutor.Priority.USER, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return readAll();
+            }
+        }, callback);
+    }
+
+    /**
+     * 在nfc线程中执行{@link NfcVUtil#writeString(String, boolean)}
+     *
+     * @param s          字符串
+     * @param clearFirst 是否先清空所有block
+     * @param callback   回调，可以为null
+     * @return
+     */
+    public Future<WriteReport> writeStringAsync(final String s, final boolean clearFirst, NfcExecutor.Callback<WriteReport> callback) {
+        return getExecutor().submit(NfcExecutor.Priority.USER, new Callable<WriteReport>() {
+            @Override
+            public WriteReport call() throws Exception {
+                return writeString(s, clearFirst);
+            }
+        }, callback);
+    }
+
+    /**
+     * 在nfc线程中执行{@link NfcVUtil#writeStringResumable(String)}
+     *
+     * @param s        字符串
+     * @param callback 回调，可以为null
+     * @return
+     */
+    public Future<WriteReport> writeStringResumableAsync(final String s, NfcExecutor.Callback<WriteReport> callback) {
+        return getExecutor().submit(NfcExecutor.Priority.USER, new Callable<WriteReport>() {
+            @Override
+            public WriteReport call() throws Exception {
+                return writeStringResumable(s);
+            }
+        }, callback);
+    }
+
+    /**
+     * 在nfc线程中执行{@link NfcVUtil#writeAFI(byte)}
+     *
+     * @param AFI
+     * @param callback 回调，可以为null
+     * @return
+     */
+    public Future<Boolean> writeAFIAsync(final byte AFI, NfcExecutor.Callback<Boolean> callback) {
+        return getExecutor().submit(NfcExecutor.Priority.USER, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return writeAFI(AFI);
+            }
+        }, callback);
+    }
+
+    /**
+     * 在nfc线程中执行{@link NfcVUtil#lockAFI()}
+     *
+     * @param callback 回调，可以为null
+     * @return
+     */
+    public Future<Boolean> lockAFIAsync(NfcExecutor.Callback<Boolean> callback) {
+        return getExecutor().submit(NfcExecutor.Priority.USER, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return lockAFI();
+            }
+        }, callback);
+    }
+
+    /**
+     * 在nfc线程中执行{@link NfcVUtil#writeDSFID(byte)}
+     *
+     * @param DSFID
+     * @param callback 回调，可以为null
+     * @return
+     */
+    public Future<Boolean> writeDSFIDAsync(final byte DSFID, NfcExecutor.Callback<Boolean> callback) {
+        return getExecutor().submit(NfcExecutor.Priority.USER, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return writeDSFID(DSFID);
+            }
+        }, callback);
+    }
+
+    /**
+     * 在nfc线程中执行{@link NfcVUtil#lockDSFID()}
+     *
+     * @param callback 回调，可以为null
+     * @return
+     */
+    public Future<Boolean> lockDSFIDAsync(NfcExecutor.Callback<Boolean> callback) {
+        return getExecutor().submit(NfcExecutor.Priority.USER, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return lockDSFID();
+            }
+        }, callback);
+    }
+
 }
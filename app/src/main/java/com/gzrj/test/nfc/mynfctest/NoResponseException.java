@@ -0,0 +1,18 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.IOException;
+
+/**
+ * 标签没有响应（超时或已离开）。与其他IOException区分，如盘点时表示该时隙没有标签，而不是冲突
+ * Created by RP_S on 2017/10/31.
+ */
+
+public class NoResponseException extends IOException {
+    public NoResponseException(String message) {
+        super(message);
+    }
+
+    public NoResponseException(Throwable cause) {
+        super(cause);
+    }
+}
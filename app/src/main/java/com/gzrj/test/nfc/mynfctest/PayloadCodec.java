@@ -0,0 +1,42 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.IOException;
+
+/**
+ * 标签内容编码。{@link NfcVUtil#writeString(String, boolean)}写入时在内容前加上编码id和长度，
+ * {@link NfcVUtil#readAll()}按id选择编码解码，见{@link PayloadCodecs}
+ * Created by RP_S on 2017/11/01.
+ */
+
+public interface PayloadCodec {
+    /**
+     * 编码id，写入内容头部，0-7
+     *
+     * @return
+     */
+    int getId();
+
+    /**
+     * 是否能编码该字符串，不能时自动选择编码会跳过
+     *
+     * @param s 字符串
+     * @return
+     */
+    boolean canEncode(String s);
+
+    /**
+     * @param s 字符串
+     * @return 编码后的内容，不含头部
+     * @throws IOException
+     */
+    byte[] encode(String s) throws IOException;
+
+    /**
+     * @param data   数据
+     * @param offset 起始位置
+     * @param length 长度
+     * @return 字符串
+     * @throws IOException 数据无法解码
+     */
+    String decode(byte[] data, int offset, int length) throws IOException;
+}
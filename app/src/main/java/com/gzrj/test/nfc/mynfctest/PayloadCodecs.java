@@ -0,0 +1,466 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 内置的内容编码和编码头。
+ * <p>
+ * 编码后的内容格式：1字节头（0xF8 | 编码id）、长度（1或2字节，最高位为1时还有第二个字节）、编码后的数据。
+ * 0xF8-0xFF在UTF-8中不会出现，所以第一个字节不是编码头时按原来的格式（UTF-8，不足部分用0填充）读取。
+ * 字典编码的数据以1字节字典版本开始，修改字典时用新的版本注册，已写入的卡片仍按原来的版本解码
+ * Created by RP_S on 2017/11/01.
+ */
+
+public class PayloadCodecs {
+    private static final int MAGIC = 0xF8;
+
+    private static final int MAX_CODECS = 8;
+
+    /**
+     * 长度最大值，2字节长度
+     */
+    public static final int MAX_LENGTH = 0x7FFF;
+
+    /**
+     * 字典编码的id，所有版本的字典共用
+     */
+    public static final int DICTIONARY_ID = 3;
+
+    private static final Charset UTF_8 = Charset.forName(NfcVUtil.CHAR_SET);
+
+    /**
+     * UTF-8，任何字符串都能编码
+     */
+    public static final PayloadCodec UTF8 = new PayloadCodec() {
+        @Override
+        public int getId() {
+            return 0;
+        }
+
+        @Override
+        public boolean canEncode(String s) {
+            return true;
+        }
+
+        @Override
+        public byte[] encode(String s) {
+            return s.getBytes(UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] data, int offset, int length) {
+            return new String(data, offset, length, UTF_8);
+        }
+    };
+
+    /**
+     * 数字和少量分隔符，每个字符4位
+     */
+    public static final PayloadCodec BCD = new PackedCodec(1, 4, "0123456789 -.:/");
+
+    /**
+     * 0x20-0x5E的ASCII（数字、大写字母、空格和常用符号），每个字符6位
+     */
+    public static final PayloadCodec SIX_BIT = new PackedCodec(2, 6, sixBitAlphabet());
+
+    /**
+     * 小字典压缩，字典为我们标签内容中常见的片段，版本1。已经写入卡片，不能再修改
+     */
+    public static final DictionaryCodec DICTIONARY = new DictionaryCodec(1, new String[]{
+            "SN-", "LOT-", "2017-", "2018-", "2019-", "REWORK", "0000", "000",
+            "http://", "https://", "www.", ".com", ".cn", "-0", "-1", ";LOT-"
+    });
+
+    private static final PayloadCodec[] CODECS = new PayloadCodec[MAX_CODECS];
+
+    /*
+     * 按版本注册的字典，CODECS中的是编码时使用的版本
+     */
+    private static final Map<Integer, DictionaryCodec> DICTIONARIES = new HashMap<>();
+
+    static {
+        register(UTF8);
+        register(BCD);
+        register(SIX_BIT);
+        register(DICTIONARY);
+    }
+
+    private PayloadCodecs() {
+    }
+
+    /**
+     * 注册编码，id相同时替换原来的编码。
+     * 字典编码替换后作为编码时使用的字典，之前注册的其他版本仍用于解码
+     *
+     * @param codec 编码
+     * @throws IllegalArgumentException id超出范围、{@link #DICTIONARY_ID}不是字典编码或字典版本已注册为不同的字典
+     */
+    public static synchronized void register(PayloadCodec codec) {
+        if (codec.getId() < 0 || codec.getId() >= MAX_CODECS) {
+            throw new IllegalArgumentException("codec id must be 0-" + (MAX_CODECS - 1));
+        }
+        if (codec.getId() == DICTIONARY_ID) {
+            if (!(codec instanceof DictionaryCodec)) {
+                throw new IllegalArgumentException("codec id " + DICTIONARY_ID + " is reserved for dictionaries");
+            }
+            DictionaryCodec dictionary = (DictionaryCodec) codec;
+            DictionaryCodec old = DICTIONARIES.get(dictionary.getVersion());
+            if (old != null && old != dictionary && !old.sameWords(dictionary)) {
+                throw new IllegalArgumentException("dictionary version " + dictionary.getVersion() + " already registered");
+            }
+            DICTIONARIES.put(dictionary.getVersion(), dictionary);
+        }
+        CODECS[codec.getId()] = codec;
+    }
+
+    /**
+     * @param version 字典版本
+     * @return 未注册时返回null
+     */
+    public static synchronized DictionaryCodec getDictionary(int version) {
+        return DICTIONARIES.get(version);
+    }
+
+    public static synchronized PayloadCodec get(int id) {
+        return id < 0 || id >= MAX_CODECS ? null : CODECS[id];
+    }
+
+    /**
+     * 编码并加上编码头
+     *
+     * @param s     字符串
+     * @param codec 编码，为null时选择编码后最短的
+     * @return
+     * @throws IOException
+     * @throws IllegalArgumentException 编码不能编码该字符串或内容过长
+     */
+    public static byte[] encode(String s, PayloadCodec codec) throws IOException, IllegalArgumentException {
+        byte[] data = null;
+        if (codec != null) {
+            if (!codec.canEncode(s)) {
+                throw new IllegalArgumentException("codec " + codec.getId() + " can not encode:" + s);
+            }
+            data = codec.encode(s);
+        } else {
+            PayloadCodec[] codecs;
+            synchronized (PayloadCodecs.class) {
+                codecs = CODECS.clone();
+            }
+            for (PayloadCodec c : codecs) {
+                if (c == null || !c.canEncode(s)) {
+                    continue;
+                }
+                byte[] d = c.encode(s);
+                if (data == null || d.length < data.length) {
+                    data = d;
+                    codec = c;
+                }
+            }
+        }
+        if (data.length > MAX_LENGTH) {
+            throw new IllegalArgumentException("payload too large:" + data.length);
+        }
+        int lengthBytes = data.length < 0x80 ? 1 : 2;
+        byte[] result = new byte[1 + lengthBytes + data.length];
+        result[0] = (byte) (MAGIC | codec.getId());
+        if (lengthBytes == 1) {
+            result[1] = (byte) data.length;
+        } else {
+            result[1] = (byte) (0x80 | (data.length >> 8));
+            result[2] = (byte) data.length;
+        }
+        System.arraycopy(data, 0, result, 1 + lengthBytes, data.length);
+        return result;
+    }
+
+    /**
+     * 是否以编码头开始
+     *
+     * @param data 数据
+     * @return
+     */
+    public static boolean hasHeader(byte[] data) {
+        return data.length > 1 && (data[0] & MAGIC) == MAGIC;
+    }
+
+    /**
+     * 编码头和数据的总长度，用于只读取需要的block
+     *
+     * @param data 至少包含编码头
+     * @return 没有编码头或数据不足时返回-1
+     */
+    public static int encodedLength(byte[] data) {
+        if (!hasHeader(data)) {
+            return -1;
+        }
+        if ((data[1] & 0x80) == 0) {
+            return 2 + data[1];
+        }
+        return data.length < 3 ? -1 : 3 + (((data[1] & 0x7F) << 8) | (data[2] & 0xFF));
+    }
+
+    /**
+     * 按编码头解码，没有编码头时按UTF-8读取全部数据
+     *
+     * @param data 数据
+     * @return
+     * @throws IOException 编码未注册或数据不完整
+     */
+    public static String decode(byte[] data) throws IOException {
+        return decode(data, data.length);
+    }
+
+    /**
+     * 与{@link #decode(byte[])}相同，只使用data的前length个字节
+     *
+     * @param data   数据
+     * @param length 有效长度
+     * @return
+     * @throws IOException 编码未注册或数据不完整
+     */
+    public static String decode(byte[] data, int length) throws IOException {
+        if (!hasHeader(data)) {
+            return new String(data, 0, length, UTF_8);
+        }
+        int total = encodedLength(data);
+        if (total < 0 || total > length) {
+            throw new IOException("payload truncated");
+        }
+        PayloadCodec codec = get(getCodecId(data));
+        if (codec == null) {
+            throw new IOException("unknown codec:" + getCodecId(data));
+        }
+        int headerLength = getHeaderLength(data);
+        return codec.decode(data, headerLength, total - headerLength);
+    }
+
+    /**
+     * @param data 以编码头开始的数据
+     * @return 编码id
+     */
+    static int getCodecId(byte[] data) {
+        return data[0] & 0x07;
+    }
+
+    /**
+     * @param data 以编码头开始的数据
+     * @return 编码头长度，即数据开始的位置
+     */
+    static int getHeaderLength(byte[] data) {
+        return (data[1] & 0x80) == 0 ? 2 : 3;
+    }
+
+    private static String sixBitAlphabet() {
+        StringBuilder sb = new StringBuilder();
+        for (char c = 0x20; c < 0x5F; c++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 定长位编码，字母表之外的最后一个值作为结束标记
+     */
+    private static class PackedCodec implements PayloadCodec {
+        private final int id;
+
+        private final int bits;
+
+        private final String alphabet;
+
+        private final int end;
+
+        PackedCodec(int id, int bits, String alphabet) {
+            if (alphabet.length() >= 1 << bits) {
+                throw new IllegalArgumentException("alphabet too large");
+            }
+            this.id = id;
+            this.bits = bits;
+            this.alphabet = alphabet;
+            this.end = (1 << bits) - 1;
+        }
+
+        @Override
+        public int getId() {
+            return id;
+        }
+
+        @Override
+        public boolean canEncode(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                if (alphabet.indexOf(s.charAt(i)) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public byte[] encode(String s) {
+            int totalBits = s.length() * bits;
+            byte[] result = new byte[(totalBits + 7) / 8];
+            int buffer = 0;
+            int count = 0;
+            int p = 0;
+            for (int i = 0; i < s.length(); i++) {
+                buffer = (buffer << bits) | alphabet.indexOf(s.charAt(i));
+                count += bits;
+                while (count >= 8) {
+                    count -= 8;
+                    result[p++] = (byte) (buffer >> count);
+                }
+            }
+            if (count > 0) {
+                //剩余的位用结束标记填充
+                result[p] = (byte) ((buffer << (8 - count)) | ((1 << (8 - count)) - 1));
+            }
+            return result;
+        }
+
+        @Override
+        public String decode(byte[] data, int offset, int length) throws IOException {
+            StringBuilder sb = new StringBuilder(length * 8 / bits);
+            int buffer = 0;
+            int count = 0;
+            for (int i = offset; i < offset + length; i++) {
+                buffer = (buffer << 8) | (data[i] & 0xFF);
+                count += 8;
+                while (count >= bits) {
+                    count -= bits;
+                    int value = (buffer >> count) & end;
+                    if (value == end) {
+                        return sb.toString();
+                    }
+                    if (value >= alphabet.length()) {
+                        throw new IOException("invalid symbol:" + value);
+                    }
+                    sb.append(alphabet.charAt(value));
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * 小字典压缩：1字节字典版本，之后是UTF-8，其中字典片段替换为一个0x01-0x1F的字节，字符串本身不能含有控制字符。
+     * 解码时按数据中的版本选择已注册的字典
+     */
+    public static class DictionaryCodec implements PayloadCodec {
+        private final int version;
+
+        private final byte[][] words;
+
+        /**
+         * @param version 字典版本，1-255，字典内容不同时版本必须不同
+         * @param words   字典，最多31个，每个至少2字节（UTF-8），较长的片段优先匹配
+         */
+        public DictionaryCodec(int version, String[] words) {
+            if (version < 1 || version > 0xFF) {
+                throw new IllegalArgumentException("dictionary version must be 1-255");
+            }
+            if (words.length > 31) {
+                throw new IllegalArgumentException("at most 31 words");
+            }
+            this.version = version;
+            this.words = new byte[words.length][];
+            for (int i = 0; i < words.length; i++) {
+                this.words[i] = words[i].getBytes(UTF_8);
+                //替换为1字节不会变短，编码时不会使用
+                if (this.words[i].length < 2) {
+                    throw new IllegalArgumentException("word too short:" + words[i]);
+                }
+            }
+        }
+
+        @Override
+        public int getId() {
+            return DICTIONARY_ID;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        @Override
+        public boolean canEncode(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                if (s.charAt(i) < 0x20) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public byte[] encode(String s) {
+            byte[] bytes = s.getBytes(UTF_8);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + 1);
+            out.write(version);
+            int i = 0;
+            while (i < bytes.length) {
+                int match = -1;
+                for (int w = 0; w < words.length; w++) {
+                    if (startsWith(bytes, i, words[w]) && (match < 0 || words[w].length > words[match].length)) {
+                        match = w;
+                    }
+                }
+                if (match >= 0) {
+                    out.write(match + 1);
+                    i += words[match].length;
+                } else {
+                    out.write(bytes[i++]);
+                }
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        public String decode(byte[] data, int offset, int length) throws IOException {
+            if (length < 1) {
+                throw new IOException("missing dictionary version");
+            }
+            int v = data[offset] & 0xFF;
+            if (v != version) {
+                DictionaryCodec dictionary = getDictionary(v);
+                if (dictionary == null) {
+                    throw new IOException("unknown dictionary:" + v);
+                }
+                return dictionary.decode(data, offset, length);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length * 2);
+            for (int i = offset + 1; i < offset + length; i++) {
+                int b = data[i] & 0xFF;
+                if (b == 0 || b > words.length && b < 0x20) {
+                    throw new IOException("invalid symbol:" + b);
+                }
+                if (b < 0x20) {
+                    out.write(words[b - 1], 0, words[b - 1].length);
+                } else {
+                    out.write(b);
+                }
+            }
+            return new String(out.toByteArray(), UTF_8);
+        }
+
+        boolean sameWords(DictionaryCodec other) {
+            return Arrays.deepEquals(words, other.words);
+        }
+
+        private static boolean startsWith(byte[] bytes, int offset, byte[] word) {
+            if (offset + word.length > bytes.length) {
+                return false;
+            }
+            for (int i = 0; i < word.length; i++) {
+                if (bytes[offset + i] != word[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 卡片不在场时准备好的写入，按UID保存，没有UID时写入下一张接触的卡片（{@link #NEXT_TAG}）。
+ * 同一张卡片的多次写入合并为一个最终内容：后写入的字符串覆盖之前的所有写入，按字节写入的数据覆盖在最终内容上。
+ * 卡片接触时用{@link #flush(NfcVUtil)}只写入与卡片当前内容不同的block
+ * Created by RP_S on 2017/11/05.
+ */
+
+public class PendingWriteQueue {
+    public static final String FILE_NAME = "pending_writes.properties";
+
+    /**
+     * 写入下一张接触的卡片
+     */
+    public static final String NEXT_TAG = "*";
+
+    private static final Charset UTF_8 = Charset.forName(NfcVUtil.CHAR_SET);
+
+    private static PendingWriteQueue instance;
+
+    /**
+     * 一张卡片合并后的写入
+     */
+    private static class Entry {
+        /*
+         * 最后写入的字符串，为null时在卡片当前内容上修改
+         */
+        private String text;
+
+        /*
+         * 按字节写入的数据和写入过的位置
+         */
+        private byte[] overlay = new byte[0];
+
+        private BitSet mask = new BitSet();
+
+        void setText(String text) {
+            this.text = text;
+            overlay = new byte[0];
+            mask = new BitSet();
+        }
+
+        void put(int offset, byte[] data) {
+            if (overlay.length < offset + data.length) {
+                overlay = Arrays.copyOf(overlay, offset + data.length);
+            }
+            System.arraycopy(data, 0, overlay, offset, data.length);
+            mask.set(offset, offset + data.length);
+        }
+    }
+
+    private final KeyValueStore store;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+
+    private volatile PayloadCodec codec;
+
+    public PendingWriteQueue(File file) {
+        store = new KeyValueStore(file, 0);
+        load();
+    }
+
+    /**
+     * 初始化进程共享的实例，一般在Activity创建时调用
+     *
+     * @param dir 保存文件的目录
+     */
+    public static synchronized void init(File dir) {
+        if (instance == null) {
+            instance = new PendingWriteQueue(new File(dir, FILE_NAME));
+        }
+    }
+
+    /**
+     * @return 未初始化时返回null
+     */
+    public static synchronized PendingWriteQueue getInstance() {
+        return instance;
+    }
+
+    /**
+     * 字符串的编码，保存时检查长度和写入时都使用这个编码，不使用{@link NfcVUtil#getCodec()}，
+     * 否则检查通过的内容写入时可能超过存储空间
+     *
+     * @param codec 为null时自动选择编码后最短的
+     */
+    public void setCodec(PayloadCodec codec) {
+        this.codec = codec;
+    }
+
+    public PayloadCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * 准备写入字符串，覆盖该卡片之前准备的所有写入。卡片的存储空间未知时只检查能否编码
+     *
+     * @param uid  标签UID，为null时写入下一张卡片
+     * @param text 字符串
+     * @throws IllegalArgumentException 不能编码
+     */
+    public void putString(String uid, String text) throws IllegalArgumentException {
+        putString(uid, text, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 准备写入字符串，覆盖该卡片之前准备的所有写入
+     *
+     * @param uid   标签UID，为null时写入下一张卡片
+     * @param text  字符串
+     * @param space 卡片的存储空间，字节，见{@link NfcVUtil#getBlockSpace()}
+     * @throws IllegalArgumentException 不能编码或编码后超过存储空间，不保存
+     */
+    public void putString(String uid, String text, int space) throws IllegalArgumentException {
+        int length;
+        try {
+            length = PayloadCodecs.encode(text, codec).length;
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        if (length > space) {
+            throw new IllegalArgumentException("payload too large:" + length + " > " + space);
+        }
+        synchronized (this) {
+            String key = key(uid);
+            entry(key).setText(text);
+            save(key);
+        }
+    }
+
+    /**
+     * 准备从offset字节开始写入数据，与之前准备的内容合并
+     *
+     * @param uid    标签UID，为null时写入下一张卡片
+     * @param offset 存储空间中的字节位置
+     * @param data   数据
+     */
+    public synchronized void putBytes(String uid, int offset, byte[] data) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative");
+        }
+        String key = key(uid);
+        entry(key).put(offset, data);
+        save(key);
+    }
+
+    /**
+     * 是否有该卡片可以写入的内容，包括{@link #NEXT_TAG}
+     *
+     * @param uid 标签UID
+     * @return
+     */
+    public synchronized boolean hasPending(String uid) {
+        return entries.containsKey(uid) || entries.containsKey(NEXT_TAG);
+    }
+
+    public synchronized void remove(String uid) {
+        String key = key(uid);
+        if (entries.remove(key) != null) {
+            store.remove(key);
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 写入该卡片准备好的内容，没有时写入{@link #NEXT_TAG}的内容。
+     * 写入完成（包括标签返回错误的block）后删除；出现异常时保留，下次接触时只写入仍然不同的block。
+     * 内容超过卡片的存储空间或不能编码时不写入，删除该内容并返回被拒绝的结果（{@link WriteReport#getRejectReason()}）
+     *
+     * @param util 卡片
+     * @return 没有可写入的内容时返回null
+     * @throws IOException
+     */
+    public WriteReport flush(NfcVUtil util) throws IOException {
+        String key;
+        Entry entry;
+        synchronized (this) {
+            key = entries.containsKey(util.getUID()) ? util.getUID() : NEXT_TAG;
+            entry = entries.get(key);
+        }
+        if (entry == null) {
+            return null;
+        }
+        WriteReport report;
+        try {
+            report = util.writeImage(image(util, entry, codec));
+        } catch (IllegalArgumentException e) {
+            //换一张卡片写入前会一直失败，不保留
+            report = new WriteReport();
+            report.reject(e.getMessage());
+        }
+        synchronized (this) {
+            //写入期间没有新的内容时才删除
+            if (entries.get(key) == entry) {
+                entries.remove(key);
+                store.remove(key);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * 合并后的最终内容
+     */
+    private static byte[] image(NfcVUtil util, Entry entry, PayloadCodec codec) throws IOException {
+        int space = util.getBlockSpace();
+        byte[] image;
+        if (entry.text != null) {
+            byte[] bytes = PayloadCodecs.encode(entry.text, codec);
+            if (bytes.length > space) {
+                throw new IllegalArgumentException("payload too large:" + bytes.length + " > " + space);
+            }
+            image = Arrays.copyOf(bytes, space);
+        } else {
+            image = util.readAllBlocks();
+            if (image == null) {
+                throw new IOException("read blocks failed");
+            }
+        }
+        if (entry.overlay.length > space) {
+            throw new IllegalArgumentException("data out of range:" + entry.overlay.length + " > " + space);
+        }
+        for (int i = entry.mask.nextSetBit(0); i >= 0; i = entry.mask.nextSetBit(i + 1)) {
+            image[i] = entry.overlay[i];
+        }
+        return image;
+    }
+
+    private static String key(String uid) {
+        return uid == null ? NEXT_TAG : uid;
+    }
+
+    private Entry entry(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * 字符串:数据:位置，字符串为-时表示没有；无效的条目删除
+     */
+    private void load() {
+        for (Map.Entry<String, String> e : store.getAll().entrySet()) {
+            String[] parts = e.getValue().split(":", -1);
+            byte[] text = parts.length == 3 && !"-".equals(parts[0]) ? KeyValueStore.parseHex(parts[0]) : null;
+            byte[] overlay = parts.length == 3 ? KeyValueStore.parseHex(parts[1]) : null;
+            byte[] mask = parts.length == 3 ? KeyValueStore.parseHex(parts[2]) : null;
+            if (overlay == null || mask == null || text == null && !"-".equals(parts[0])) {
+                store.remove(e.getKey());
+                continue;
+            }
+            Entry entry = new Entry();
+            entry.text = text == null ? null : new String(text, UTF_8);
+            entry.overlay = overlay;
+            entry.mask = BitSet.valueOf(mask);
+            entries.put(e.getKey(), entry);
+        }
+    }
+
+    /**
+     * 只保存修改的条目
+     */
+    private void save(String key) {
+        Entry entry = entries.get(key);
+        String text = entry.text == null ? "-" : KeyValueStore.printHex(entry.text.getBytes(UTF_8));
+        store.put(key, text + ":" + KeyValueStore.printHex(entry.overlay) + ":" + KeyValueStore.printHex(entry.mask.toByteArray()));
+    }
+}
@@ -0,0 +1,473 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 批量写入：从任务文件读取每张卡片要写入的内容，接触新卡片时自动绑定下一个任务，写入后读回校验，不需要操作界面。
+ * <p>
+ * 任务文件为CSV（每行“编号,内容”或只有内容，#开头的行和表头“id,payload”忽略）
+ * 或JSON（字符串数组、{"id":..,"payload":..}数组，或{"jobs":[..]}）。
+ * 加载时就按{@link PayloadCodecs}编码好所有内容，接触卡片时只需补齐到卡片的存储空间，连续的不同block合并批量写入。
+ * 写入失败、校验不符或卡片中途离开时任务放回队首，由下一张卡片写入；超过{@link #setMaxAttempts(int)}次后不再写入。
+ * 完成的卡片记录到任务文件旁的.done文件（UID,编号,时间），重新加载时跳过已完成的任务，同一张卡片再次接触也不会写入新的任务
+ * Created by RP_S on 2017/11/10.
+ */
+
+public class Provisioner {
+    public static final String DONE_SUFFIX = ".done";
+
+    /**
+     * 默认每个任务最多尝试的次数
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    /**
+     * 计算每分钟卡片数的时间窗口，毫秒
+     */
+    public static final long RATE_WINDOW = 60 * 1000;
+
+    private static final Charset UTF_8 = Charset.forName(NfcVUtil.CHAR_SET);
+
+    /**
+     * 一个任务
+     */
+    public static class Job {
+        private final String id;
+        private final String payload;
+        /*
+         * 预先编码的内容（含编码头）
+         */
+        private final byte[] data;
+        /*
+         * 按最近一张卡片的存储空间补齐的内容，同一批卡片一般相同，不用每次分配
+         */
+        private byte[] image;
+        private int attempts;
+
+        Job(String id, String payload, PayloadCodec codec) throws IOException, IllegalArgumentException {
+            this.id = id;
+            this.payload = payload;
+            this.data = PayloadCodecs.encode(payload, codec);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getPayload() {
+            return payload;
+        }
+
+        /**
+         * 编码后的长度，字节
+         *
+         * @return
+         */
+        public int getLength() {
+            return data.length;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        byte[] image(int blockSpace) {
+            if (image == null || image.length != blockSpace) {
+                image = new byte[blockSpace];
+                System.arraycopy(data, 0, image, 0, data.length);
+            }
+            return image;
+        }
+
+        @Override
+        public String toString() {
+            return id + ":" + payload;
+        }
+    }
+
+    /**
+     * 一张卡片的处理结果
+     */
+    public enum Outcome {
+        /**
+         * 写入并校验成功
+         */
+        WRITTEN,
+        /**
+         * 这张卡片已完成，没有写入
+         */
+        ALREADY_WRITTEN,
+        /**
+         * 写入失败，任务放回队首
+         */
+        REQUEUED,
+        /**
+         * 写入失败且超过尝试次数，或内容超过卡片的存储空间，任务放弃
+         */
+        FAILED,
+        /**
+         * 没有剩余的任务
+         */
+        NO_JOB
+    }
+
+    public static class Result {
+        private final Outcome outcome;
+        private final Job job;
+        private final WriteReport report;
+
+        Result(Outcome outcome, Job job, WriteReport report) {
+            this.outcome = outcome;
+            this.job = job;
+            this.report = report;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        /**
+         * @return {@link Outcome#NO_JOB}时为null
+         */
+        public Job getJob() {
+            return job;
+        }
+
+        /**
+         * @return 没有写入时为null
+         */
+        public WriteReport getReport() {
+            return report;
+        }
+
+        @Override
+        public String toString() {
+            return outcome + (job == null ? "" : " " + job.getId()) + (report == null ? "" : " " + report);
+        }
+    }
+
+    private final ArrayDeque<Job> queue = new ArrayDeque<>();
+
+    private final List<Job> failed = new ArrayList<>();
+
+    /*
+     * 已完成的卡片UID到任务编号
+     */
+    private final Map<String, String> done = new HashMap<>();
+
+    private final File doneFile;
+
+    private final int total;
+
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    /*
+     * 最近完成的时间，纳秒，用于计算每分钟卡片数
+     */
+    private final ArrayDeque<Long> completions = new ArrayDeque<>();
+
+    /**
+     * @param jobs     任务，按顺序写入
+     * @param doneFile 完成记录，已记录的任务跳过，为null时不记录
+     * @throws IOException 读取完成记录失败
+     */
+    public Provisioner(List<Job> jobs, File doneFile) throws IOException {
+        this.doneFile = doneFile;
+        Set<String> doneIds = new HashSet<>();
+        if (doneFile != null && doneFile.isFile()) {
+            for (String[] row : readCsv(new InputStreamReader(new FileInputStream(doneFile), UTF_8))) {
+                if (row.length >= 2) {
+                    //第二列之后为完成时间
+                    int time = row[1].lastIndexOf(',');
+                    String id = time < 0 ? row[1] : row[1].substring(0, time);
+                    done.put(row[0], id);
+                    doneIds.add(id);
+                }
+            }
+        }
+        for (Job job : jobs) {
+            if (!doneIds.contains(job.getId())) {
+                queue.add(job);
+            }
+        }
+        total = jobs.size();
+    }
+
+    /**
+     * 加载任务文件，.json结尾的按JSON读取，其他按CSV读取，完成记录为同名的.done文件
+     *
+     * @param file  任务文件
+     * @param codec 编码，为null时每条内容选择编码后最短的
+     * @return
+     * @throws IOException              读取失败或JSON格式错误
+     * @throws IllegalArgumentException 某条内容不能编码
+     */
+    public static Provisioner load(File file, PayloadCodec codec) throws IOException, IllegalArgumentException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), UTF_8);
+        List<Job> jobs = file.getName().endsWith(".json") ? parseJson(reader, codec) : parseCsv(reader, codec);
+        return new Provisioner(jobs, new File(file.getPath() + DONE_SUFFIX));
+    }
+
+    /**
+     * 读取CSV任务：两列以上时第一列为编号、其余为内容，只有一列时编号为行号
+     *
+     * @param reader 读取后关闭
+     * @param codec  编码
+     * @return
+     * @throws IOException
+     * @throws IllegalArgumentException 某条内容不能编码
+     */
+    public static List<Job> parseCsv(Reader reader, PayloadCodec codec) throws IOException, IllegalArgumentException {
+        List<Job> jobs = new ArrayList<>();
+        int line = 0;
+        for (String[] row : readCsv(reader)) {
+            line++;
+            if (line == 1 && row.length >= 2 && "id".equalsIgnoreCase(row[0]) && "payload".equalsIgnoreCase(row[1])) {
+                continue;
+            }
+            jobs.add(row.length >= 2 ? new Job(row[0], row[1], codec) : new Job(String.valueOf(line), row[0], codec));
+        }
+        return jobs;
+    }
+
+    /**
+     * 读取JSON任务
+     *
+     * @param reader 读取后关闭
+     * @param codec  编码
+     * @return
+     * @throws IOException              读取失败或格式错误
+     * @throws IllegalArgumentException 某条内容不能编码
+     */
+    public static List<Job> parseJson(Reader reader, PayloadCodec codec) throws IOException, IllegalArgumentException {
+        StringBuilder sb = new StringBuilder();
+        try {
+            char[] buffer = new char[4096];
+            int n;
+            while ((n = reader.read(buffer)) > 0) {
+                sb.append(buffer, 0, n);
+            }
+        } finally {
+            reader.close();
+        }
+        List<Job> jobs = new ArrayList<>();
+        try {
+            String json = sb.toString().trim();
+            JSONArray array = json.startsWith("{") ? new JSONObject(json).getJSONArray("jobs") : new JSONArray(json);
+            for (int i = 0; i < array.length(); i++) {
+                Object item = array.get(i);
+                if (item instanceof JSONObject) {
+                    JSONObject job = (JSONObject) item;
+                    jobs.add(new Job(job.optString("id", String.valueOf(i + 1)), job.getString("payload"), codec));
+                } else {
+                    jobs.add(new Job(String.valueOf(i + 1), String.valueOf(item), codec));
+                }
+            }
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        return jobs;
+    }
+
+    /**
+     * 按行读取，空行和#开头的行忽略；每行在第一个逗号处分为两列，双引号括起的列去掉引号
+     */
+    private static List<String[]> readCsv(Reader reader) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        BufferedReader in = new BufferedReader(reader);
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                int comma = line.indexOf(',');
+                if (comma < 0) {
+                    rows.add(new String[]{unquote(line)});
+                } else {
+                    rows.add(new String[]{unquote(line.substring(0, comma)), unquote(line.substring(comma + 1))});
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return rows;
+    }
+
+    private static String unquote(String s) {
+        String t = s.trim();
+        if (t.length() >= 2 && t.startsWith("\"") && t.endsWith("\"")) {
+            return t.substring(1, t.length() - 1).replace("\"\"", "\"");
+        }
+        return t;
+    }
+
+    /**
+     * @param maxAttempts 每个任务最多尝试的次数，至少为1
+     */
+    public synchronized void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * 为接触的卡片写入下一个任务并读回校验，在{@link NfcExecutor}的线程中调用。
+     * 写入失败或卡片离开时任务放回队首
+     *
+     * @param util 已连接的卡片
+     * @return 处理结果
+     * @throws IOException 卡片中途离开，任务已放回队首
+     */
+    public Result provision(NfcVUtil util) throws IOException {
+        String uid = util.getUID();
+        Job job;
+        synchronized (this) {
+            if (done.containsKey(uid)) {
+                return new Result(Outcome.ALREADY_WRITTEN, null, null);
+            }
+            job = queue.poll();
+            if (job == null) {
+                return new Result(Outcome.NO_JOB, null, null);
+            }
+            job.attempts++;
+        }
+        WriteReport report;
+        boolean ok;
+        try {
+            int blockSpace = util.getBlockSpace();
+            if (job.getLength() > blockSpace) {
+                //换卡片也放不下
+                synchronized (this) {
+                    failed.add(job);
+                }
+                return new Result(Outcome.FAILED, job, null);
+            }
+            byte[] image = job.image(blockSpace);
+            report = util.writeImage(image);
+            ok = report.isSuccess() && verify(util, image, job.getLength());
+        } catch (IOException | RuntimeException e) {
+            //卡片中途离开，可能只写了一部分
+            requeue(job);
+            throw e;
+        }
+        if (!ok) {
+            return new Result(requeue(job), job, report);
+        }
+        complete(uid, job);
+        return new Result(Outcome.WRITTEN, job, report);
+    }
+
+    /**
+     * 不经过缓存读回内容所在的block
+     */
+    private static boolean verify(NfcVUtil util, byte[] image, int length) throws IOException {
+        if (util.getCache() != null) {
+            util.getCache().invalidateBlocks(util.getUID());
+        }
+        int blockSize = util.getOneBlockSize();
+        int count = Math.max(1, (length + blockSize - 1) / blockSize);
+        byte[] written = util.readBlocks(0, count);
+        if (written == null) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (written[i] != image[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized Outcome requeue(Job job) {
+        if (job.attempts >= maxAttempts) {
+            failed.add(job);
+            return Outcome.FAILED;
+        }
+        queue.addFirst(job);
+        return Outcome.REQUEUED;
+    }
+
+    private void complete(String uid, Job job) throws IOException {
+        synchronized (this) {
+            done.put(uid, job.getId());
+            completions.add(System.nanoTime());
+        }
+        if (doneFile != null) {
+            OutputStream out = new FileOutputStream(doneFile, true);
+            try {
+                out.write((uid + "," + job.getId() + "," + System.currentTimeMillis() + "\n").getBytes(UTF_8));
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * 最近一分钟完成的卡片数
+     *
+     * @return
+     */
+    public synchronized int getTagsPerMinute() {
+        long since = System.nanoTime() - RATE_WINDOW * 1000000;
+        while (!completions.isEmpty() && completions.peek() < since) {
+            completions.poll();
+        }
+        return completions.size();
+    }
+
+    /**
+     * 剩余的任务数
+     *
+     * @return
+     */
+    public synchronized int getRemaining() {
+        return queue.size();
+    }
+
+    /**
+     * 已完成的卡片数，包括之前加载时已完成的
+     *
+     * @return
+     */
+    public synchronized int getDone() {
+        return done.size();
+    }
+
+    /**
+     * 放弃的任务
+     *
+     * @return
+     */
+    public synchronized List<Job> getFailed() {
+        return Collections.unmodifiableList(new ArrayList<>(failed));
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "done:" + done.size() + "/" + total + ", remaining:" + queue.size() + ", failed:" + failed.size()
+                + ", tags/min:" + getTagsPerMinute();
+    }
+}
@@ -0,0 +1,583 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * 扫描记录：每次读取的UID、时间、系统信息和存储内容，按UID查询最近一次扫描。
+ * <p>
+ * 记录只追加写入内存映射的分段文件（每段{@link #SEGMENT_SIZE}字节），内存中保存UID到位置的索引，查询只读取一条记录。
+ * {@link #append(String, long, byte[], byte[])}立即返回，记录在后台线程中按批写入；写入前的记录也能查询到。
+ * 被同一UID的新记录覆盖的旧记录超过一半时，后台把仍有效的记录复制到新的分段并删除旧分段。
+ * 打开时扫描所有分段重建索引，校验失败的记录（如写入时断电）及其之后的内容忽略
+ * <p>
+ * 记录格式：0x5C、记录总长度（4字节）、UID长度、UID、时间（8字节）、系统信息长度（2字节）、系统信息、内容长度（4字节）、内容、CRC32
+ * Created by RP_S on 2017/11/09.
+ */
+
+public class ScanLog {
+    public static final String DIR_NAME = "scans";
+
+    public static final int SEGMENT_SIZE = 1 << 20;
+
+    /**
+     * 第一条记录之后等待多久写入，毫秒，期间的记录一起写入
+     */
+    public static final long BATCH_DELAY = 200;
+
+    /**
+     * 积累多少条记录时立即写入
+     */
+    public static final int MAX_BATCH = 64;
+
+    private static final int MAGIC = 0x5C;
+
+    /*
+     * 除UID、系统信息、内容以外的长度：magic、总长度、UID长度、时间、系统信息长度、内容长度、CRC
+     */
+    private static final int OVERHEAD = 1 + 4 + 1 + 8 + 2 + 4 + 4;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static ScanLog instance;
+
+    /**
+     * 一次扫描
+     */
+    public static class Entry {
+        private final String uid;
+        private final long time;
+        private final byte[] info;
+        private final byte[] image;
+
+        Entry(String uid, long time, byte[] info, byte[] image) {
+            this.uid = uid;
+            this.time = time;
+            this.info = info;
+            this.image = image;
+        }
+
+        public String getUID() {
+            return uid;
+        }
+
+        /**
+         * 扫描时间，毫秒
+         *
+         * @return
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * Get System Information的原始响应，见{@link SystemInfo#getRaw()}
+         *
+         * @return
+         */
+        public byte[] getInfo() {
+            return info.clone();
+        }
+
+        public SystemInfo getSystemInfo() throws IOException {
+            return SystemInfo.parse(info);
+        }
+
+        /**
+         * 存储内容
+         *
+         * @return
+         */
+        public byte[] getImage() {
+            return image.clone();
+        }
+
+        int size() {
+            return OVERHEAD + uid.length() + info.length + image.length;
+        }
+    }
+
+    /**
+     * 一个分段文件，整个映射到内存
+     */
+    private static class Segment {
+        private final int id;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buffer;
+        /*
+         * 下一条记录写入的位置
+         */
+        private int end;
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private final File dir;
+
+    /*
+     * 分段按id排列，最后一个为当前写入的分段
+     */
+    private volatile List<Segment> segments = new ArrayList<>();
+
+    /*
+     * UID到位置：高32位为分段id，低32位为段内偏移
+     */
+    private volatile Map<String, Long> index = new ConcurrentHashMap<>();
+
+    /*
+     * 已追加还未写入的记录
+     */
+    private final Map<String, Entry> pending = new ConcurrentHashMap<>();
+
+    private final List<Entry> batch = new ArrayList<>();
+
+    /*
+     * 压缩时切换分段和索引，读取时加读锁
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "scan-log");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    /*
+     * 所有记录和被覆盖的记录的字节数，只在写入线程中修改
+     */
+    private volatile long totalBytes;
+
+    private volatile long garbageBytes;
+
+    private final Runnable flushBatch = new Runnable() {
+        @Override
+        public void run() {
+            List<Entry> entries;
+            synchronized (batch) {
+                entries = new ArrayList<>(batch);
+                batch.clear();
+            }
+            if (entries.isEmpty()) {
+                return;
+            }
+            try {
+                write(entries);
+                if (garbageBytes > SEGMENT_SIZE / 2 && garbageBytes * 2 > totalBytes) {
+                    compact();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+
+    /**
+     * 打开目录中的扫描记录，重建索引
+     *
+     * @param dir 目录，不存在时创建
+     * @throws IOException
+     */
+    public ScanLog(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        load();
+    }
+
+    /**
+     * 初始化进程共享的实例，一般在Activity创建时调用
+     *
+     * @param filesDir 应用的文件目录，记录保存在其中的{@link #DIR_NAME}目录
+     */
+    public static synchronized void init(File filesDir) {
+        if (instance == null) {
+            try {
+                instance = new ScanLog(new File(filesDir, DIR_NAME));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return 未初始化或打开失败时返回null
+     */
+    public static synchronized ScanLog getInstance() {
+        return instance;
+    }
+
+    /**
+     * 追加一次扫描，立即返回，在后台线程中写入
+     *
+     * @param uid   标签UID
+     * @param time  扫描时间，毫秒
+     * @param info  系统信息原始响应
+     * @param image 存储内容
+     */
+    public void append(String uid, long time, byte[] info, byte[] image) {
+        Entry entry = new Entry(uid, time, info.clone(), image.clone());
+        if (uid.length() > 0xFF || info.length > 0xFFFF || entry.size() > SEGMENT_SIZE) {
+            throw new IllegalArgumentException("entry too large:" + entry.size());
+        }
+        pending.put(uid, entry);
+        int size;
+        synchronized (batch) {
+            batch.add(entry);
+            size = batch.size();
+        }
+        if (size == 1) {
+            writer.schedule(flushBatch, BATCH_DELAY, TimeUnit.MILLISECONDS);
+        } else if (size == MAX_BATCH) {
+            writer.execute(flushBatch);
+        }
+    }
+
+    /**
+     * 最近一次扫描
+     *
+     * @param uid 标签UID
+     * @return 没有记录时返回null
+     */
+    public Entry get(String uid) {
+        Entry entry = pending.get(uid);
+        if (entry != null) {
+            return entry;
+        }
+        lock.readLock().lock();
+        try {
+            Long location = index.get(uid);
+            if (location == null) {
+                return null;
+            }
+            return read(segment((int) (location >>> 32)), (int) (long) location);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 有记录的标签数
+     *
+     * @return
+     */
+    public int size() {
+        int n = index.size();
+        for (String uid : pending.keySet()) {
+            if (!index.containsKey(uid)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 写入所有已追加的记录，等待完成
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        try {
+            writer.submit(flushBatch).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * 立即压缩，等待完成
+     *
+     * @throws IOException
+     */
+    public void compactNow() throws IOException {
+        flush();
+        try {
+            writer.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * 所有记录和其中被覆盖的记录的字节数
+     *
+     * @return {总字节数, 被覆盖的字节数}
+     */
+    public long[] getUsage() {
+        return new long[]{totalBytes, garbageBytes};
+    }
+
+    private void load() throws IOException {
+        File[] files = dir.listFiles();
+        List<Integer> ids = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith("scan-") && name.endsWith(".log")) {
+                    try {
+                        ids.add(Integer.parseInt(name.substring(5, name.length() - 4)));
+                    } catch (NumberFormatException e) {
+                        //不是记录文件
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+        List<Segment> loaded = new ArrayList<>();
+        //重建索引时按已打开的分段计算被覆盖的记录
+        segments = loaded;
+        for (int id : ids) {
+            Segment segment = new Segment(id, segmentFile(id));
+            loaded.add(segment);
+            int p = 0;
+            Entry entry;
+            while ((entry = read(segment, p)) != null) {
+                index(entry.getUID(), segment.id, p, entry.size());
+                p += entry.size();
+            }
+            segment.end = p;
+        }
+        if (loaded.isEmpty()) {
+            loaded.add(new Segment(0, segmentFile(0)));
+        }
+    }
+
+    private File segmentFile(int id) {
+        return new File(dir, "scan-" + id + ".log");
+    }
+
+    private Segment segment(int id) {
+        for (Segment segment : segments) {
+            if (segment.id == id) {
+                return segment;
+            }
+        }
+        throw new IllegalStateException("no segment " + id);
+    }
+
+    /**
+     * 读取一条记录，校验失败时返回null
+     */
+    private static Entry read(Segment segment, int p) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        if (p + OVERHEAD > SEGMENT_SIZE || (buffer.get(p) & 0xFF) != MAGIC) {
+            return null;
+        }
+        int length = buffer.getInt(p + 1);
+        if (length < OVERHEAD || p + length > SEGMENT_SIZE) {
+            return null;
+        }
+        byte[] record = new byte[length];
+        buffer.position(p);
+        buffer.get(record);
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, length - 4);
+        ByteBuffer r = ByteBuffer.wrap(record);
+        if ((int) crc.getValue() != r.getInt(length - 4)) {
+            return null;
+        }
+        r.position(5);
+        byte[] uid = new byte[r.get() & 0xFF];
+        r.get(uid);
+        long time = r.getLong();
+        byte[] info = new byte[r.getShort() & 0xFFFF];
+        r.get(info);
+        int imageLength = r.getInt();
+        if (imageLength < 0 || imageLength != r.remaining() - 4) {
+            return null;
+        }
+        byte[] image = new byte[imageLength];
+        r.get(image);
+        return new Entry(new String(uid, ASCII), time, info, image);
+    }
+
+    /**
+     * 在写入线程中按顺序写入，写完一批后同步到文件
+     */
+    private void write(List<Entry> entries) throws IOException {
+        Segment last = null;
+        for (Entry entry : entries) {
+            Segment segment = current(entry.size());
+            int p = append(segment, entry);
+            index(entry.getUID(), segment.id, p, entry.size());
+            //写入期间又追加了同一UID时保留新的
+            pending.remove(entry.getUID(), entry);
+            if (last != null && last != segment) {
+                last.buffer.force();
+            }
+            last = segment;
+        }
+        if (last != null) {
+            last.buffer.force();
+        }
+    }
+
+    /**
+     * 当前分段，放不下时新建一个
+     */
+    private Segment current(int size) throws IOException {
+        List<Segment> list = segments;
+        Segment segment = list.get(list.size() - 1);
+        if (segment.end + size <= SEGMENT_SIZE) {
+            return segment;
+        }
+        Segment next = new Segment(segment.id + 1, segmentFile(segment.id + 1));
+        List<Segment> updated = new ArrayList<>(list);
+        updated.add(next);
+        segments = updated;
+        return next;
+    }
+
+    private static int append(Segment segment, Entry entry) {
+        byte[] uid = entry.getUID().getBytes(ASCII);
+        int size = entry.size();
+        ByteBuffer record = ByteBuffer.allocate(size);
+        record.put((byte) MAGIC);
+        record.putInt(size);
+        record.put((byte) uid.length);
+        record.put(uid);
+        record.putLong(entry.time);
+        record.putShort((short) entry.info.length);
+        record.put(entry.info);
+        record.putInt(entry.image.length);
+        record.put(entry.image);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, size - 4);
+        record.putInt((int) crc.getValue());
+        int p = segment.end;
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(p);
+        buffer.put(record.array());
+        segment.end = p + size;
+        return p;
+    }
+
+    /**
+     * 更新索引，被覆盖的旧记录计入垃圾
+     */
+    private void index(String uid, int segment, int offset, int size) {
+        Long previous = index.put(uid, ((long) segment << 32) | (offset & 0xFFFFFFFFL));
+        totalBytes += size;
+        if (previous != null) {
+            Segment old = segment((int) (previous >>> 32));
+            garbageBytes += old.buffer.getInt((int) (long) previous + 1);
+        }
+    }
+
+    /**
+     * 把有效的记录复制到新的分段，切换后删除旧分段
+     *
+     * @throws IOException 写入新分段失败时不切换；删除旧分段失败时已切换
+     */
+    private void compact() throws IOException {
+        List<Segment> old = segments;
+        Map<String, Long> oldIndex = index;
+        int nextId = old.get(old.size() - 1).id + 1;
+        List<Segment> fresh = new ArrayList<>();
+        Map<String, Long> freshIndex = new ConcurrentHashMap<>();
+        Segment segment = new Segment(nextId++, segmentFile(nextId - 1));
+        fresh.add(segment);
+        long total = 0;
+        for (Map.Entry<String, Long> e : oldIndex.entrySet()) {
+            long location = e.getValue();
+            Entry entry = read(segment(old, (int) (location >>> 32)), (int) location);
+            if (entry == null) {
+                continue;
+            }
+            if (segment.end + entry.size() > SEGMENT_SIZE) {
+                segment.buffer.force();
+                segment = new Segment(nextId++, segmentFile(nextId - 1));
+                fresh.add(segment);
+            }
+            int p = append(segment, entry);
+            freshIndex.put(e.getKey(), ((long) segment.id << 32) | (p & 0xFFFFFFFFL));
+            total += entry.size();
+        }
+        segment.buffer.force();
+        lock.writeLock().lock();
+        try {
+            segments = fresh;
+            index = freshIndex;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        totalBytes = total;
+        garbageBytes = 0;
+        //删除失败的旧分段下次打开时按顺序加载，记录被新分段覆盖，只是多占空间
+        List<File> undeleted = new ArrayList<>();
+        for (Segment s : old) {
+            s.close();
+            if (!s.file.delete()) {
+                undeleted.add(s.file);
+            }
+        }
+        if (!undeleted.isEmpty()) {
+            throw new IOException("cannot delete " + undeleted);
+        }
+    }
+
+    private static Segment segment(List<Segment> list, int id) {
+        for (Segment segment : list) {
+            if (segment.id == id) {
+                return segment;
+            }
+        }
+        throw new IllegalStateException("no segment " + id);
+    }
+
+    @Override
+    public String toString() {
+        return "tags:" + size() + ", segments:" + segments.size() + ", bytes:" + totalBytes + ", garbage:" + garbageBytes;
+    }
+}
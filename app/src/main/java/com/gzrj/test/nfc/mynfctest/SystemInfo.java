@@ -0,0 +1,134 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.IOException;
+
+/**
+ * Get System Information(0x2B)的响应，按info flags解析，标签没有返回的字段不解析
+ * Created by RP_S on 2017/10/28.
+ */
+
+public class SystemInfo {
+    public static final int FLAG_DSFID = 0x01;
+
+    public static final int FLAG_AFI = 0x02;
+
+    public static final int FLAG_MEMORY_SIZE = 0x04;
+
+    public static final int FLAG_IC_REFERENCE = 0x08;
+
+    /*
+     * 原始响应，包括状态字节
+     */
+    private final byte[] raw;
+
+    private final int flags;
+
+    /*
+     * DSFID、AFI在响应中的位置，没有时为-1
+     */
+    private int dsfidOffset = -1;
+
+    private int afiOffset = -1;
+
+    private int blockNumber;
+
+    private int blockSize;
+
+    private int icReference = -1;
+
+    private SystemInfo(byte[] raw) throws IOException {
+        this.raw = raw;
+        this.flags = raw[1] & 0xFF;
+        //状态 + flags + UID
+        int p = 10;
+        if ((flags & FLAG_DSFID) != 0) {
+            dsfidOffset = p++;
+        }
+        if ((flags & FLAG_AFI) != 0) {
+            afiOffset = p++;
+        }
+        if ((flags & FLAG_MEMORY_SIZE) == 0) {
+            throw new IOException("memory size not reported");
+        }
+        if (raw.length < p + 2) {
+            throw new IOException("system information too short");
+        }
+        blockNumber = (raw[p] & 0xFF) + 1;
+        blockSize = (raw[p + 1] & 0x1F) + 1;
+        p += 2;
+        if ((flags & FLAG_IC_REFERENCE) != 0 && raw.length > p) {
+            icReference = raw[p] & 0xFF;
+        }
+    }
+
+    /**
+     * 解析响应
+     *
+     * @param res Get System Information的响应
+     * @return
+     * @throws IOException 标签返回错误或者没有返回存储大小
+     */
+    public static SystemInfo parse(byte[] res) throws IOException {
+        if (res == null || res.length < 10 || (res[0] & 0x01) != 0) {
+            throw new IOException("get system information failed");
+        }
+        return new SystemInfo(res.clone());
+    }
+
+    /**
+     * 修改DSFID或AFI后的信息，标签没有返回该字段时返回null
+     */
+    SystemInfo with(boolean afi, byte value) {
+        int offset = afi ? afiOffset : dsfidOffset;
+        if (offset < 0) {
+            return null;
+        }
+        byte[] copy = raw.clone();
+        copy[offset] = value;
+        try {
+            return new SystemInfo(copy);
+        } catch (IOException e) {
+            //与原响应格式相同，不会失败
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public byte[] getRaw() {
+        return raw.clone();
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean hasDSFID() {
+        return dsfidOffset >= 0;
+    }
+
+    public byte getDSFID() {
+        return hasDSFID() ? raw[dsfidOffset] : 0;
+    }
+
+    public boolean hasAFI() {
+        return afiOffset >= 0;
+    }
+
+    public byte getAFI() {
+        return hasAFI() ? raw[afiOffset] : 0;
+    }
+
+    public int getBlockNumber() {
+        return blockNumber;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return 标签没有返回时为-1
+     */
+    public int getICReference() {
+        return icReference;
+    }
+}
@@ -0,0 +1,82 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.File;
+
+/**
+ * 按UID保存标签的系统信息到本地文件，再次遇到同一张卡片时不需要发送Get System Information。
+ * 修改在{@link #WRITE_DELAY}后在后台线程中一起写入，读取卡片时不写文件
+ * Created by RP_S on 2017/10/28.
+ */
+
+public class SystemInfoStore {
+    public static final String FILE_NAME = "system_info.properties";
+
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    /**
+     * 延迟写入的时间，毫秒
+     */
+    public static final long WRITE_DELAY = 2000;
+
+    private static SystemInfoStore instance;
+
+    private final KeyValueStore store;
+
+    public SystemInfoStore(File file, int maxEntries) {
+        store = new KeyValueStore(file, maxEntries);
+        store.setWriteDelay(WRITE_DELAY);
+    }
+
+    /**
+     * 初始化进程共享的实例，一般在Activity创建时调用
+     *
+     * @param dir 保存文件的目录
+     */
+    public static synchronized void init(File dir) {
+        if (instance == null) {
+            instance = new SystemInfoStore(new File(dir, FILE_NAME), DEFAULT_MAX_ENTRIES);
+        }
+    }
+
+    /**
+     * @return 未初始化时返回null，即不保存
+     */
+    public static synchronized SystemInfoStore getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param uid 标签UID
+     * @return 没有保存或保存的内容无效时返回null
+     */
+    public byte[] get(String uid) {
+        String hex = store.get(uid);
+        if (hex == null) {
+            return null;
+        }
+        byte[] info = KeyValueStore.parseHex(hex);
+        if (info == null) {
+            store.remove(uid);
+        }
+        return info;
+    }
+
+    public void put(String uid, byte[] info) {
+        store.put(uid, KeyValueStore.printHex(info));
+    }
+
+    public void remove(String uid) {
+        store.remove(uid);
+    }
+
+    public int size() {
+        return store.size();
+    }
+
+    /**
+     * 立即写入还未写入的修改，一般在Activity暂停时调用
+     */
+    public void flush() {
+        store.flush();
+    }
+}
@@ -1,21 +1,49 @@
 package com.gzrj.test.nfc.mynfctest;
 
+import android.util.Base64;
 import android.webkit.JavascriptInterface;
+import android.webkit.WebView;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
 
 /**
- * 通过此类进行java与js的交互
+ * 通过此类进行java与js的交互。
+ * MainActivity以"TP"注册到页面中（assets/index.html），每次读到卡片后{@link #setNfcVUtil(NfcVUtil)}
  * Created by RP_S on 2017/10/17.
  */
 
 public class TP {
+    /*
+     * 回调函数名，只允许js标识符和点，避免拼接脚本时注入
+     */
+    private static final Pattern CALLBACK_NAME = Pattern.compile("[A-Za-z_$][\\w$]*(\\.[A-Za-z_$][\\w$]*)*");
+
     private String data;
 
-    private NfcVUtil nfcVUtil;
+    /*
+     * 主线程设置，js在其他线程中读取
+     */
+    private volatile NfcVUtil nfcVUtil;
+
+    private WebView webView;
 
     public TP() {
 
     }
 
+    /**
+     * @param webView 批量操作完成后回调其中的js
+     */
+    public TP(WebView webView) {
+        this.webView = webView;
+    }
+
     @JavascriptInterface
     public void setData(String data) {
         this.data = data;
@@ -34,4 +62,175 @@ public class TP {
     public void setNfcVUtil(NfcVUtil nfcVUtil) {
         this.nfcVUtil = nfcVUtil;
     }
+
+    public void setWebView(WebView webView) {
+        this.webView = webView;
+    }
+
+    /**
+     * 批量执行操作，立即返回，在nfc线程中依次执行，完成后在主线程调用js函数callback(result)。
+     * <p>
+     * 请求：{"id":1,"ops":[{"op":"readBlocks","first":0,"count":4},{"op":"readField","id":3},...]}，
+     * 支持的op：info、readAll、readBlocks(first,count)、readField(id)、writeString(value)、
+     * writeBlocks(first,data为base64)、writeField(id,value)、writeAFI(value)、writeDSFID(value)。
+     * <p>
+     * 结果：{"id":1,"uid":"...","data":"base64","results":[{"op":"readBlocks","ok":true,"offset":0,"length":16},...]}，
+     * 所有二进制数据拼接在data中，各结果用offset、length引用；失败的操作为{"ok":false,"error":"..."}，不影响后面的操作。
+     * webView为null时结果保存到{@link TP#getData()}
+     *
+     * @param request  请求json
+     * @param callback js函数名，如nfc.onResult
+     */
+    @JavascriptInterface
+    public void execute(final String request, final String callback) {
+        if (callback == null || !CALLBACK_NAME.matcher(callback).matches()) {
+            throw new IllegalArgumentException("invalid callback:" + callback);
+        }
+        final NfcVUtil util = nfcVUtil;
+        if (util == null) {
+            deliver(callback, error(request, "no tag"));
+            return;
+        }
+        util.getExecutor().submit(NfcExecutor.Priority.USER, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return run(util, request);
+            }
+        }, new NfcExecutor.Callback<String>() {
+            @Override
+            public void onSuccess(String result) {
+                deliver(callback, result);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                deliver(callback, error(request, String.valueOf(e)));
+            }
+        });
+    }
+
+    /**
+     * 在主线程调用js，json本身就是合法的js表达式
+     */
+    private void deliver(String callback, String result) {
+        if (webView == null) {
+            data = result;
+            return;
+        }
+        final String script = callback + "(" + result + ")";
+        webView.post(new Runnable() {
+            @Override
+            public void run() {
+                webView.evaluateJavascript(script, null);
+            }
+        });
+    }
+
+    private static String error(String request, String message) {
+        try {
+            JSONObject result = new JSONObject();
+            result.put("id", new JSONObject(request).opt("id"));
+            result.put("ok", false);
+            result.put("error", message);
+            return result.toString();
+        } catch (Exception e) {
+            //请求不是合法的json
+            return "{\"ok\":false,\"error\":" + JSONObject.quote(message) + "}";
+        }
+    }
+
+    /**
+     * 在nfc线程中执行一批操作
+     */
+    private static String run(NfcVUtil util, String request) throws JSONException {
+        JSONObject req = new JSONObject(request);
+        JSONArray ops = req.getJSONArray("ops");
+        JSONArray results = new JSONArray();
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        NfcVRecordStore store = null;
+        for (int i = 0; i < ops.length(); i++) {
+            JSONObject op = ops.getJSONObject(i);
+            String name = op.optString("op", "");
+            JSONObject result = new JSONObject();
+            result.put("op", name);
+            try {
+                switch (name) {
+                    case "info":
+                        result.put("blockNumber", util.getBlockNumber());
+                        result.put("blockSize", util.getOneBlockSize());
+                        result.put("afi", util.getAFI());
+                        result.put("dsfid", util.getDSFID());
+                        result.put("ok", true);
+                        break;
+                    case "readAll":
+                        result.put("value", util.readAll());
+                        result.put("ok", true);
+                        break;
+                    case "readBlocks": {
+                        byte[] bytes = util.readBlocks(op.getInt("first"), op.getInt("count"));
+                        putBinary(result, blob, bytes);
+                        break;
+                    }
+                    case "readField": {
+                        if (store == null) {
+                            store = new NfcVRecordStore(util);
+                        }
+                        byte[] bytes = store.get(op.getInt("id"));
+                        putBinary(result, blob, bytes);
+                        break;
+                    }
+                    case "writeString":
+                        result.put("ok", util.writeString(op.getString("value"), false).isSuccess());
+                        break;
+                    case "writeBlocks": {
+                        byte[] bytes = Base64.decode(op.getString("data"), Base64.DEFAULT);
+                        result.put("ok", util.writeBlocks(op.getInt("first"), bytes).isSuccess());
+                        break;
+                    }
+                    case "writeField": {
+                        if (store == null) {
+                            store = new NfcVRecordStore(util);
+                        }
+                        store.putString(op.getInt("id"), op.getString("value"));
+                        result.put("ok", true);
+                        break;
+                    }
+                    case "writeAFI":
+                        result.put("ok", util.writeAFI((byte) op.getInt("value")));
+                        break;
+                    case "writeDSFID":
+                        result.put("ok", util.writeDSFID((byte) op.getInt("value")));
+                        break;
+                    default:
+                        result.put("ok", false);
+                        result.put("error", "unknown op:" + name);
+                        break;
+                }
+            } catch (Exception e) {
+                result.put("ok", false);
+                result.put("error", String.valueOf(e));
+            }
+            results.put(result);
+        }
+        JSONObject response = new JSONObject();
+        response.put("id", req.opt("id"));
+        response.put("uid", util.getUID());
+        response.put("data", Base64.encodeToString(blob.toByteArray(), Base64.NO_WRAP));
+        response.put("results", results);
+        return response.toString();
+    }
+
+    /**
+     * 二进制结果追加到blob，结果中记录位置和长度
+     */
+    private static void putBinary(JSONObject result, ByteArrayOutputStream blob, byte[] bytes) throws JSONException {
+        if (bytes == null) {
+            result.put("ok", false);
+            return;
+        }
+        result.put("offset", blob.size());
+        result.put("length", bytes.length);
+        blob.write(bytes, 0, bytes.length);
+        result.put("ok", true);
+    }
 }
@@ -0,0 +1,337 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 进程内的标签内容缓存，以UID为key，保存最近读写过的block内容和系统信息。
+ * 同一次操作中重复读取同一张卡片时，已经读过的block直接从缓存返回，不再通过射频读取。
+ * 卡片离开期间可能被其他读写器修改，每次接触卡片时先{@link #invalidateBlocks(String)}，差异写入比较的是本次接触读到的内容；
+ * 系统信息和锁定状态在卡片不变时一直有效，接触时保留。
+ * 按条目数和字节数做LRU淘汰
+ * Created by RP_S on 2017/10/24.
+ */
+
+public class TagCache {
+    public static final int DEFAULT_MAX_ENTRIES = 64;
+
+    public static final long DEFAULT_MAX_BYTES = 256 * 1024;
+
+    private static TagCache instance;
+
+    /**
+     * 单个标签的缓存
+     */
+    private static class Entry {
+        private final int blockNumber;
+
+        private final int blockSize;
+
+        private final byte[] image;
+
+        /*
+         * 内容已知的block
+         */
+        private final BitSet valid;
+
+        /*
+         * 本地修改后未确认写入标签的block，内容不可信
+         */
+        private final BitSet dirty;
+
+        private byte[] info;
+
+        /*
+         * 已锁定的block，为null时未知
+         */
+        private BitSet locks;
+
+        Entry(int blockNumber, int blockSize) {
+            this.blockNumber = blockNumber;
+            this.blockSize = blockSize;
+            this.image = new byte[blockNumber * blockSize];
+            this.valid = new BitSet(blockNumber);
+            this.dirty = new BitSet(blockNumber);
+        }
+
+        boolean isCached(int block) {
+            return valid.get(block) && !dirty.get(block);
+        }
+
+        long bytes() {
+            return image.length + (info == null ? 0 : info.length) + (locks == null ? 0 : (locks.size() + 7) / 8);
+        }
+    }
+
+    private final int maxEntries;
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long bytes;
+
+    private long hitCount;
+
+    private long missCount;
+
+    private long evictionCount;
+
+    public TagCache(int maxEntries, long maxBytes) {
+        if (maxEntries < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("maxEntries and maxBytes must be greater than 0");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 进程共享的缓存
+     *
+     * @return
+     */
+    public static synchronized TagCache getInstance() {
+        if (instance == null) {
+            instance = new TagCache(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+        }
+        return instance;
+    }
+
+    /**
+     * 取缓存的系统信息
+     *
+     * @param uid 标签UID
+     * @return 没有缓存时返回null
+     */
+    public synchronized byte[] getInfo(String uid) {
+        Entry entry = entries.get(uid);
+        if (entry == null || entry.info == null) {
+            return null;
+        }
+        return entry.info.clone();
+    }
+
+    /**
+     * 保存系统信息
+     *
+     * @param uid         标签UID
+     * @param blockNumber block个数
+     * @param blockSize   一个block长度
+     * @param info        系统信息
+     */
+    public synchronized void putInfo(String uid, int blockNumber, int blockSize, byte[] info) {
+        Entry entry = entry(uid, blockNumber, blockSize);
+        bytes -= entry.bytes();
+        entry.info = info == null ? null : info.clone();
+        bytes += entry.bytes();
+        trim();
+    }
+
+    /**
+     * 取缓存的block锁定状态
+     *
+     * @param uid 标签UID
+     * @return 没有缓存时返回null
+     */
+    public synchronized BitSet getLocks(String uid) {
+        Entry entry = entries.get(uid);
+        if (entry == null || entry.locks == null) {
+            return null;
+        }
+        return (BitSet) entry.locks.clone();
+    }
+
+    /**
+     * 保存block锁定状态。锁定不可撤销，卡片不变时一直有效
+     *
+     * @param uid         标签UID
+     * @param blockNumber block个数
+     * @param blockSize   一个block长度
+     * @param locks       已锁定的block
+     */
+    public synchronized void putLocks(String uid, int blockNumber, int blockSize, BitSet locks) {
+        Entry entry = entry(uid, blockNumber, blockSize);
+        bytes -= entry.bytes();
+        entry.locks = (BitSet) locks.clone();
+        bytes += entry.bytes();
+        trim();
+    }
+
+    /**
+     * block是否已缓存且内容可信
+     *
+     * @param uid   标签UID
+     * @param block block编号
+     * @return
+     */
+    public synchronized boolean isCached(String uid, int block) {
+        Entry entry = entries.get(uid);
+        return entry != null && block >= 0 && block < entry.blockNumber && entry.isCached(block);
+    }
+
+    /**
+     * 从缓存读取连续的block，全部命中时复制到dest并返回true，同时计入命中或未命中次数
+     *
+     * @param uid        标签UID
+     * @param firstBlock 起始block编号
+     * @param count      block个数
+     * @param dest       目标数组
+     * @param offset     目标数组中的起始位置
+     * @return 全部命中返回true
+     */
+    public synchronized boolean read(String uid, int firstBlock, int count, byte[] dest, int offset) {
+        if (copy(uid, firstBlock, count, dest, offset)) {
+            hitCount++;
+            return true;
+        }
+        missCount++;
+        return false;
+    }
+
+    /**
+     * 与{@link TagCache#read(String, int, int, byte[], int)}相同，但不计入命中次数
+     */
+    synchronized boolean copy(String uid, int firstBlock, int count, byte[] dest, int offset) {
+        Entry entry = entries.get(uid);
+        if (entry == null || firstBlock < 0 || firstBlock + count > entry.blockNumber) {
+            return false;
+        }
+        for (int i = firstBlock; i < firstBlock + count; i++) {
+            if (!entry.isCached(i)) {
+                return false;
+            }
+        }
+        System.arraycopy(entry.image, firstBlock * entry.blockSize, dest, offset, count * entry.blockSize);
+        return true;
+    }
+
+    /**
+     * 读取或写入成功后更新缓存
+     *
+     * @param uid         标签UID
+     * @param blockNumber 标签block个数
+     * @param blockSize   一个block长度
+     * @param firstBlock  起始block编号
+     * @param count       block个数
+     * @param data        数据
+     * @param offset      数据中的起始位置
+     */
+    public synchronized void update(String uid, int blockNumber, int blockSize, int firstBlock, int count, byte[] data, int offset) {
+        Entry entry = entry(uid, blockNumber, blockSize);
+        System.arraycopy(data, offset, entry.image, firstBlock * blockSize, count * blockSize);
+        entry.valid.set(firstBlock, firstBlock + count);
+        entry.dirty.clear(firstBlock, firstBlock + count);
+    }
+
+    /**
+     * 写入失败或结果未知时，标记block内容不可信，下次从标签读取
+     *
+     * @param uid   标签UID
+     * @param block block编号
+     */
+    public synchronized void markDirty(String uid, int block) {
+        Entry entry = entries.get(uid);
+        if (entry != null && block >= 0 && block < entry.blockNumber) {
+            entry.dirty.set(block);
+        }
+    }
+
+    /**
+     * 内容不可信的block
+     *
+     * @param uid 标签UID
+     * @return
+     */
+    public synchronized BitSet getDirtyBlocks(String uid) {
+        Entry entry = entries.get(uid);
+        return entry == null ? new BitSet() : (BitSet) entry.dirty.clone();
+    }
+
+    /**
+     * 丢弃一个标签缓存的block内容，保留系统信息和锁定状态。每次接触卡片时调用
+     *
+     * @param uid 标签UID
+     */
+    public synchronized void invalidateBlocks(String uid) {
+        Entry entry = entries.get(uid);
+        if (entry != null) {
+            entry.valid.clear();
+            entry.dirty.clear();
+        }
+    }
+
+    /**
+     * 移除一个标签的缓存，包括系统信息和锁定状态
+     *
+     * @param uid 标签UID
+     */
+    public synchronized void invalidate(String uid) {
+        Entry entry = entries.remove(uid);
+        if (entry != null) {
+            bytes -= entry.bytes();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * 取得或新建条目，block个数或长度变化时重建
+     */
+    private Entry entry(String uid, int blockNumber, int blockSize) {
+        Entry entry = entries.get(uid);
+        if (entry != null && entry.blockNumber == blockNumber && entry.blockSize == blockSize) {
+            return entry;
+        }
+        if (entry != null) {
+            bytes -= entry.bytes();
+        }
+        entry = new Entry(blockNumber, blockSize);
+        entries.put(uid, entry);
+        bytes += entry.bytes();
+        trim();
+        return entry;
+    }
+
+    /**
+     * 淘汰最久未使用的条目，至少保留最近使用的一个
+     */
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (entries.size() > 1 && (entries.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            bytes -= eldest.getValue().bytes();
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "entries:" + entries.size() + ", bytes:" + bytes + ", hit:" + hitCount + ", miss:" + missCount + ", evicted:" + evictionCount;
+    }
+}
@@ -0,0 +1,102 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 芯片厂商的自定义指令。自定义指令帧为flags、指令、厂商代码、[UID]、参数，只有该厂商的芯片响应。
+ * 按UID中E0之后的厂商代码（低字节在前时为第6字节）选择，没有注册的厂商或芯片不支持时使用标准指令
+ * Created by RP_S on 2017/11/06.
+ */
+
+public class VendorExtension {
+    /**
+     * 没有对应的自定义指令
+     */
+    public static final int NONE = -1;
+
+    /**
+     * NXP ICODE SLIX/SLIX2/DNA：Fast Read Multiple Blocks(0xC3)、Fast Inventory Read(0xA1)，
+     * 参数与标准指令相同，标签的响应速率加倍
+     */
+    public static final VendorExtension NXP = new VendorExtension("NXP", 0x04,
+            NfcVUtil.Commands.fast_read_batch.getCode(), NfcVUtil.Commands.fast_inventory_read.getCode());
+
+    private static final Map<Integer, VendorExtension> EXTENSIONS = new ConcurrentHashMap<>();
+
+    static {
+        register(NXP);
+    }
+
+    private final String name;
+
+    private final int manufacturer;
+
+    private final int fastReadBatch;
+
+    private final int fastInventoryRead;
+
+    /**
+     * @param name              厂商名
+     * @param manufacturer      ISO 7816-6厂商代码
+     * @param fastReadBatch     与Read Multiple Blocks(0x23)参数、响应相同的快速读取指令，没有时为{@link #NONE}
+     * @param fastInventoryRead 单时隙盘点同时读取block的指令，响应为flags、UID、数据，没有时为{@link #NONE}
+     */
+    public VendorExtension(String name, int manufacturer, int fastReadBatch, int fastInventoryRead) {
+        this.name = name;
+        this.manufacturer = manufacturer & 0xFF;
+        this.fastReadBatch = fastReadBatch;
+        this.fastInventoryRead = fastInventoryRead;
+    }
+
+    /**
+     * 注册，替换同一厂商代码的扩展
+     *
+     * @param extension
+     */
+    public static void register(VendorExtension extension) {
+        EXTENSIONS.put(extension.manufacturer, extension);
+    }
+
+    /**
+     * @param manufacturer 厂商代码
+     * @return 没有注册时返回null
+     */
+    public static VendorExtension get(int manufacturer) {
+        return EXTENSIONS.get(manufacturer & 0xFF);
+    }
+
+    /**
+     * 按UID取得厂商的扩展
+     *
+     * @param id 标签UID，低字节在前
+     * @return UID不是E0开头或厂商没有注册时返回null
+     */
+    public static VendorExtension forUID(byte[] id) {
+        if (id == null || id.length != 8 || (id[7] & 0xFF) != 0xE0) {
+            return null;
+        }
+        return get(id[6]);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getManufacturer() {
+        return manufacturer;
+    }
+
+    public int getFastReadBatch() {
+        return fastReadBatch;
+    }
+
+    public int getFastInventoryRead() {
+        return fastInventoryRead;
+    }
+
+    @Override
+    public String toString() {
+        return name + "(0x" + Integer.toHexString(manufacturer) + ")";
+    }
+}
@@ -0,0 +1,180 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.File;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * 按UID保存未完成的写入：目标内容、内容校验值和已确认写入的block。
+ * 写入过程中卡片离开时保存进度，同一张卡片再次接触时从第一个未确认的block继续，见{@link NfcVUtil#resumeWrite()}
+ * Created by RP_S on 2017/11/04.
+ */
+
+public class WriteJournal {
+    public static final String FILE_NAME = "write_journal.properties";
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private static WriteJournal instance;
+
+    /**
+     * 一张卡片未完成的写入
+     */
+    public static class Entry {
+        private final int firstBlock;
+
+        private final byte[] image;
+
+        private final long hash;
+
+        /*
+         * 已确认写入的block，相对firstBlock
+         */
+        private final BitSet confirmed;
+
+        /**
+         * @param firstBlock 起始block编号
+         * @param image      目标内容，长度为block长度的整数倍
+         */
+        public Entry(int firstBlock, byte[] image) {
+            this(firstBlock, image.clone(), new BitSet());
+        }
+
+        private Entry(int firstBlock, byte[] image, BitSet confirmed) {
+            this.firstBlock = firstBlock;
+            this.image = image;
+            this.hash = hash(image);
+            this.confirmed = confirmed;
+        }
+
+        public int getFirstBlock() {
+            return firstBlock;
+        }
+
+        /**
+         * 目标内容，不能修改
+         *
+         * @return
+         */
+        byte[] getImage() {
+            return image;
+        }
+
+        public long getHash() {
+            return hash;
+        }
+
+        public int getBlockCount(int blockSize) {
+            return image.length / blockSize;
+        }
+
+        /**
+         * @param block 相对firstBlock的编号
+         * @return
+         */
+        public boolean isConfirmed(int block) {
+            return confirmed.get(block);
+        }
+
+        void confirm(int block) {
+            confirmed.set(block);
+        }
+
+        /**
+         * 未确认的block数
+         *
+         * @param blockSize 一个block长度
+         * @return
+         */
+        public int getPendingCount(int blockSize) {
+            return getBlockCount(blockSize) - confirmed.cardinality();
+        }
+    }
+
+    private final KeyValueStore store;
+
+    public WriteJournal(File file, int maxEntries) {
+        store = new KeyValueStore(file, maxEntries);
+    }
+
+    /**
+     * 初始化进程共享的实例，一般在Activity创建时调用
+     *
+     * @param dir 保存文件的目录
+     */
+    public static synchronized void init(File dir) {
+        if (instance == null) {
+            instance = new WriteJournal(new File(dir, FILE_NAME), DEFAULT_MAX_ENTRIES);
+        }
+    }
+
+    /**
+     * @return 未初始化时返回null，即不记录
+     */
+    public static synchronized WriteJournal getInstance() {
+        return instance;
+    }
+
+    /**
+     * 内容校验值
+     *
+     * @param image 内容
+     * @return
+     */
+    public static long hash(byte[] image) {
+        CRC32 crc = new CRC32();
+        crc.update(image, 0, image.length);
+        return crc.getValue();
+    }
+
+    /**
+     * @param uid 标签UID
+     * @return 没有未完成的写入时返回null，保存的内容无效时删除并返回null
+     */
+    public Entry get(String uid) {
+        String value = store.get(uid);
+        if (value == null) {
+            return null;
+        }
+        Entry entry = parse(value);
+        if (entry == null) {
+            store.remove(uid);
+        }
+        return entry;
+    }
+
+    public void put(String uid, Entry entry) {
+        byte[] bits = entry.confirmed.toByteArray();
+        store.put(uid, entry.firstBlock + ":" + KeyValueStore.printHex(entry.image) + ":" + KeyValueStore.printHex(bits));
+    }
+
+    public void remove(String uid) {
+        store.remove(uid);
+    }
+
+    public int size() {
+        return store.size();
+    }
+
+    /**
+     * 起始block:目标内容:已确认block
+     */
+    private static Entry parse(String value) {
+        String[] parts = value.split(":", -1);
+        if (parts.length != 3) {
+            return null;
+        }
+        int firstBlock;
+        try {
+            firstBlock = Integer.parseInt(parts[0]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        byte[] image = KeyValueStore.parseHex(parts[1]);
+        byte[] bits = KeyValueStore.parseHex(parts[2]);
+        if (firstBlock < 0 || image == null || image.length == 0 || bits == null) {
+            return null;
+        }
+        return new Entry(firstBlock, image, BitSet.valueOf(bits));
+    }
+}
@@ -0,0 +1,92 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 一次写入操作的结果：实际写入、跳过（内容未变化）以及写入失败的block编号
+ * Created by RP_S on 2017/10/23.
+ */
+
+public class WriteReport {
+    private final List<Integer> writtenBlocks = new ArrayList<>();
+
+    private final List<Integer> skippedBlocks = new ArrayList<>();
+
+    private final List<Integer> failedBlocks = new ArrayList<>();
+
+    /*
+     * 整个写入被拒绝的原因，如内容超过存储空间
+     */
+    private String rejected;
+
+    void written(int block) {
+        writtenBlocks.add(block);
+    }
+
+    void skipped(int block) {
+        skippedBlocks.add(block);
+    }
+
+    void failed(int block) {
+        failedBlocks.add(block);
+    }
+
+    void reject(String reason) {
+        rejected = reason;
+    }
+
+    /**
+     * 实际发送了写指令且成功的block
+     *
+     * @return
+     */
+    public List<Integer> getWrittenBlocks() {
+        return Collections.unmodifiableList(writtenBlocks);
+    }
+
+    /**
+     * 内容与目标一致，没有发送写指令的block
+     *
+     * @return
+     */
+    public List<Integer> getSkippedBlocks() {
+        return Collections.unmodifiableList(skippedBlocks);
+    }
+
+    /**
+     * 写指令返回失败的block
+     *
+     * @return
+     */
+    public List<Integer> getFailedBlocks() {
+        return Collections.unmodifiableList(failedBlocks);
+    }
+
+    /**
+     * 没有写入任何block就被拒绝的原因
+     *
+     * @return 没有被拒绝时为null
+     */
+    public String getRejectReason() {
+        return rejected;
+    }
+
+    /**
+     * 没有被拒绝且没有失败的block时为true
+     *
+     * @return
+     */
+    public boolean isSuccess() {
+        return rejected == null && failedBlocks.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        if (rejected != null) {
+            return "rejected:" + rejected;
+        }
+        return "written:" + writtenBlocks.size() + ", skipped:" + skippedBlocks.size() + ", failed:" + failedBlocks.size();
+    }
+}
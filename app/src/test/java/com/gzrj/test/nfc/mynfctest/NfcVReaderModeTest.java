@@ -0,0 +1,183 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import android.nfc.NfcAdapter;
+import android.nfc.Tag;
+import android.nfc.tech.NfcV;
+import android.os.Bundle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * reader mode的flags和参数、标签交付，以及回调时间到tap_reader统计的路径
+ * Created by RP_S on 2017/11/08.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class NfcVReaderModeTest {
+    /*
+     * android.nfc.tech.TagTechnology.NFC_V
+     */
+    private static final int NFC_V = 5;
+
+    private final List<Tag> tags = new ArrayList<>();
+
+    private final List<Long> times = new ArrayList<>();
+
+    private NfcMetrics metrics;
+
+    private NfcVReaderMode readerMode;
+
+    @Before
+    public void setUp() {
+        metrics = new NfcMetrics();
+        readerMode = new NfcVReaderMode(new NfcVReaderMode.Listener() {
+            @Override
+            public void onTagDiscovered(Tag tag, long discoveredNanos) {
+                tags.add(tag);
+                times.add(discoveredNanos);
+            }
+        });
+    }
+
+    @Test
+    public void flagsOnlyPollNfcVAndSkipNdefCheck() {
+        int flags = readerMode.getFlags();
+        assertEquals(NfcAdapter.FLAG_READER_NFC_V | NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK, flags);
+        assertEquals(0, flags & (NfcAdapter.FLAG_READER_NFC_A | NfcAdapter.FLAG_READER_NFC_B
+                | NfcAdapter.FLAG_READER_NFC_F | NfcAdapter.FLAG_READER_NFC_BARCODE));
+    }
+
+    @Test
+    public void platformSoundsCanBeDisabled() {
+        readerMode.setPlatformSounds(false);
+        assertEquals(NfcAdapter.FLAG_READER_NFC_V | NfcAdapter.FLAG_READER_SKIP_NDEF_CHECK
+                | NfcAdapter.FLAG_READER_NO_PLATFORM_SOUNDS, readerMode.getFlags());
+
+        readerMode.setPlatformSounds(true);
+        assertEquals(0, readerMode.getFlags() & NfcAdapter.FLAG_READER_NO_PLATFORM_SOUNDS);
+    }
+
+    @Test
+    public void presenceCheckDelayIsTheOnlyExtra() {
+        Bundle extras = readerMode.getExtras();
+        assertEquals(1, extras.size());
+        assertEquals(NfcVReaderMode.DEFAULT_PRESENCE_CHECK_DELAY,
+                extras.getInt(NfcAdapter.EXTRA_READER_PRESENCE_CHECK_DELAY));
+    }
+
+    @Test
+    public void presenceCheckDelayIsPassedInExtras() {
+        readerMode.setPresenceCheckDelay(1500);
+
+        assertEquals(1500, readerMode.getPresenceCheckDelay());
+        assertEquals(1500, readerMode.getExtras().getInt(NfcAdapter.EXTRA_READER_PRESENCE_CHECK_DELAY));
+        //每次返回新的Bundle，之后的修改不影响已开启的reader mode
+        assertNotSame(readerMode.getExtras(), readerMode.getExtras());
+    }
+
+    @Test
+    public void invalidPresenceCheckDelayIsRejected() {
+        for (int delay : new int[]{0, -1}) {
+            try {
+                readerMode.setPresenceCheckDelay(delay);
+                fail("delay " + delay);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        assertEquals(NfcVReaderMode.DEFAULT_PRESENCE_CHECK_DELAY, readerMode.getPresenceCheckDelay());
+    }
+
+    @Test
+    public void tagIsDeliveredWithoutIntent() throws Exception {
+        Tag tag = mockTag();
+        long before = System.nanoTime();
+        readerMode.onTagDiscovered(tag);
+        long after = System.nanoTime();
+
+        assertEquals(1, tags.size());
+        assertSame(tag, tags.get(0));
+        assertTrue(times.get(0) >= before && times.get(0) <= after);
+        assertNotNull(NfcV.get(tags.get(0)));
+    }
+
+    @Test
+    public void tapIsMeasuredFromTheCallbackNotFromTheListener() throws Exception {
+        //与MainActivity相同：监听器把回调时的时间交给统计，监听器自己的耗时计在内
+        NfcVReaderMode timed = new NfcVReaderMode(new NfcVReaderMode.Listener() {
+            @Override
+            public void onTagDiscovered(Tag tag, long discoveredNanos) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                metrics.discovered(true, discoveredNanos);
+            }
+        });
+
+        timed.onTagDiscovered(mockTag());
+        metrics.transceive(new FakeTransceiver(), new byte[]{0x22, 0x2B});
+        metrics.transceive(new FakeTransceiver(), new byte[]{0x22, 0x20, 0x00});
+
+        NfcMetrics.Stats tap = metrics.snapshot().get("tap_reader");
+        assertEquals(1, tap.getCount());
+        assertTrue("nanos " + tap.getNanos(), tap.getNanos() >= 20000000L);
+        assertEquals(0, metrics.snapshot().get("tap_intent").getCount());
+    }
+
+    /**
+     * 用系统隐藏的Tag.createMockTag构造只有NfcV的标签
+     */
+    private static Tag mockTag() throws Exception {
+        Bundle extras = new Bundle();
+        extras.putByte("respflags", (byte) 0);
+        extras.putByte("dsfid", (byte) 0);
+        byte[] id = {0x01, 0x02, 0x03, 0x04, 0x05, 0x01, 0x04, (byte) 0xE0};
+        return (Tag) Tag.class.getMethod("createMockTag", byte[].class, int[].class, Bundle[].class)
+                .invoke(null, id, new int[]{NFC_V}, new Bundle[]{extras});
+    }
+
+    private static class FakeTransceiver implements NfcVTransceiver {
+        @Override
+        public byte[] getId() {
+            return new byte[8];
+        }
+
+        @Override
+        public int getMaxTransceiveLength() {
+            return 253;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void reconnect() throws IOException {
+        }
+
+        @Override
+        public byte[] transceive(byte[] cmd) throws IOException {
+            return new byte[]{0x00};
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NfcVUtil各指令路径的性能测试，标签由{@link SimulatedNfcVTag}模拟。
+ * 除每秒操作数外，{@link AirCounters}给出每次迭代的往返次数和模拟空中时间，内存分配用gc profiler统计
+ * Created by RP_S on 2017/10/27.
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NfcVUtilBenchmark {
+
+    /**
+     * 每次迭代的往返次数、模拟空中时间和失败次数，除以operations即为每次操作的值
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class AirCounters {
+        public long operations;
+
+        public long roundTrips;
+
+        public long airTimeMicros;
+
+        public long failures;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            operations = 0;
+            roundTrips = 0;
+            airTimeMicros = 0;
+            failures = 0;
+        }
+    }
+
+    /**
+     * ICODE SLIX为28 block，SLIX2为80 block
+     */
+    @Param({"28", "80"})
+    public int blockCount;
+
+    @Param({"4"})
+    public int blockSize;
+
+    @Param({"0", "0.01"})
+    public double failureRate;
+
+    /**
+     * 是否使用selected模式（指令不带UID）
+     */
+    @Param({"false", "true"})
+    public boolean selected;
+
+    /**
+     * 是否使用NXP的快速读取指令
+     */
+    @Param({"false", "true"})
+    public boolean fastRead;
+
+    private SimulatedNfcVTag tag;
+
+    private NfcVUtil nfcVUtil;
+
+    private String[] payloads;
+
+    private int next;
+
+    private byte[] uid;
+
+    private char[] hex;
+
+    private ByteBuffer buffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        tag = new SimulatedNfcVTag(blockCount, blockSize);
+        tag.setFailureRate(failureRate);
+        tag.connect();
+        TagCache.getInstance().clear();
+        nfcVUtil = new NfcVUtil(tag);
+        //测试空中指令，不使用缓存
+        nfcVUtil.setCache(null);
+        if (!fastRead) {
+            nfcVUtil.setVendorExtension(null);
+        }
+        if (selected) {
+            nfcVUtil.select();
+        }
+        payloads = new String[]{
+                "SN-0000123456;LOT-A17;2017-10-27",
+                "SN-0000123457;LOT-A17;2017-10-27",
+                "SN-0000987654;LOT-B02;2017-11-01;REWORK"
+        };
+        uid = tag.getId();
+        hex = new char[uid.length * 2];
+        buffer = ByteBuffer.allocateDirect(blockCount * blockSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tag.close();
+    }
+
+    private void count(AirCounters counters, long roundTrips, long airTime) {
+        counters.operations++;
+        counters.roundTrips += tag.getRoundTrips() - roundTrips;
+        counters.airTimeMicros += (tag.getAirTimeNanos() - airTime) / 1000;
+    }
+
+    @Benchmark
+    public byte[] readAllBlocks(AirCounters counters) {
+        long roundTrips = tag.getRoundTrips();
+        long airTime = tag.getAirTimeNanos();
+        try {
+            return nfcVUtil.readAllBlocks();
+        } catch (IOException e) {
+            counters.failures++;
+            return null;
+        } finally {
+            count(counters, roundTrips, airTime);
+        }
+    }
+
+    @Benchmark
+    public String readAll(AirCounters counters) {
+        long roundTrips = tag.getRoundTrips();
+        long airTime = tag.getAirTimeNanos();
+        try {
+            return nfcVUtil.readAll();
+        } catch (IOException e) {
+            counters.failures++;
+            return null;
+        } finally {
+            count(counters, roundTrips, airTime);
+        }
+    }
+
+    /**
+     * 读入复用的direct ByteBuffer
+     */
+    @Benchmark
+    public ByteBuffer readInto(AirCounters counters) {
+        long roundTrips = tag.getRoundTrips();
+        long airTime = tag.getAirTimeNanos();
+        buffer.clear();
+        try {
+            if (!nfcVUtil.readInto(buffer, 0, blockCount)) {
+                counters.failures++;
+            }
+            return buffer;
+        } catch (IOException e) {
+            counters.failures++;
+            return null;
+        } finally {
+            count(counters, roundTrips, airTime);
+        }
+    }
+
+    /**
+     * 差异写入，轮流写入几个内容部分相同的字符串
+     */
+    @Benchmark
+    public WriteReport writeString(AirCounters counters) {
+        long roundTrips = tag.getRoundTrips();
+        long airTime = tag.getAirTimeNanos();
+        try {
+            return nfcVUtil.writeString(payloads[next++ % payloads.length], false);
+        } catch (IOException e) {
+            counters.failures++;
+            return null;
+        } finally {
+            count(counters, roundTrips, airTime);
+        }
+    }
+
+    /**
+     * 先清空再写入
+     */
+    @Benchmark
+    public WriteReport writeStringClearFirst(AirCounters counters) {
+        long roundTrips = tag.getRoundTrips();
+        long airTime = tag.getAirTimeNanos();
+        try {
+            return nfcVUtil.writeString(payloads[next++ % payloads.length], true);
+        } catch (IOException e) {
+            counters.failures++;
+            return null;
+        } finally {
+            count(counters, roundTrips, airTime);
+        }
+    }
+
+    @Benchmark
+    public boolean clearAllBlocks(AirCounters counters) {
+        long roundTrips = tag.getRoundTrips();
+        long airTime = tag.getAirTimeNanos();
+        try {
+            return nfcVUtil.clearAllBlocks();
+        } catch (IOException e) {
+            counters.failures++;
+            return false;
+        } finally {
+            count(counters, roundTrips, airTime);
+        }
+    }
+
+    /**
+     * 组装一条写block指令帧
+     */
+    @Benchmark
+    public byte[] buildFrame() {
+        byte[] cmd = nfcVUtil.initCmd(NfcVUtil.Commands.write_block, 1 + blockSize);
+        cmd[cmd.length - 1 - blockSize] = (byte) (next++ % blockCount);
+        return cmd;
+    }
+
+    /**
+     * UID转16进制
+     */
+    @Benchmark
+    public char[] uidHex() {
+        NfcVUtil.printHex(uid, 0, uid.length, hex, 0);
+        return hex;
+    }
+}
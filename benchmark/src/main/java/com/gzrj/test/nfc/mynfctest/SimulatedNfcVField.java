@@ -0,0 +1,130 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 场内有多张{@link SimulatedNfcVTag}时的读写器，用于测试{@link NfcVInventory}。
+ * 每帧发给所有标签，没有标签响应时抛出{@link NoResponseException}，多张标签同时响应时视为冲突抛出IOException。
+ * 可以设置干扰的概率，干扰时与冲突一样抛出IOException，与Android相同无法区分
+ * Created by RP_S on 2017/10/31.
+ */
+
+public class SimulatedNfcVField implements NfcVTransceiver {
+    private final List<SimulatedNfcVTag> tags;
+
+    private boolean connected;
+
+    private long roundTrips;
+
+    private long collisions;
+
+    private double failureRate;
+
+    private Random random = new Random(1);
+
+    private long failures;
+
+    /**
+     * @param tags 场内的标签，第一张为Android发现的标签
+     */
+    public SimulatedNfcVField(SimulatedNfcVTag... tags) {
+        if (tags.length == 0) {
+            throw new IllegalArgumentException("no tag in field");
+        }
+        this.tags = new ArrayList<>(Arrays.asList(tags));
+    }
+
+    /**
+     * @param failureRate 每帧受到干扰的概率，0-1
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
+    public List<SimulatedNfcVTag> getTags() {
+        return tags;
+    }
+
+    @Override
+    public byte[] getId() {
+        return tags.get(0).getId();
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return tags.get(0).getMaxTransceiveLength();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void connect() throws ConnectFailedException {
+        connected = true;
+    }
+
+    @Override
+    public void reconnect() throws IOException {
+        close();
+        connect();
+    }
+
+    @Override
+    public void close() {
+        connected = false;
+        for (SimulatedNfcVTag tag : tags) {
+            tag.close();
+        }
+    }
+
+    @Override
+    public byte[] transceive(byte[] cmd) throws IOException {
+        if (!connected) {
+            throw new IOException("Not connected");
+        }
+        roundTrips++;
+        if (failureRate > 0 && random.nextDouble() < failureRate) {
+            failures++;
+            throw new IOException("Transceive failed");
+        }
+        byte[] res = null;
+        int responses = 0;
+        for (SimulatedNfcVTag tag : tags) {
+            byte[] r = tag.handle(cmd);
+            if (r != null) {
+                res = r;
+                responses++;
+            }
+        }
+        if (responses == 0) {
+            throw new NoResponseException("Transceive failed (no response)");
+        }
+        if (responses > 1) {
+            collisions++;
+            throw new IOException("Transceive failed (collision)");
+        }
+        return res;
+    }
+
+    public long getRoundTrips() {
+        return roundTrips;
+    }
+
+    public long getCollisions() {
+        return collisions;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+}
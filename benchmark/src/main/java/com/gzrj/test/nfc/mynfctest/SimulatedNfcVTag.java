@@ -0,0 +1,651 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * 内存中模拟的ISO 15693标签，用于在电脑上测试和性能测试{@link NfcVUtil}。
+ * 可以配置block个数、block长度、每帧延迟和故障注入，并统计往返次数、收发字节数和模拟的空中时间
+ * Created by RP_S on 2017/10/27.
+ */
+
+public class SimulatedNfcVTag implements NfcVTransceiver {
+    /**
+     * 高速率时的比特率，bit/s
+     */
+    public static final double HIGH_DATA_RATE = 26480;
+
+    /**
+     * 默认每帧固定开销（SOF/EOF、响应等待），纳秒
+     */
+    public static final long DEFAULT_FRAME_LATENCY = 600000;
+
+    public static final int DEFAULT_MAX_TRANSCEIVE_LENGTH = 253;
+
+    /*
+     * 错误码
+     */
+    static final int ERROR_NOT_SUPPORTED = 0x01;
+    static final int ERROR_FORMAT = 0x02;
+    static final int ERROR_UNKNOWN = 0x0F;
+    static final int ERROR_BLOCK_NOT_AVAILABLE = 0x10;
+    static final int ERROR_ALREADY_LOCKED = 0x11;
+    static final int ERROR_LOCKED = 0x12;
+
+    private final byte[] id;
+
+    private final int blockCount;
+
+    private final int blockSize;
+
+    private final byte[] memory;
+
+    private final BitSet lockedBlocks = new BitSet();
+
+    private byte afi;
+
+    private byte dsfid;
+
+    private boolean afiLocked;
+
+    private boolean dsfidLocked;
+
+    private int icReference = 0x01;
+
+    private int maxTransceiveLength = DEFAULT_MAX_TRANSCEIVE_LENGTH;
+
+    private long frameLatencyNanos = DEFAULT_FRAME_LATENCY;
+
+    private double bitRate = HIGH_DATA_RATE;
+
+    /*
+     * 是否真的等待模拟的空中时间
+     */
+    private boolean realtime;
+
+    private double failureRate;
+
+    private Random random = new Random(15693);
+
+    private boolean writeBatchSupported = true;
+
+    private int maxWriteBatchBlocks = 4;
+
+    private int maxReadBatchBlocks = 256;
+
+    private boolean blockSecuritySupported = true;
+
+    /*
+     * 是否支持NXP的Fast Read Multiple Blocks(0xC3)和Fast Inventory Read(0xA1)，只有UID为NXP时有效
+     */
+    private boolean fastCommandsSupported = true;
+
+    private boolean connected;
+
+    /*
+     * 是否处于selected状态，断开后回到ready状态
+     */
+    private boolean selected;
+
+    private long roundTrips;
+
+    private long airTimeNanos;
+
+    private long bytesSent;
+
+    private long bytesReceived;
+
+    private long failures;
+
+    private long connects;
+
+    /**
+     * UID为E0 04 01 ...，即NXP的芯片
+     *
+     * @param blockCount block个数
+     * @param blockSize  block长度
+     */
+    public SimulatedNfcVTag(int blockCount, int blockSize) {
+        this(new byte[]{0x01, 0x02, 0x03, 0x04, 0x05, 0x01, 0x04, (byte) 0xE0}, blockCount, blockSize);
+    }
+
+    /**
+     * @param id         UID，低字节在前
+     * @param blockCount block个数
+     * @param blockSize  block长度
+     */
+    public SimulatedNfcVTag(byte[] id, int blockCount, int blockSize) {
+        if (id == null || id.length != 8) {
+            throw new IllegalArgumentException("id must be 8 bytes");
+        }
+        if (blockCount < 1 || blockCount > 256 || blockSize < 1 || blockSize > 32) {
+            throw new IllegalArgumentException("invalid memory size:" + blockCount + "x" + blockSize);
+        }
+        this.id = id.clone();
+        this.blockCount = blockCount;
+        this.blockSize = blockSize;
+        this.memory = new byte[blockCount * blockSize];
+    }
+
+    @Override
+    public byte[] getId() {
+        return id.clone();
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return maxTransceiveLength;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void connect() throws ConnectFailedException {
+        if (!connected) {
+            connects++;
+            connected = true;
+        }
+    }
+
+    @Override
+    public void reconnect() throws IOException {
+        connected = false;
+        selected = false;
+        connect();
+    }
+
+    @Override
+    public void close() {
+        connected = false;
+        selected = false;
+    }
+
+    @Override
+    public byte[] transceive(byte[] cmd) throws IOException {
+        if (!connected) {
+            throw new IOException("Not connected");
+        }
+        if (cmd.length > maxTransceiveLength) {
+            throw new IOException("Transceive length exceeds supported maximum");
+        }
+        roundTrips++;
+        bytesSent += cmd.length;
+        if (failureRate > 0 && random.nextDouble() < failureRate) {
+            failures++;
+            elapse(airTime(cmd.length, 0) + frameLatencyNanos);
+            throw new NoResponseException("Tag was lost (simulated)");
+        }
+        byte[] res = handle(cmd);
+        if (res == null) {
+            //不响应，等同于超时
+            failures++;
+            elapse(airTime(cmd.length, 0) + frameLatencyNanos);
+            throw new NoResponseException("Transceive failed (no response)");
+        }
+        bytesReceived += res.length;
+        elapse(airTime(cmd.length, res.length, isFast(cmd) && res[0] == 0x00));
+        return res;
+    }
+
+    /**
+     * 一次往返的空中时间，含CRC和每帧固定开销
+     */
+    private long airTime(int sent, int received) {
+        return airTime(sent, received, false);
+    }
+
+    /**
+     * @param fast 响应速率是否加倍
+     */
+    private long airTime(int sent, int received, boolean fast) {
+        long sentBits = (sent + 2) * 8;
+        long receivedBits = received > 0 ? (received + 2) * 8 : 0;
+        return frameLatencyNanos + (long) ((sentBits + receivedBits / (fast ? 2.0 : 1.0)) * 1e9 / bitRate);
+    }
+
+    private static boolean isFast(byte[] cmd) {
+        int code = cmd[1] & 0xFF;
+        return code == 0xC3 || code == 0xA1;
+    }
+
+    private boolean isNXP() {
+        return (id[7] & 0xFF) == 0xE0 && id[6] == 0x04;
+    }
+
+    private void elapse(long nanos) {
+        airTimeNanos += nanos;
+        if (realtime) {
+            long end = System.nanoTime() + nanos;
+            while (System.nanoTime() < end) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * 处理一帧指令
+     *
+     * @return 响应，不响应时返回null
+     */
+    protected byte[] handle(byte[] cmd) {
+        if (cmd.length < 2) {
+            return null;
+        }
+        int flags = cmd[0] & 0xFF;
+        int code = cmd[1] & 0xFF;
+        if ((flags & 0x04) != 0) {
+            //inventory flag，高4位含义不同
+            if (code == 0x01) {
+                return inventory(cmd, flags, 2);
+            }
+            if (code == 0xA1 && cmd.length > 2 && cmd[2] == id[6] && isNXP() && fastCommandsSupported) {
+                return inventoryRead(cmd, flags);
+            }
+            return null;
+        }
+        int p = 2;
+        if (code >= 0xA0 && code <= 0xDF) {
+            //自定义指令，厂商代码不同的标签不响应
+            if (cmd.length < 3 || cmd[2] != id[6] || (id[7] & 0xFF) != 0xE0) {
+                return null;
+            }
+            p++;
+        }
+        if ((flags & 0x20) != 0) {
+            //addressed模式，UID不匹配的标签不响应
+            if (cmd.length < p + id.length) {
+                return null;
+            }
+            for (int i = 0; i < id.length; i++) {
+                if (cmd[p + i] != id[i]) {
+                    return null;
+                }
+            }
+            p += id.length;
+        } else if ((flags & 0x10) != 0 && !selected) {
+            //selected模式，未选中的标签不响应
+            return null;
+        }
+        boolean option = (flags & 0x40) != 0;
+        switch (code) {
+            case 0x20:
+                return readBlocks(cmd, p, 1, option);
+            case 0x21:
+                return writeBlocks(cmd, p, 1, p + 1, false);
+            case 0x23:
+                if (cmd.length < p + 2) {
+                    return error(ERROR_FORMAT);
+                }
+                return readBlocks(cmd, p, (cmd[p + 1] & 0xFF) + 1, option);
+            case 0xC3:
+                if (!isNXP() || !fastCommandsSupported) {
+                    return error(ERROR_NOT_SUPPORTED);
+                }
+                if (cmd.length < p + 2) {
+                    return error(ERROR_FORMAT);
+                }
+                return readBlocks(cmd, p, (cmd[p + 1] & 0xFF) + 1, option);
+            case 0x24:
+                if (!writeBatchSupported) {
+                    return error(ERROR_NOT_SUPPORTED);
+                }
+                if (cmd.length < p + 2) {
+                    return error(ERROR_FORMAT);
+                }
+                return writeBlocks(cmd, p, (cmd[p + 1] & 0xFF) + 1, p + 2, true);
+            case 0x27:
+                if (cmd.length < p + 1) {
+                    return error(ERROR_FORMAT);
+                }
+                if (afiLocked) {
+                    return error(ERROR_LOCKED);
+                }
+                afi = cmd[p];
+                return ok();
+            case 0x28:
+                afiLocked = true;
+                return ok();
+            case 0x29:
+                if (cmd.length < p + 1) {
+                    return error(ERROR_FORMAT);
+                }
+                if (dsfidLocked) {
+                    return error(ERROR_LOCKED);
+                }
+                dsfid = cmd[p];
+                return ok();
+            case 0x2A:
+                dsfidLocked = true;
+                return ok();
+            case 0x25:
+                if ((flags & 0x20) == 0) {
+                    return error(ERROR_FORMAT);
+                }
+                selected = true;
+                return ok();
+            case 0x26:
+                selected = false;
+                return ok();
+            case 0x2B:
+                return systemInfo();
+            case 0x2C:
+                if (!blockSecuritySupported) {
+                    return error(ERROR_NOT_SUPPORTED);
+                }
+                if (cmd.length < p + 2) {
+                    return error(ERROR_FORMAT);
+                }
+                return blockSecurity(cmd[p] & 0xFF, (cmd[p + 1] & 0xFF) + 1);
+            default:
+                return error(ERROR_NOT_SUPPORTED);
+        }
+    }
+
+    /**
+     * Fast Inventory Read：与盘点相同的匹配规则，掩码之后是开始block和block数减一。
+     * 设置option flag时响应为flags、掩码之外的UID（按字节）、数据，否则为flags、数据
+     */
+    private byte[] inventoryRead(byte[] cmd, int flags) {
+        if (cmd.length < 3 + ((flags & 0x10) != 0 ? 1 : 0) + 3) {
+            return null;
+        }
+        byte[] request = Arrays.copyOf(cmd, cmd.length - 2);
+        if (inventory(request, flags, 3) == null) {
+            return null;
+        }
+        int first = cmd[cmd.length - 2] & 0xFF;
+        int count = (cmd[cmd.length - 1] & 0xFF) + 1;
+        if (first + count > blockCount || count > maxReadBatchBlocks) {
+            return null;
+        }
+        int p = (flags & 0x10) != 0 ? 4 : 3;
+        int uidFrom = (flags & 0x40) != 0 ? (cmd[p] & 0xFF) / 8 : id.length;
+        int uidBytes = id.length - uidFrom;
+        byte[] res = new byte[1 + uidBytes + count * blockSize];
+        System.arraycopy(id, uidFrom, res, 1, uidBytes);
+        System.arraycopy(memory, first * blockSize, res, 1 + uidBytes, count * blockSize);
+        return res;
+    }
+
+    /**
+     * 盘点：AFI和UID掩码匹配时返回DSFID和UID。
+     * 16时隙请求只能收到第0个时隙的响应，即掩码之后的4位为0的标签
+     *
+     * @param p AFI或掩码位数开始的位置
+     */
+    private byte[] inventory(byte[] cmd, int flags, int p) {
+        if ((flags & 0x10) != 0) {
+            if (cmd.length < p + 1) {
+                return null;
+            }
+            int request = cmd[p++] & 0xFF;
+            int own = afi & 0xFF;
+            if ((request & 0xF0) != 0 && (request & 0xF0) != (own & 0xF0)
+                    || (request & 0x0F) != 0 && (request & 0x0F) != (own & 0x0F)) {
+                return null;
+            }
+        }
+        if (cmd.length < p + 1) {
+            return null;
+        }
+        int length = cmd[p++] & 0xFF;
+        if (length > 64 || cmd.length != p + (length + 7) / 8) {
+            return null;
+        }
+        long uid = 0;
+        for (int i = id.length - 1; i >= 0; i--) {
+            uid = (uid << 8) | (id[i] & 0xFF);
+        }
+        long mask = 0;
+        for (int i = cmd.length - 1; i >= p; i--) {
+            mask = (mask << 8) | (cmd[i] & 0xFF);
+        }
+        if (length < 64) {
+            long bits = (1L << length) - 1;
+            if ((uid & bits) != (mask & bits)) {
+                return null;
+            }
+            if ((flags & 0x20) == 0 && length + 4 <= 64 && ((uid >>> length) & 0x0F) != 0) {
+                return null;
+            }
+        } else if (uid != mask) {
+            return null;
+        }
+        byte[] res = new byte[2 + id.length];
+        res[1] = dsfid;
+        System.arraycopy(id, 0, res, 2, id.length);
+        return res;
+    }
+
+    private byte[] readBlocks(byte[] cmd, int p, int count, boolean option) {
+        if (cmd.length < p + 1) {
+            return error(ERROR_FORMAT);
+        }
+        int first = cmd[p] & 0xFF;
+        if (count > maxReadBatchBlocks) {
+            return error(ERROR_UNKNOWN);
+        }
+        if (first + count > blockCount) {
+            return error(ERROR_BLOCK_NOT_AVAILABLE);
+        }
+        int stride = blockSize + (option ? 1 : 0);
+        byte[] res = new byte[1 + count * stride];
+        for (int i = 0; i < count; i++) {
+            int offset = 1 + i * stride;
+            if (option) {
+                res[offset++] = (byte) (lockedBlocks.get(first + i) ? 0x01 : 0x00);
+            }
+            System.arraycopy(memory, (first + i) * blockSize, res, offset, blockSize);
+        }
+        return res;
+    }
+
+    private byte[] writeBlocks(byte[] cmd, int p, int count, int dataOffset, boolean batch) {
+        if (cmd.length != dataOffset + count * blockSize) {
+            return error(ERROR_FORMAT);
+        }
+        int first = cmd[p] & 0xFF;
+        if (batch && count > maxWriteBatchBlocks) {
+            return error(ERROR_UNKNOWN);
+        }
+        if (first + count > blockCount) {
+            return error(ERROR_BLOCK_NOT_AVAILABLE);
+        }
+        for (int i = first; i < first + count; i++) {
+            if (lockedBlocks.get(i)) {
+                return error(ERROR_LOCKED);
+            }
+        }
+        System.arraycopy(cmd, dataOffset, memory, first * blockSize, count * blockSize);
+        return ok();
+    }
+
+    private byte[] blockSecurity(int first, int count) {
+        if (count > maxReadBatchBlocks) {
+            return error(ERROR_UNKNOWN);
+        }
+        if (first + count > blockCount) {
+            return error(ERROR_BLOCK_NOT_AVAILABLE);
+        }
+        byte[] res = new byte[1 + count];
+        for (int i = 0; i < count; i++) {
+            res[1 + i] = (byte) (lockedBlocks.get(first + i) ? 0x01 : 0x00);
+        }
+        return res;
+    }
+
+    private byte[] systemInfo() {
+        byte[] res = new byte[15];
+        res[0] = 0x00;
+        //DSFID、AFI、存储大小、IC reference都存在
+        res[1] = 0x0F;
+        System.arraycopy(id, 0, res, 2, id.length);
+        res[10] = dsfid;
+        res[11] = afi;
+        res[12] = (byte) (blockCount - 1);
+        res[13] = (byte) (blockSize - 1);
+        res[14] = (byte) icReference;
+        return res;
+    }
+
+    static byte[] ok() {
+        return new byte[]{0x00};
+    }
+
+    static byte[] error(int code) {
+        return new byte[]{0x01, (byte) code};
+    }
+
+    /**
+     * 标签内容，可以直接修改
+     *
+     * @return
+     */
+    public byte[] getMemory() {
+        return memory;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public boolean isSelected() {
+        return selected;
+    }
+
+    public void lockBlock(int block) {
+        lockedBlocks.set(block);
+    }
+
+    public byte getAFI() {
+        return afi;
+    }
+
+    public byte getDSFID() {
+        return dsfid;
+    }
+
+    public void setAFI(byte afi) {
+        this.afi = afi;
+    }
+
+    public void setDSFID(byte dsfid) {
+        this.dsfid = dsfid;
+    }
+
+    public void setICReference(int icReference) {
+        this.icReference = icReference;
+    }
+
+    public void setMaxTransceiveLength(int maxTransceiveLength) {
+        this.maxTransceiveLength = maxTransceiveLength;
+    }
+
+    /**
+     * @param frameLatencyNanos 每帧固定开销，纳秒
+     */
+    public void setFrameLatencyNanos(long frameLatencyNanos) {
+        this.frameLatencyNanos = frameLatencyNanos;
+    }
+
+    public void setBitRate(double bitRate) {
+        this.bitRate = bitRate;
+    }
+
+    /**
+     * @param realtime 为true时真的等待模拟的空中时间
+     */
+    public void setRealtime(boolean realtime) {
+        this.realtime = realtime;
+    }
+
+    /**
+     * @param failureRate 每帧失败（抛出IOException）的概率
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    public void setRandom(Random random) {
+        this.random = random;
+    }
+
+    public void setWriteBatchSupported(boolean writeBatchSupported) {
+        this.writeBatchSupported = writeBatchSupported;
+    }
+
+    public void setMaxWriteBatchBlocks(int maxWriteBatchBlocks) {
+        this.maxWriteBatchBlocks = maxWriteBatchBlocks;
+    }
+
+    public void setBlockSecuritySupported(boolean blockSecuritySupported) {
+        this.blockSecuritySupported = blockSecuritySupported;
+    }
+
+    /**
+     * @param fastCommandsSupported 是否支持NXP的快速读取指令，默认为true，UID不是NXP时总是不支持
+     */
+    public void setFastCommandsSupported(boolean fastCommandsSupported) {
+        this.fastCommandsSupported = fastCommandsSupported;
+    }
+
+    public void setMaxReadBatchBlocks(int maxReadBatchBlocks) {
+        this.maxReadBatchBlocks = maxReadBatchBlocks;
+    }
+
+    public long getRoundTrips() {
+        return roundTrips;
+    }
+
+    /**
+     * 模拟的空中时间，纳秒
+     *
+     * @return
+     */
+    public long getAirTimeNanos() {
+        return airTimeNanos;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    public long getConnects() {
+        return connects;
+    }
+
+    /**
+     * 清零统计
+     */
+    public void resetCounters() {
+        roundTrips = 0;
+        airTimeNanos = 0;
+        bytesSent = 0;
+        bytesReceived = 0;
+        failures = 0;
+        connects = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "roundTrips:" + roundTrips + ", airTime:" + airTimeNanos / 1000 + "us, sent:" + bytesSent
+                + ", received:" + bytesReceived + ", failures:" + failures;
+    }
+}
@@ -0,0 +1,91 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 重放手机上记录的通信（见{@link NfcVTraceRecorder}），比较记录时和当前代码的往返次数、耗时。
+ * <p>
+ * 用法：TraceReplay 记录文件 [操作] [--realtime]，或./gradlew :benchmark:replay -Ptrace=记录文件 -Pworkload=操作。
+ * 操作：readAll（默认）、readAllBlocks、systemInfo，用当前的NfcVUtil执行；
+ * frames不经过NfcVUtil，按顺序发送记录中的所有请求帧，用于检查记录本身
+ * Created by RP_S on 2017/11/07.
+ */
+
+public class TraceReplay {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: TraceReplay <trace> [readAll|readAllBlocks|systemInfo|frames] [--realtime]");
+            System.exit(2);
+        }
+        String workload = "readAll";
+        boolean realtime = false;
+        for (int i = 1; i < args.length; i++) {
+            if ("--realtime".equals(args[i])) {
+                realtime = true;
+            } else {
+                workload = args[i];
+            }
+        }
+        NfcVTrace trace;
+        InputStream in = new BufferedInputStream(new FileInputStream(args[0]));
+        try {
+            trace = NfcVTrace.read(in);
+        } finally {
+            in.close();
+        }
+        System.out.println("recorded: " + trace);
+
+        TraceReplayTransceiver replay = new TraceReplayTransceiver(trace);
+        replay.setRealtime(realtime);
+        NfcMetrics metrics = new NfcMetrics();
+        long start = System.nanoTime();
+        try {
+            run(replay, metrics, workload);
+        } catch (IOException e) {
+            System.out.println("failed: " + e);
+        }
+        long wall = System.nanoTime() - start;
+        System.out.println("replayed " + workload + ": " + replay + ", wall:" + wall / 1000 + "us");
+        System.out.println(metrics.snapshot());
+    }
+
+    private static void run(TraceReplayTransceiver replay, NfcMetrics metrics, String workload) throws IOException {
+        if ("frames".equals(workload)) {
+            for (NfcVTrace.Event event : replay.getTrace().getEvents()) {
+                if (event.getType() != NfcVTrace.TRANSCEIVE) {
+                    continue;
+                }
+                try {
+                    metrics.transceive(replay, event.getRequest());
+                } catch (IOException e) {
+                    //记录中的失败也照样重放
+                }
+            }
+            return;
+        }
+        NfcVUtil util = new NfcVUtil(replay);
+        //只统计本次重放，不使用进程内和本地保存的内容
+        util.setCache(null);
+        util.setInfoStore(null);
+        util.setJournal(null);
+        util.setMetrics(metrics);
+        util.assertConnected();
+        switch (workload) {
+            case "readAll":
+                System.out.println("content: " + util.readAll());
+                break;
+            case "readAllBlocks":
+                util.readAllBlocks();
+                break;
+            case "systemInfo":
+                util.getSystemInfo();
+                break;
+            default:
+                throw new IllegalArgumentException("unknown workload:" + workload);
+        }
+    }
+}
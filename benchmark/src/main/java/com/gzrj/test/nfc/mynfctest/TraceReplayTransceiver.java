@@ -0,0 +1,374 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按{@link NfcVTrace}重放的连接，用于在电脑上比较协议改动前后的往返次数和耗时。
+ * 请求帧与记录中的请求相同时按记录的顺序返回记录的响应（或无响应、异常）和耗时；
+ * 记录中没有的请求（如改动后的新指令）交给后备连接，默认为按记录内容构造的{@link SimulatedNfcVTag}，耗时按模拟的空中时间计算
+ * Created by RP_S on 2017/11/07.
+ */
+
+public class TraceReplayTransceiver implements NfcVTransceiver {
+    private final NfcVTrace trace;
+
+    /*
+     * 每种请求帧在记录中的指令事件，按顺序取用
+     */
+    private final Map<ByteBuffer, ArrayDeque<NfcVTrace.Event>> responses = new HashMap<>();
+
+    /*
+     * 记录中连接的耗时，按顺序取用
+     */
+    private final ArrayDeque<Long> connectNanos = new ArrayDeque<>();
+
+    private NfcVTransceiver fallback;
+
+    /*
+     * 是否真的等待记录的耗时
+     */
+    private boolean realtime;
+
+    private boolean connected;
+
+    private long roundTrips;
+
+    private long replayed;
+
+    private long simulated;
+
+    private long connects;
+
+    private long elapsedNanos;
+
+    public TraceReplayTransceiver(NfcVTrace trace) {
+        this.trace = trace;
+        for (NfcVTrace.Event event : trace.getEvents()) {
+            if (event.getType() == NfcVTrace.TRANSCEIVE) {
+                ByteBuffer key = ByteBuffer.wrap(event.getRequest());
+                ArrayDeque<NfcVTrace.Event> queue = responses.get(key);
+                if (queue == null) {
+                    queue = new ArrayDeque<>();
+                    responses.put(key, queue);
+                }
+                queue.add(event);
+            } else if ((event.getType() == NfcVTrace.CONNECT || event.getType() == NfcVTrace.RECONNECT)
+                    && event.getResult() == NfcVTrace.OK) {
+                connectNanos.add(event.getDurationNanos());
+            }
+        }
+        fallback = simulate(trace);
+    }
+
+    /**
+     * 按记录构造模拟的标签：系统信息取自Get System Information的响应，
+     * 每个block的内容取自第一次读取（在写入之前）的响应，锁定状态和不支持的指令也按记录设置。
+     * 帧固定开销取各指令耗时减去空中时间的中位数
+     *
+     * @param trace 记录
+     * @return
+     */
+    public static SimulatedNfcVTag simulate(NfcVTrace trace) {
+        SystemInfo info = null;
+        for (NfcVTrace.Event event : trace.getEvents()) {
+            if (isOk(event) && code(event.getRequest()) == 0x2B) {
+                try {
+                    info = SystemInfo.parse(event.getResponse());
+                    break;
+                } catch (IOException e) {
+                    info = null;
+                }
+            }
+        }
+        //没有系统信息时按ICODE SLIX
+        int blockCount = info == null || info.getBlockNumber() > 256 ? 28 : info.getBlockNumber();
+        int blockSize = info == null || info.getBlockSize() > 32 ? 4 : info.getBlockSize();
+        SimulatedNfcVTag tag = new SimulatedNfcVTag(trace.getId(), blockCount, blockSize);
+        tag.setMaxTransceiveLength(trace.getMaxTransceiveLength());
+        if (info != null) {
+            if (info.hasAFI()) {
+                tag.setAFI(info.getAFI());
+            }
+            if (info.hasDSFID()) {
+                tag.setDSFID(info.getDSFID());
+            }
+            tag.setICReference(info.getICReference());
+        }
+        byte[] memory = tag.getMemory();
+        BitSet known = new BitSet();
+        List<Long> overheads = new ArrayList<>();
+        for (NfcVTrace.Event event : trace.getEvents()) {
+            if (event.getType() != NfcVTrace.TRANSCEIVE || event.getResult() != NfcVTrace.OK) {
+                continue;
+            }
+            byte[] req = event.getRequest();
+            byte[] res = event.getResponse();
+            overheads.add(event.getDurationNanos() - airTime(req.length, res.length));
+            int code = code(req);
+            int p = params(req);
+            if (res.length > 1 && (res[0] & 0x01) != 0) {
+                int error = res[1] & 0xFF;
+                boolean unsupported = error == SimulatedNfcVTag.ERROR_NOT_SUPPORTED || error == SimulatedNfcVTag.ERROR_FORMAT;
+                if (unsupported && code == 0x24) {
+                    tag.setWriteBatchSupported(false);
+                } else if (unsupported && code == 0x2C) {
+                    tag.setBlockSecuritySupported(false);
+                } else if (unsupported && code == 0xC3) {
+                    tag.setFastCommandsSupported(false);
+                } else if (error == SimulatedNfcVTag.ERROR_LOCKED && (code == 0x21 || code == 0x24) && req.length > p) {
+                    tag.lockBlock(req[p] & 0xFF);
+                }
+                continue;
+            }
+            if (res[0] != 0x00 || req.length <= p) {
+                continue;
+            }
+            int first = req[p] & 0xFF;
+            int count = code == 0x20 || code == 0x21 || req.length <= p + 1 ? 1 : (req[p + 1] & 0xFF) + 1;
+            if (first + count > blockCount) {
+                continue;
+            }
+            switch (code) {
+                case 0x20:
+                case 0x23:
+                case 0xC3: {
+                    boolean option = (req[0] & 0x40) != 0;
+                    int stride = blockSize + (option ? 1 : 0);
+                    for (int i = 0; i < count && 1 + (i + 1) * stride <= res.length; i++) {
+                        int block = first + i;
+                        if (option && (res[1 + i * stride] & 0x01) != 0) {
+                            tag.lockBlock(block);
+                        }
+                        if (!known.get(block)) {
+                            System.arraycopy(res, 1 + i * stride + (option ? 1 : 0), memory, block * blockSize, blockSize);
+                            known.set(block);
+                        }
+                    }
+                    break;
+                }
+                case 0x21:
+                case 0x24:
+                    //写入之后读到的不是原来的内容
+                    known.set(first, first + count);
+                    break;
+                case 0x2C:
+                    for (int i = 0; i < count && 1 + i < res.length; i++) {
+                        if ((res[1 + i] & 0x01) != 0) {
+                            tag.lockBlock(first + i);
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (!overheads.isEmpty()) {
+            Collections.sort(overheads);
+            tag.setFrameLatencyNanos(Math.max(0, overheads.get(overheads.size() / 2)));
+        }
+        return tag;
+    }
+
+    private static boolean isOk(NfcVTrace.Event event) {
+        return event.getType() == NfcVTrace.TRANSCEIVE && event.getResult() == NfcVTrace.OK
+                && event.getResponse().length > 0 && event.getResponse()[0] == 0x00;
+    }
+
+    private static int code(byte[] req) {
+        return req.length < 2 ? -1 : req[1] & 0xFF;
+    }
+
+    /**
+     * 参数开始的位置：flags、指令、自定义指令的厂商代码、addressed模式的UID之后
+     */
+    private static int params(byte[] req) {
+        int p = 2;
+        int code = code(req);
+        if (code >= 0xA0 && code <= 0xDF) {
+            p++;
+        }
+        if ((req[0] & 0x04) == 0 && (req[0] & 0x20) != 0) {
+            p += 8;
+        }
+        return p;
+    }
+
+    /**
+     * 与{@link SimulatedNfcVTag}相同的空中时间，不含固定开销
+     */
+    private static long airTime(int sent, int received) {
+        int bits = (sent + 2 + (received > 0 ? received + 2 : 0)) * 8;
+        return (long) (bits * 1e9 / SimulatedNfcVTag.HIGH_DATA_RATE);
+    }
+
+    /**
+     * 记录中没有的请求交给该连接处理
+     *
+     * @param fallback 为null时抛出{@link NoResponseException}
+     */
+    public void setFallback(NfcVTransceiver fallback) {
+        this.fallback = fallback;
+    }
+
+    public NfcVTransceiver getFallback() {
+        return fallback;
+    }
+
+    /**
+     * @param realtime 为true时按记录的耗时等待，为false时尽快返回，只累计耗时
+     */
+    public void setRealtime(boolean realtime) {
+        this.realtime = realtime;
+    }
+
+    public NfcVTrace getTrace() {
+        return trace;
+    }
+
+    @Override
+    public byte[] getId() {
+        return trace.getId();
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return trace.getMaxTransceiveLength();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void connect() throws ConnectFailedException {
+        if (connected) {
+            return;
+        }
+        connects++;
+        Long nanos = connectNanos.poll();
+        elapse(nanos == null ? 0 : nanos);
+        if (fallback != null) {
+            fallback.connect();
+        }
+        connected = true;
+    }
+
+    @Override
+    public void reconnect() throws IOException {
+        close();
+        connect();
+    }
+
+    @Override
+    public byte[] transceive(byte[] cmd) throws IOException {
+        if (!connected) {
+            connect();
+        }
+        roundTrips++;
+        ArrayDeque<NfcVTrace.Event> queue = responses.get(ByteBuffer.wrap(cmd));
+        NfcVTrace.Event event = queue == null ? null : queue.poll();
+        if (event == null) {
+            return simulate(cmd);
+        }
+        replayed++;
+        elapse(event.getDurationNanos());
+        switch (event.getResult()) {
+            case NfcVTrace.OK:
+                return event.getResponse().clone();
+            case NfcVTrace.NO_RESPONSE:
+                throw new NoResponseException("no response (replayed)");
+            case NfcVTrace.CONNECT_FAILED:
+                connected = false;
+                throw new ConnectFailedException();
+            default:
+                throw new IOException("transceive failed (replayed)");
+        }
+    }
+
+    private byte[] simulate(byte[] cmd) throws IOException {
+        if (fallback == null) {
+            throw new NoResponseException("request not in trace");
+        }
+        simulated++;
+        SimulatedNfcVTag tag = fallback instanceof SimulatedNfcVTag ? (SimulatedNfcVTag) fallback : null;
+        long before = tag == null ? System.nanoTime() : tag.getAirTimeNanos();
+        try {
+            return fallback.transceive(cmd);
+        } finally {
+            long nanos = tag == null ? System.nanoTime() - before : tag.getAirTimeNanos() - before;
+            if (tag == null) {
+                elapsedNanos += nanos;
+            } else {
+                elapse(nanos);
+            }
+        }
+    }
+
+    private void elapse(long nanos) {
+        elapsedNanos += nanos;
+        if (realtime) {
+            long end = System.nanoTime() + nanos;
+            while (System.nanoTime() < end) {
+                Thread.yield();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        connected = false;
+        if (fallback != null) {
+            fallback.close();
+        }
+    }
+
+    public long getRoundTrips() {
+        return roundTrips;
+    }
+
+    /**
+     * 按记录返回的往返次数
+     *
+     * @return
+     */
+    public long getReplayed() {
+        return replayed;
+    }
+
+    /**
+     * 交给后备连接的往返次数
+     *
+     * @return
+     */
+    public long getSimulated() {
+        return simulated;
+    }
+
+    public long getConnects() {
+        return connects;
+    }
+
+    /**
+     * 重放的耗时，纳秒：记录的耗时加上后备连接的耗时
+     *
+     * @return
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "roundTrips:" + roundTrips + ", replayed:" + replayed + ", simulated:" + simulated
+                + ", connects:" + connects + ", elapsed:" + elapsedNanos / 1000 + "us";
+    }
+}
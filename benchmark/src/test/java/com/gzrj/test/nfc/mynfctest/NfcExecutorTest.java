@@ -0,0 +1,188 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * nfc任务队列：用户操作先于后台任务，同优先级按提交顺序；标签无响应时取消排队中的任务
+ * Created by RP_S on 2017/11/11.
+ */
+public class NfcExecutorTest {
+
+    private NfcExecutor executor;
+
+    /*
+     * 阻塞工作线程，让后面提交的任务排队
+     */
+    private CountDownLatch gate;
+
+    private final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() {
+        //回调直接在工作线程执行
+        executor = new NfcExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        gate = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() {
+        gate.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void userTasksRunBeforeBackgroundTasks() throws Exception {
+        Future<String> blocker = executor.submit(NfcExecutor.Priority.BACKGROUND, blocking("blocker", null));
+        List<Future<String>> futures = new ArrayList<>();
+        futures.add(executor.submit(NfcExecutor.Priority.BACKGROUND, task("background 1")));
+        futures.add(executor.submit(NfcExecutor.Priority.USER, task("user 1")));
+        futures.add(executor.submit(NfcExecutor.Priority.BACKGROUND, task("background 2")));
+        futures.add(executor.submit(NfcExecutor.Priority.USER, task("user 2")));
+        assertEquals(4, executor.getPendingCount());
+
+        gate.countDown();
+        blocker.get(1, TimeUnit.SECONDS);
+        for (Future<String> future : futures) {
+            future.get(1, TimeUnit.SECONDS);
+        }
+
+        assertEquals(Arrays.asList("blocker", "user 1", "user 2", "background 1", "background 2"), order);
+    }
+
+    @Test
+    public void noResponseCancelsPendingTasks() throws Exception {
+        Future<String> lost = executor.submit(NfcExecutor.Priority.USER,
+                blocking("lost", new NoResponseException("Tag was lost (simulated)")));
+        final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        Future<String> queued = executor.submit(NfcExecutor.Priority.USER, task("queued"), new NfcExecutor.Callback<String>() {
+            @Override
+            public void onSuccess(String result) {
+                fail();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                failures.add(e);
+                cancelled.countDown();
+            }
+        });
+
+        gate.countDown();
+        try {
+            lost.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof NoResponseException);
+        }
+        //get()返回时done()可能还未执行
+        assertTrue(cancelled.await(1, TimeUnit.SECONDS));
+
+        assertTrue(queued.isCancelled());
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0) instanceof CancellationException);
+        assertEquals(Collections.singletonList("lost"), order);
+        assertEquals(0, executor.getPendingCount());
+
+        //之后提交的任务正常执行
+        assertEquals("next", executor.submit(NfcExecutor.Priority.USER, task("next")).get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void otherFailuresKeepPendingTasks() throws Exception {
+        Future<String> failed = executor.submit(NfcExecutor.Priority.USER,
+                blocking("failed", new IllegalStateException()));
+        Future<String> queued = executor.submit(NfcExecutor.Priority.USER, task("queued"));
+
+        gate.countDown();
+
+        assertEquals("queued", queued.get(1, TimeUnit.SECONDS));
+        assertTrue(failed.isDone());
+        assertFalse(queued.isCancelled());
+    }
+
+    @Test
+    public void cancelPendingLeavesRunningTask() throws Exception {
+        Future<String> running = executor.submit(NfcExecutor.Priority.USER, blocking("running", null));
+        Future<String> first = executor.submit(NfcExecutor.Priority.USER, task("first"));
+        Future<String> second = executor.submit(NfcExecutor.Priority.BACKGROUND, task("second"));
+
+        assertEquals(2, executor.cancelPending());
+        gate.countDown();
+
+        assertEquals("running", running.get(1, TimeUnit.SECONDS));
+        assertTrue(first.isCancelled());
+        assertTrue(second.isCancelled());
+        assertEquals(Collections.singletonList("running"), order);
+    }
+
+    @Test
+    public void callbackReceivesResult() throws Exception {
+        final String[] result = new String[1];
+        final CountDownLatch called = new CountDownLatch(1);
+        executor.submit(NfcExecutor.Priority.USER, task("done"), new NfcExecutor.Callback<String>() {
+            @Override
+            public void onSuccess(String r) {
+                result[0] = r;
+                called.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                fail();
+            }
+        });
+
+        assertTrue(called.await(1, TimeUnit.SECONDS));
+        assertEquals("done", result[0]);
+    }
+
+    private Callable<String> task(final String name) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                order.add(name);
+                return name;
+            }
+        };
+    }
+
+    /**
+     * 等到gate打开后结束，failure不为null时抛出。
+     * 第一个提交的任务直接交给新建的工作线程，不经过队列
+     */
+    private Callable<String> blocking(final String name, final Exception failure) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                gate.await();
+                order.add(name);
+                if (failure != null) {
+                    throw failure;
+                }
+                return name;
+            }
+        };
+    }
+}
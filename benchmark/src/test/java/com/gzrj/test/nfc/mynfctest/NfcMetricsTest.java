@@ -0,0 +1,85 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * 从发现标签到第一条成功指令的耗时：两种发现方式分开统计，只记录一次，取消后不记录
+ * Created by RP_S on 2017/11/11.
+ */
+public class NfcMetricsTest {
+
+    /*
+     * 不带UID的Get System Info
+     */
+    private static final byte[] SYSTEM_INFO = {0x02, 0x2B};
+
+    private NfcMetrics metrics;
+
+    private SimulatedNfcVTag tag;
+
+    @Before
+    public void setUp() throws Exception {
+        metrics = new NfcMetrics();
+        tag = new SimulatedNfcVTag(28, 4);
+        tag.connect();
+    }
+
+    @Test
+    public void firstTransceiveAfterDiscoveryIsMeasured() throws Exception {
+        metrics.discovered(true, System.nanoTime());
+        metrics.transceive(tag, SYSTEM_INFO);
+        metrics.transceive(tag, SYSTEM_INFO);
+
+        NfcMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.get("tap_reader").getCount());
+        assertEquals(0, snapshot.get("tap_intent").getCount());
+    }
+
+    @Test
+    public void intentDiscoveryIsMeasuredSeparately() throws Exception {
+        metrics.discovered(false, System.nanoTime());
+        metrics.transceive(tag, SYSTEM_INFO);
+
+        NfcMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.get("tap_intent").getCount());
+        assertEquals(0, snapshot.get("tap_reader").getCount());
+    }
+
+    @Test
+    public void elapsedTimeStartsAtTheGivenStamp() throws Exception {
+        metrics.discovered(false, System.nanoTime() - 50000000L);
+        metrics.transceive(tag, SYSTEM_INFO);
+
+        assertTrue(metrics.snapshot().get("tap_intent").getNanos() >= 50000000L);
+    }
+
+    @Test
+    public void failedTransceiveDoesNotEndTheTap() throws Exception {
+        metrics.discovered(true, System.nanoTime());
+        tag.close();
+        try {
+            metrics.transceive(tag, SYSTEM_INFO);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(0, metrics.snapshot().get("tap_reader").getCount());
+
+        tag.connect();
+        metrics.transceive(tag, SYSTEM_INFO);
+        assertEquals(1, metrics.snapshot().get("tap_reader").getCount());
+    }
+
+    @Test
+    public void cancelledDiscoveryIsNotMeasured() throws Exception {
+        metrics.discovered(true, System.nanoTime());
+        metrics.cancelDiscovered();
+        metrics.transceive(tag, SYSTEM_INFO);
+
+        assertEquals(0, metrics.snapshot().get("tap_reader").getCount());
+    }
+}
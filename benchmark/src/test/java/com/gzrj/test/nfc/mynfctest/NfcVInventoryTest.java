@@ -0,0 +1,232 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * 盘点的防冲突：只有确认的冲突才细分时隙，干扰、无响应和格式不对的响应不细分，掩码长度和帧数有上限
+ * Created by RP_S on 2017/11/11.
+ */
+public class NfcVInventoryTest {
+
+    @Test
+    public void singleTagTakesOneFrame() throws Exception {
+        SimulatedNfcVField field = new SimulatedNfcVField(tag(0x12345678L));
+        NfcVInventory inventory = inventory(field);
+
+        List<byte[]> found = inventory.inventory();
+
+        assertEquals(1, found.size());
+        assertArrayEquals(tag(0x12345678L).getId(), found.get(0));
+        assertEquals(1, inventory.getFrameCount());
+        assertEquals(0, inventory.getCollisionCount());
+        assertTrue(inventory.isComplete());
+    }
+
+    @Test
+    public void collisionsAreSplitUntilEveryTagIsFound() throws Exception {
+        long[] serials = {0x01, 0x02, 0x12, 0x22, 0xABCDEF, 0x1000000001L};
+        SimulatedNfcVTag[] tags = new SimulatedNfcVTag[serials.length];
+        Set<Long> expected = new HashSet<>();
+        for (int i = 0; i < serials.length; i++) {
+            tags[i] = tag(serials[i]);
+            expected.add(serials[i]);
+        }
+        NfcVInventory inventory = inventory(new SimulatedNfcVField(tags));
+
+        List<byte[]> found = inventory.inventory();
+
+        assertEquals(expected, serials(found));
+        assertTrue(inventory.getCollisionCount() > 0);
+        assertTrue(inventory.isComplete());
+    }
+
+    @Test
+    public void transientNoiseIsRetriedInsteadOfSplit() throws Exception {
+        SimulatedNfcVField field = new SimulatedNfcVField(tag(0x42));
+        field.setFailureRate(0.2);
+        field.setRandom(new Random(7));
+        NfcVInventory inventory = inventory(field);
+
+        int frames = 0;
+        for (int i = 0; i < 100; i++) {
+            List<byte[]> found = inventory.inventory();
+            assertEquals(1, found.size());
+            frames += inventory.getFrameCount();
+        }
+        //每次约1.25帧；偶尔连续两次干扰时细分一层，16帧左右
+        assertTrue("frames:" + frames, frames < 300);
+    }
+
+    @Test
+    public void persistentErrorsStayWithinFrameBudget() throws Exception {
+        SimulatedNfcVField field = new SimulatedNfcVField(tag(0x42));
+        field.setFailureRate(1.0);
+        NfcVInventory inventory = inventory(field);
+
+        List<byte[]> found = inventory.inventory();
+
+        assertTrue(found.isEmpty());
+        assertEquals(NfcVInventory.DEFAULT_MAX_FRAMES, inventory.getFrameCount());
+        assertEquals(NfcVInventory.DEFAULT_MAX_FRAMES, field.getRoundTrips());
+        assertFalse(inventory.isComplete());
+    }
+
+    @Test
+    public void frameBudgetCanBeLowered() throws Exception {
+        SimulatedNfcVTag[] tags = new SimulatedNfcVTag[10];
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = tag(0x100 * i + i);
+        }
+        NfcVInventory inventory = inventory(new SimulatedNfcVField(tags));
+        inventory.setMaxFrames(5);
+
+        inventory.inventory();
+
+        assertTrue(inventory.getFrameCount() <= 5);
+        assertFalse(inventory.isComplete());
+    }
+
+    @Test
+    public void tagThatDoesNotAnswerInventoryIsAnEmptySlot() throws Exception {
+        SimulatedNfcVTag silent = new SimulatedNfcVTag(id(0x77), 28, 4) {
+            @Override
+            protected byte[] handle(byte[] cmd) {
+                return (cmd[1] & 0xFF) == 0x01 ? null : super.handle(cmd);
+            }
+        };
+        NfcVInventory inventory = inventory(new SimulatedNfcVField(silent, tag(0x42)));
+
+        List<byte[]> found = inventory.inventory();
+
+        assertEquals(1, found.size());
+        assertEquals(1, inventory.getFrameCount());
+    }
+
+    @Test
+    public void malformedResponseIsNotACollision() throws Exception {
+        SimulatedNfcVTag broken = new SimulatedNfcVTag(id(0x77), 28, 4) {
+            @Override
+            protected byte[] handle(byte[] cmd) {
+                return (cmd[1] & 0xFF) == 0x01 ? new byte[]{0x00, 0x00, 0x01} : super.handle(cmd);
+            }
+        };
+        NfcVInventory inventory = inventory(new SimulatedNfcVField(broken));
+
+        List<byte[]> found = inventory.inventory();
+
+        assertTrue(found.isEmpty());
+        assertEquals(1, inventory.getFrameCount());
+        assertEquals(0, inventory.getCollisionCount());
+        assertTrue(inventory.isComplete());
+    }
+
+    @Test
+    public void identicalLowBitsStopAtMaxMaskLength() throws Exception {
+        byte[] a = id(0x5555);
+        byte[] b = id(0x5555);
+        b[6] = 0x07;
+        NfcVInventory inventory = inventory(new SimulatedNfcVField(
+                new SimulatedNfcVTag(a, 28, 4), new SimulatedNfcVTag(b, 28, 4)));
+
+        List<byte[]> found = inventory.inventory();
+
+        assertTrue(found.isEmpty());
+        assertFalse(inventory.isComplete());
+        assertEquals(NfcVInventory.DEFAULT_MAX_MASK_LENGTH / 4, inventory.getCollisionCount());
+        assertTrue(inventory.getFrameCount() <= NfcVInventory.DEFAULT_MAX_FRAMES);
+    }
+
+    @Test
+    public void fullMaskSeparatesTagsThatDifferOnlyInHighBits() throws Exception {
+        byte[] a = id(0x5555);
+        byte[] b = id(0x5555);
+        b[6] = 0x07;
+        NfcVInventory inventory = inventory(new SimulatedNfcVField(
+                new SimulatedNfcVTag(a, 28, 4), new SimulatedNfcVTag(b, 28, 4)));
+        inventory.setMaxMaskLength(64);
+        inventory.setMaxFrames(1024);
+
+        List<byte[]> found = inventory.inventory();
+
+        assertEquals(2, found.size());
+        assertTrue(inventory.isComplete());
+    }
+
+    @Test
+    public void fastInventoryReadReturnsUidAndAllBlocks() throws Exception {
+        SimulatedNfcVTag tag = tag(0x12345678L);
+        for (int i = 0; i < tag.getMemory().length; i++) {
+            tag.getMemory()[i] = (byte) (0x80 + i);
+        }
+        SimulatedNfcVField field = new SimulatedNfcVField(tag);
+        NfcVInventory inventory = inventory(field);
+
+        //超过8字节的数据，UID不能从数据中取得
+        Map<String, byte[]> read = inventory.inventoryRead(VendorExtension.NXP, 2, 5);
+
+        assertEquals(1, read.size());
+        assertEquals("E004010012345678", read.keySet().iterator().next());
+        assertArrayEquals(Arrays.copyOfRange(tag.getMemory(), 8, 28), read.values().iterator().next());
+        assertEquals(1, field.getRoundTrips());
+    }
+
+    @Test
+    public void fastInventoryReadCollisionFallsBackToInventory() throws Exception {
+        SimulatedNfcVTag a = tag(0x01);
+        SimulatedNfcVTag b = tag(0x02);
+        a.getMemory()[4] = 0x11;
+        b.getMemory()[4] = 0x22;
+        NfcVInventory inventory = inventory(new SimulatedNfcVField(a, b));
+
+        Map<String, byte[]> read = inventory.inventoryRead(VendorExtension.NXP, 1, 3);
+
+        assertEquals(2, read.size());
+        assertArrayEquals(Arrays.copyOfRange(a.getMemory(), 4, 16), read.get("E004010000000001"));
+        assertArrayEquals(Arrays.copyOfRange(b.getMemory(), 4, 16), read.get("E004010000000002"));
+    }
+
+    private static NfcVInventory inventory(SimulatedNfcVField field) {
+        NfcVInventory inventory = new NfcVInventory(field);
+        inventory.setMetrics(null);
+        return inventory;
+    }
+
+    /**
+     * NXP ICODE SLIX的UID，低40位为序列号
+     */
+    private static byte[] id(long serial) {
+        byte[] id = new byte[8];
+        for (int i = 0; i < 5; i++) {
+            id[i] = (byte) (serial >>> (i * 8));
+        }
+        id[5] = 0x01;
+        id[6] = 0x04;
+        id[7] = (byte) 0xE0;
+        return id;
+    }
+
+    private static SimulatedNfcVTag tag(long serial) {
+        return new SimulatedNfcVTag(id(serial), 28, 4);
+    }
+
+    private static Set<Long> serials(List<byte[]> ids) {
+        Set<Long> serials = new HashSet<>();
+        for (byte[] id : ids) {
+            long serial = 0;
+            for (int i = 0; i < 5; i++) {
+                serial |= (id[i] & 0xFFL) << (i * 8);
+            }
+            serials.add(serial);
+        }
+        return serials;
+    }
+}
@@ -0,0 +1,147 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import com.gzrj.test.nfc.mynfctest.TestTags.FaultTag;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.gzrj.test.nfc.mynfctest.TestTags.tag;
+import static com.gzrj.test.nfc.mynfctest.TestTags.util;
+import static org.junit.Assert.*;
+
+/**
+ * 按字段读写：原地更新只写该字段的block，变长时先写新位置再改目录，写目录时卡片离开原来的内容仍然有效
+ * Created by RP_S on 2017/11/11.
+ */
+public class NfcVRecordStoreTest {
+
+    /*
+     * 12个字段的目录：3 + 12 * 3 = 39字节，10个4字节的block
+     */
+    private static final int DIRECTORY_BLOCKS = 10;
+
+    @Test
+    public void unformattedTagIsDetected() throws Exception {
+        NfcVRecordStore store = new NfcVRecordStore(util(tag(0x91)));
+
+        assertFalse(store.isFormatted());
+        try {
+            store.get(1);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void fieldsRoundTripThroughTheTag() throws Exception {
+        FaultTag tag = tag(0x92);
+        NfcVRecordStore store = new NfcVRecordStore(util(tag));
+        store.format(NfcVRecordStore.DEFAULT_MAX_FIELDS);
+        store.putString(1, "SN-0000123456");
+        store.putString(2, "LOT-A17");
+        store.put(3, new byte[]{1, 2, 3});
+
+        //新的实例从标签读取目录
+        NfcVRecordStore reopened = new NfcVRecordStore(util(tag));
+        assertTrue(reopened.isFormatted());
+        assertEquals("SN-0000123456", reopened.getString(1));
+        assertEquals("LOT-A17", reopened.getString(2));
+        assertArrayEquals(new byte[]{1, 2, 3}, reopened.get(3));
+        assertNull(reopened.get(4));
+        assertArrayEquals(new int[]{1, 2, 3}, reopened.getFieldIds());
+    }
+
+    @Test
+    public void updateInPlaceWritesOnlyFieldBlocks() throws Exception {
+        FaultTag tag = tag(0x93);
+        NfcVRecordStore store = new NfcVRecordStore(util(tag));
+        store.format(NfcVRecordStore.DEFAULT_MAX_FIELDS);
+        store.putString(1, "SN-0000123456");
+        store.putString(2, "LOT-A17");
+        tag.written.clear();
+
+        store.putString(2, "LOT-B02");
+
+        assertFalse(tag.written.isEmpty());
+        for (int block : tag.written) {
+            assertTrue("block " + block, block >= DIRECTORY_BLOCKS);
+        }
+        assertEquals("LOT-B02", new NfcVRecordStore(util(tag)).getString(2));
+        assertEquals("SN-0000123456", new NfcVRecordStore(util(tag)).getString(1));
+    }
+
+    @Test
+    public void growingFieldMovesAndRewritesOneDirectoryBlock() throws Exception {
+        FaultTag tag = tag(0x94);
+        NfcVRecordStore store = new NfcVRecordStore(util(tag));
+        store.format(NfcVRecordStore.DEFAULT_MAX_FIELDS);
+        store.put(1, new byte[1]);
+        store.put(2, new byte[1]);
+        tag.written.clear();
+
+        store.put(1, new byte[20]);
+
+        List<Integer> directoryWrites = new ArrayList<>();
+        for (int block : tag.written) {
+            if (block < DIRECTORY_BLOCKS) {
+                directoryWrites.add(block);
+            }
+        }
+        assertEquals(1, directoryWrites.size());
+        //新内容写完以后才改目录
+        assertEquals(directoryWrites.get(0), tag.written.get(tag.written.size() - 1));
+        assertArrayEquals(new byte[20], new NfcVRecordStore(util(tag)).get(1));
+    }
+
+    @Test
+    public void tornDirectoryWriteKeepsOldValue() throws Exception {
+        FaultTag tag = tag(0x95);
+        NfcVRecordStore store = new NfcVRecordStore(util(tag));
+        store.format(NfcVRecordStore.DEFAULT_MAX_FIELDS);
+        store.putString(1, "OLD");
+
+        tag.loseWritesBelow(DIRECTORY_BLOCKS);
+        try {
+            store.putString(1, "SN-0000123456;LOT-A17;2017-10-27");
+            fail();
+        } catch (IOException expected) {
+        }
+        tag.loseWritesBelow(0);
+
+        assertEquals("OLD", new NfcVRecordStore(util(tag)).getString(1));
+    }
+
+    @Test
+    public void removeFreesBlocks() throws Exception {
+        FaultTag tag = tag(0x96);
+        NfcVRecordStore store = new NfcVRecordStore(util(tag));
+        store.format(NfcVRecordStore.DEFAULT_MAX_FIELDS);
+        int free = store.getFreeBlocks();
+        store.put(1, new byte[10]);
+        assertEquals(free - 4, store.getFreeBlocks());
+
+        assertTrue(store.remove(1));
+        assertFalse(store.remove(1));
+
+        assertEquals(free, store.getFreeBlocks());
+        assertNull(new NfcVRecordStore(util(tag)).get(1));
+    }
+
+    @Test
+    public void fieldLargerThanFreeSpaceIsRejected() throws Exception {
+        FaultTag tag = tag(0x97);
+        NfcVRecordStore store = new NfcVRecordStore(util(tag));
+        store.format(NfcVRecordStore.DEFAULT_MAX_FIELDS);
+        byte[] before = tag.getMemory().clone();
+
+        try {
+            store.put(1, new byte[store.getFreeBlocks() * 4]);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertArrayEquals(before, tag.getMemory());
+    }
+}
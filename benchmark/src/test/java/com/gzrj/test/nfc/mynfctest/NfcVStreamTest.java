@@ -0,0 +1,205 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import com.gzrj.test.nfc.mynfctest.TestTags.FaultTag;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.gzrj.test.nfc.mynfctest.TestTags.tag;
+import static org.junit.Assert.*;
+
+/**
+ * 标签输入输出流：输入流按窗口读取，mark/reset在窗口内不再通信；输出流只在block边界写入，close时补0写入最后一个block
+ * Created by RP_S on 2017/11/11.
+ */
+public class NfcVStreamTest {
+
+    @Test
+    public void inputReadsOnlyTheWindowsItNeeds() throws Exception {
+        FaultTag tag = random(0xC1);
+        NfcVInputStream in = new NfcVInputStream(util(tag), 0, 2);
+
+        byte[] head = new byte[6];
+        assertEquals(6, in.read(head));
+
+        assertArrayEquals(Arrays.copyOf(tag.getMemory(), 6), head);
+        assertEquals(1, tag.count(0x23));
+        assertEquals(2, in.available());
+    }
+
+    @Test
+    public void resetInsideTheWindowDoesNotReadAgain() throws Exception {
+        FaultTag tag = random(0xC2);
+        NfcVInputStream in = new NfcVInputStream(util(tag), 0, 2);
+        in.read();
+        in.mark(0);
+        byte[] first = new byte[5];
+        in.read(first);
+
+        in.reset();
+        byte[] again = new byte[5];
+        in.read(again);
+
+        assertArrayEquals(first, again);
+        assertArrayEquals(Arrays.copyOfRange(tag.getMemory(), 1, 6), again);
+        assertEquals(1, tag.count(0x23));
+    }
+
+    @Test
+    public void resetOutsideTheWindowReadsAgain() throws Exception {
+        FaultTag tag = random(0xC3);
+        NfcVInputStream in = new NfcVInputStream(util(tag), 0, 2);
+        assertTrue(in.markSupported());
+        in.mark(0);
+        byte[] first = new byte[12];
+        in.read(first);
+        assertEquals(2, tag.count(0x23));
+
+        in.reset();
+        byte[] again = new byte[12];
+        in.read(again);
+
+        assertArrayEquals(first, again);
+        assertArrayEquals(Arrays.copyOf(tag.getMemory(), 12), again);
+        //两个窗口都重新读取
+        assertEquals(4, tag.count(0x23));
+    }
+
+    @Test
+    public void skipBlocksDoesNotRead() throws Exception {
+        FaultTag tag = random(0xC4);
+        NfcVInputStream in = new NfcVInputStream(util(tag), 0, 2);
+        in.read();
+
+        //先到block 1开始的位置，再跳过2个block
+        assertEquals(2, in.skipBlocks(2));
+        assertEquals(3, in.getBlock());
+        assertEquals(1, tag.count(0x23));
+
+        assertEquals(tag.getMemory()[12] & 0xFF, in.read());
+    }
+
+    @Test
+    public void inputEndsAtTheLastBlock() throws Exception {
+        FaultTag tag = random(0xC5);
+        NfcVInputStream in = new NfcVInputStream(util(tag), 2, 8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[7];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+
+        assertArrayEquals(Arrays.copyOfRange(tag.getMemory(), 8, tag.getMemory().length), out.toByteArray());
+        assertEquals(-1, in.read());
+        assertEquals(0, in.skip(1));
+    }
+
+    @Test
+    public void flushWritesOnlyWholeBlocks() throws Exception {
+        FaultTag tag = filled(0xC6);
+        NfcVOutputStream out = new NfcVOutputStream(util(tag), 0, 4);
+        out.write(new byte[]{1, 2, 3, 4, 5, 6});
+        assertTrue(tag.written.isEmpty());
+
+        out.flush();
+
+        assertEquals(Arrays.asList(0), tag.written);
+        assertEquals(1, out.getBlock());
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 0x7F, 0x7F}, Arrays.copyOf(tag.getMemory(), 6));
+
+        //最后不满一个block的部分补0
+        out.close();
+
+        assertEquals(Arrays.asList(0, 1), tag.written);
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6, 0, 0, 0x7F}, Arrays.copyOf(tag.getMemory(), 9));
+    }
+
+    @Test
+    public void fullBufferIsWrittenBeforeMoreData() throws Exception {
+        FaultTag tag = filled(0xC7);
+        NfcVOutputStream out = new NfcVOutputStream(util(tag), 2, 2);
+        byte[] data = new byte[8];
+        Arrays.fill(data, (byte) 0x11);
+        out.write(data);
+        assertTrue(tag.written.isEmpty());
+
+        out.write(0x22);
+
+        assertEquals(Arrays.asList(2, 3), tag.written);
+        assertEquals(4, out.getBlock());
+        out.close();
+        assertEquals(Arrays.asList(2, 3, 4), tag.written);
+        assertArrayEquals(new byte[]{0x22, 0, 0, 0}, Arrays.copyOfRange(tag.getMemory(), 16, 20));
+    }
+
+    @Test
+    public void writingPastTheLastBlockFails() throws Exception {
+        FaultTag tag = filled(0xC8);
+        NfcVOutputStream out = new NfcVOutputStream(util(tag), 26, 4);
+        out.write(new byte[8]);
+
+        try {
+            out.write(0);
+            fail();
+        } catch (IOException expected) {
+        }
+        out.close();
+
+        assertEquals(Arrays.asList(26, 27), tag.written);
+        try {
+            out.write(0);
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void outputRoundTripsThroughInput() throws Exception {
+        FaultTag tag = filled(0xC9);
+        NfcVUtil util = util(tag);
+        byte[] data = new byte[37];
+        new Random(37).nextBytes(data);
+
+        NfcVOutputStream out = new NfcVOutputStream(util);
+        out.write(data);
+        out.close();
+
+        byte[] read = new byte[data.length];
+        NfcVInputStream in = new NfcVInputStream(util);
+        assertEquals(data.length, in.read(read));
+        assertArrayEquals(data, read);
+        assertEquals(0, in.read());
+    }
+
+    /**
+     * 内容随机的标签
+     */
+    private static FaultTag random(int ic) {
+        FaultTag tag = tag(ic);
+        new Random(ic).nextBytes(tag.getMemory());
+        return tag;
+    }
+
+    /**
+     * 内容全部为0x7F的标签，可以看出补0的部分
+     */
+    private static FaultTag filled(int ic) {
+        FaultTag tag = tag(ic);
+        Arrays.fill(tag.getMemory(), (byte) 0x7F);
+        return tag;
+    }
+
+    /**
+     * 只使用标准的Read Multiple Blocks
+     */
+    private static NfcVUtil util(FaultTag tag) throws Exception {
+        NfcVUtil util = TestTags.util(tag);
+        util.setVendorExtension(null);
+        return util;
+    }
+}
@@ -0,0 +1,178 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import com.gzrj.test.nfc.mynfctest.TestTags.FaultTag;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * 指令帧：addressed模式带UID，selected模式不带；会话空闲关闭后重新选中，选中失败时改回addressed模式
+ * Created by RP_S on 2017/11/11.
+ */
+public class NfcVUtilFrameTest {
+
+    @Test
+    public void addressedFramesCarryUid() throws Exception {
+        FaultTag tag = session(0x71);
+        NfcVUtil util = open(tag);
+
+        util.readBlocks(3, 1);
+
+        byte[] frame = tag.last();
+        assertEquals(NfcVUtil.FLAG_ADDRESSED, frame[0] & (NfcVUtil.FLAG_ADDRESSED | NfcVUtil.FLAG_SELECTED));
+        assertEquals(0x23, frame[1]);
+        assertArrayEquals(tag.getId(), Arrays.copyOfRange(frame, 2, 10));
+        assertArrayEquals(new byte[]{3, 0}, Arrays.copyOfRange(frame, 10, frame.length));
+    }
+
+    @Test
+    public void selectedFramesDropUid() throws Exception {
+        FaultTag tag = session(0x72);
+        NfcVUtil util = open(tag);
+
+        assertTrue(util.select());
+        assertTrue(tag.isSelected());
+        util.readBlocks(3, 1);
+
+        byte[] frame = tag.last();
+        assertEquals(NfcVUtil.FLAG_SELECTED, frame[0] & (NfcVUtil.FLAG_ADDRESSED | NfcVUtil.FLAG_SELECTED));
+        assertArrayEquals(new byte[]{0x23, 3, 0}, Arrays.copyOfRange(frame, 1, frame.length));
+    }
+
+    @Test
+    public void deselectReturnsToAddressed() throws Exception {
+        FaultTag tag = session(0x73);
+        NfcVUtil util = open(tag);
+        util.select();
+
+        util.deselect();
+        util.readBlocks(3, 1);
+
+        assertFalse(util.isSelected());
+        assertFalse(tag.isSelected());
+        assertEquals(NfcVUtil.FLAG_ADDRESSED, tag.last()[0] & (NfcVUtil.FLAG_ADDRESSED | NfcVUtil.FLAG_SELECTED));
+    }
+
+    @Test
+    public void idleCloseBetweenCommandsReselects() throws Exception {
+        FaultTag tag = session(0x74);
+        NfcVUtil util = open(tag);
+        util.select();
+
+        //分两段读取，第一段之后空闲关闭，标签回到ready状态
+        tag.setMaxReadBatchBlocks(14);
+        util.readBlocks(0, 28);
+        tag.frames.clear();
+        tag.closeAfter(1);
+        byte[] blocks = util.readBlocks(0, 28);
+
+        assertArrayEquals(tag.getMemory(), blocks);
+        assertEquals(0, tag.getFailures());
+        assertTrue(util.isSelected());
+        assertTrue(tag.isSelected());
+        assertEquals(3, tag.frames.size());
+        assertEquals(0x25, tag.frames.get(1)[1]);
+        assertEquals(NfcVUtil.FLAG_SELECTED, tag.frames.get(2)[0] & (NfcVUtil.FLAG_ADDRESSED | NfcVUtil.FLAG_SELECTED));
+    }
+
+    @Test
+    public void failedReselectSendsCommandAddressed() throws Exception {
+        FaultTag tag = session(0x75);
+        NfcVUtil util = open(tag);
+        util.select();
+
+        tag.setMaxReadBatchBlocks(14);
+        util.readBlocks(0, 28);
+        tag.frames.clear();
+        tag.refuseSelect(true);
+        tag.closeAfter(1);
+        byte[] blocks = util.readBlocks(0, 28);
+
+        assertArrayEquals(tag.getMemory(), blocks);
+        assertEquals(0, tag.getFailures());
+        assertFalse(util.isSelected());
+        byte[] frame = tag.last();
+        assertEquals(NfcVUtil.FLAG_ADDRESSED, frame[0] & (NfcVUtil.FLAG_ADDRESSED | NfcVUtil.FLAG_SELECTED));
+        assertArrayEquals(tag.getId(), Arrays.copyOfRange(frame, 2, 10));
+        assertArrayEquals(new byte[]{14, 13}, Arrays.copyOfRange(frame, 10, frame.length));
+    }
+
+    @Test
+    public void failedReselectReaddressesCustomCommands() throws Exception {
+        FaultTag tag = session(0x76);
+        NfcVUtil util = open(tag);
+        util.setVendorExtension(VendorExtension.NXP);
+        util.select();
+
+        tag.setMaxReadBatchBlocks(14);
+        util.readBlocks(0, 28);
+        tag.frames.clear();
+        tag.refuseSelect(true);
+        tag.closeAfter(1);
+        byte[] blocks = util.readBlocks(0, 28);
+
+        assertArrayEquals(tag.getMemory(), blocks);
+        assertEquals(0, tag.getFailures());
+        byte[] frame = tag.last();
+        assertEquals(0xC3, frame[1] & 0xFF);
+        assertEquals(NfcVUtil.FLAG_ADDRESSED, frame[0] & (NfcVUtil.FLAG_ADDRESSED | NfcVUtil.FLAG_SELECTED));
+        assertEquals(0x04, frame[2]);
+        assertArrayEquals(tag.getId(), Arrays.copyOfRange(frame, 3, 11));
+    }
+
+    @Test
+    public void traceRecorderLocksTheInnerSession() throws Exception {
+        FaultTag tag = session(0x77);
+        final NfcVUtil util = TestTags.util(new NfcVTraceRecorder(tag, new ByteArrayOutputStream()));
+        util.getSystemInfo();
+        final IOException[] error = new IOException[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    util.readBlocks(3, 1);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+        int before = tag.frames.size();
+
+        //空闲关闭持有会话的锁时，指令等待
+        synchronized (tag) {
+            reader.start();
+            reader.join(200);
+            assertEquals(before, tag.frames.size());
+        }
+        reader.join();
+
+        assertNull(error[0]);
+        assertEquals(before + 1, tag.frames.size());
+    }
+
+    /**
+     * block内容为序号的标签
+     */
+    private static FaultTag session(int ic) {
+        FaultTag tag = TestTags.tag(ic);
+        for (int i = 0; i < tag.getMemory().length; i++) {
+            tag.getMemory()[i] = (byte) i;
+        }
+        return tag;
+    }
+
+    /**
+     * 不使用厂商指令，先读取系统信息
+     */
+    private static NfcVUtil open(FaultTag tag) throws Exception {
+        NfcVUtil util = TestTags.util(tag);
+        util.setVendorExtension(null);
+        util.getSystemInfo();
+        return util;
+    }
+}
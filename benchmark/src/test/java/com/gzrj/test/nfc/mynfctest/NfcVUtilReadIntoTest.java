@@ -0,0 +1,122 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import com.gzrj.test.nfc.mynfctest.TestTags.FaultTag;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.gzrj.test.nfc.mynfctest.TestTags.PAYLOAD;
+import static com.gzrj.test.nfc.mynfctest.TestTags.tag;
+import static com.gzrj.test.nfc.mynfctest.TestTags.util;
+import static org.junit.Assert.*;
+
+/**
+ * 读入调用者的缓冲：从position开始写入，带数组的缓冲直接读入，direct缓冲经过临时数组；readAll复用缓冲和解码器
+ * Created by RP_S on 2017/11/11.
+ */
+public class NfcVUtilReadIntoTest {
+
+    @Test
+    public void heapBufferIsFilledAtItsPosition() throws Exception {
+        FaultTag tag = random(0xD1);
+        NfcVUtil util = util(tag);
+        ByteBuffer dst = ByteBuffer.allocate(20);
+        dst.position(4);
+
+        assertTrue(util.readInto(dst, 2, 3));
+
+        assertEquals(16, dst.position());
+        assertArrayEquals(new byte[4], Arrays.copyOf(dst.array(), 4));
+        assertArrayEquals(Arrays.copyOfRange(tag.getMemory(), 8, 20), Arrays.copyOfRange(dst.array(), 4, 16));
+    }
+
+    @Test
+    public void slicedBufferUsesItsArrayOffset() throws Exception {
+        FaultTag tag = random(0xD2);
+        NfcVUtil util = util(tag);
+        ByteBuffer backing = ByteBuffer.allocate(16);
+        backing.position(8);
+        ByteBuffer dst = backing.slice();
+
+        assertTrue(util.readInto(dst, 0, 2));
+
+        assertEquals(8, dst.position());
+        assertArrayEquals(new byte[8], Arrays.copyOf(backing.array(), 8));
+        assertArrayEquals(Arrays.copyOf(tag.getMemory(), 8), Arrays.copyOfRange(backing.array(), 8, 16));
+    }
+
+    @Test
+    public void directBufferIsFilledThroughScratch() throws Exception {
+        FaultTag tag = random(0xD3);
+        NfcVUtil util = util(tag);
+        ByteBuffer dst = ByteBuffer.allocateDirect(32);
+
+        assertTrue(util.readInto(dst, 1, 4));
+        assertTrue(util.readInto(dst, 20, 2));
+
+        assertEquals(24, dst.position());
+        dst.flip();
+        byte[] read = new byte[24];
+        dst.get(read);
+        assertArrayEquals(Arrays.copyOfRange(tag.getMemory(), 4, 20), Arrays.copyOf(read, 16));
+        assertArrayEquals(Arrays.copyOfRange(tag.getMemory(), 80, 88), Arrays.copyOfRange(read, 16, 24));
+    }
+
+    @Test
+    public void tooSmallBufferIsRejectedBeforeReading() throws Exception {
+        FaultTag tag = random(0xD4);
+        NfcVUtil util = util(tag);
+        ByteBuffer dst = ByteBuffer.allocate(12);
+        dst.position(1);
+
+        try {
+            util.readInto(dst, 0, 3);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            util.readInto(ByteBuffer.allocate(8), 27, 2);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+
+        assertEquals(1, dst.position());
+        assertEquals(0, tag.count(0x23) + tag.count(0xC3));
+    }
+
+    @Test
+    public void readAllReusesBuffersBetweenPayloads() throws Exception {
+        FaultTag tag = tag(0xD5);
+        NfcVUtil util = util(tag);
+        util.setCodec(PayloadCodecs.UTF8);
+
+        util.writeString(PAYLOAD, false);
+        assertEquals(PAYLOAD, util.readAll());
+        util.writeString("SN-1", false);
+        assertEquals("SN-1", util.readAll());
+        util.writeString("序列号-42", false);
+        assertEquals("序列号-42", util.readAll());
+    }
+
+    @Test
+    public void legacyContentStopsAtPadding() throws Exception {
+        FaultTag tag = tag(0xD6);
+        byte[] legacy = "SN-0000123456".getBytes(Charset.forName(NfcVUtil.CHAR_SET));
+        System.arraycopy(legacy, 0, tag.getMemory(), 0, legacy.length);
+
+        assertEquals("SN-0000123456", util(tag).readAll());
+    }
+
+    /**
+     * 内容随机的标签
+     */
+    private static FaultTag random(int ic) {
+        FaultTag tag = tag(ic);
+        new Random(ic).nextBytes(tag.getMemory());
+        return tag;
+    }
+}
@@ -0,0 +1,101 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 批量读取：芯片不支持的分段减半，连续成功后再加倍，读取的内容不受分段影响。
+ * 分段按芯片类型记录，每个测试使用不同的芯片标识（UID第5字节）
+ * Created by RP_S on 2017/11/11.
+ */
+public class NfcVUtilReadTest {
+
+    @Test
+    public void largeBatchesFallBackToSmallerChunks() throws Exception {
+        SimulatedNfcVTag tag = tag(0x51, 64);
+        tag.setMaxReadBatchBlocks(8);
+        NfcVUtil util = util(tag);
+
+        byte[] blocks = util.readAllBlocks();
+
+        assertArrayEquals(tag.getMemory(), blocks);
+        assertTrue(util.getReadBatchBlocks() <= 8);
+    }
+
+    @Test
+    public void chunkGrowsBackAfterConsecutiveSuccesses() throws Exception {
+        SimulatedNfcVTag limited = tag(0x52, 64);
+        limited.setMaxReadBatchBlocks(4);
+        util(limited).readAllBlocks();
+        int shrunk = util(limited).getReadBatchBlocks();
+        assertTrue(shrunk <= 4);
+
+        //同类芯片的另一张卡片支持整帧读取
+        SimulatedNfcVTag tag = tag(0x52, 64);
+        NfcVUtil util = util(tag);
+        int frameLimit = (tag.getMaxTransceiveLength() - 1) / tag.getBlockSize();
+        for (int i = 0; i < 40 && util.getReadBatchBlocks() < frameLimit; i++) {
+            assertArrayEquals(tag.getMemory(), util.readAllBlocks());
+        }
+
+        assertEquals(frameLimit, (int) util.getReadBatchBlocks());
+        long before = tag.getRoundTrips();
+        util.readAllBlocks();
+        assertEquals(2, tag.getRoundTrips() - before);
+    }
+
+    @Test
+    public void singleFailureDoesNotShrinkForever() throws Exception {
+        SimulatedNfcVTag tag = tag(0x53, 64);
+        NfcVUtil util = util(tag);
+        util.readAllBlocks();
+        int full = util.getReadBatchBlocks();
+
+        //一次干扰后分段减半
+        tag.setMaxReadBatchBlocks(full / 2);
+        util.readAllBlocks();
+        tag.setMaxReadBatchBlocks(256);
+        assertTrue(util.getReadBatchBlocks() < full);
+
+        for (int i = 0; i < NfcVUtil.READ_BATCH_GROW_AFTER * 2 && util.getReadBatchBlocks() < full; i++) {
+            util.readAllBlocks();
+        }
+        assertEquals(full, (int) util.getReadBatchBlocks());
+    }
+
+    @Test
+    public void contentIsIndependentOfChunkSize() throws Exception {
+        for (int max : new int[]{1, 2, 3, 5, 7, 64}) {
+            SimulatedNfcVTag tag = tag(0x60 + max, 64);
+            tag.setMaxReadBatchBlocks(max);
+            NfcVUtil util = util(tag);
+
+            assertArrayEquals("max " + max, tag.getMemory(), util.readAllBlocks());
+            byte[] part = util.readBlocks(5, 17);
+            byte[] expected = new byte[17 * tag.getBlockSize()];
+            System.arraycopy(tag.getMemory(), 5 * tag.getBlockSize(), expected, 0, expected.length);
+            assertArrayEquals("max " + max, expected, part);
+        }
+    }
+
+    /**
+     * 内容随机的标签
+     */
+    private static SimulatedNfcVTag tag(int ic, int blockCount) {
+        SimulatedNfcVTag tag = TestTags.tag(ic, blockCount);
+        new Random(ic).nextBytes(tag.getMemory());
+        return tag;
+    }
+
+    /**
+     * 只使用标准的Read Multiple Blocks
+     */
+    private static NfcVUtil util(SimulatedNfcVTag tag) throws Exception {
+        NfcVUtil util = TestTags.util(tag);
+        util.setVendorExtension(null);
+        return util;
+    }
+}
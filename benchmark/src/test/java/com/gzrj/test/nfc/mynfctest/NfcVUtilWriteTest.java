@@ -0,0 +1,213 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import com.gzrj.test.nfc.mynfctest.TestTags.FaultTag;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static com.gzrj.test.nfc.mynfctest.TestTags.PAYLOAD;
+import static com.gzrj.test.nfc.mynfctest.TestTags.tag;
+import static com.gzrj.test.nfc.mynfctest.TestTags.util;
+import static org.junit.Assert.*;
+
+/**
+ * 差异写入：只写入与目标内容不同的block；批量写入（0x24）按段发送，不支持时改为逐block写入。
+ * 批量写入的支持按芯片类型记录，每个测试使用不同的芯片标识（UID第5字节）
+ * Created by RP_S on 2017/11/11.
+ */
+public class NfcVUtilWriteTest {
+
+    @Test
+    public void sameContentWritesNothing() throws Exception {
+        FaultTag tag = tag(0x81);
+        NfcVUtil util = util(tag);
+        util.writeString(PAYLOAD, false);
+        byte[] before = tag.getMemory().clone();
+        tag.reset();
+
+        WriteReport report = util.writeString(PAYLOAD, false);
+
+        assertTrue(report.isSuccess());
+        assertTrue(report.getWrittenBlocks().isEmpty());
+        assertEquals(tag.getBlockCount(), report.getSkippedBlocks().size());
+        assertEquals(0, tag.writes());
+        assertArrayEquals(before, tag.getMemory());
+    }
+
+    @Test
+    public void onlyChangedBlocksAreWritten() throws Exception {
+        FaultTag tag = tag(0x82);
+        NfcVUtil util = util(tag);
+        util.setCodec(PayloadCodecs.UTF8);
+        util.writeString(PAYLOAD, false);
+        tag.reset();
+
+        //只改最后一个字符，头部长度不变
+        String changed = PAYLOAD.substring(0, PAYLOAD.length() - 1) + "8";
+        WriteReport report = util.writeString(changed, false);
+
+        int block = (2 + PAYLOAD.length() - 1) / tag.getBlockSize();
+        assertEquals(Arrays.asList(block), report.getWrittenBlocks());
+        assertEquals(tag.getBlockCount() - 1, report.getSkippedBlocks().size());
+        assertEquals(1, tag.writes());
+        assertEquals(changed, util.readAll());
+    }
+
+    @Test
+    public void shorterContentClearsTheRest() throws Exception {
+        FaultTag tag = tag(0x83);
+        NfcVUtil util = util(tag);
+        util.writeString(PAYLOAD, false);
+
+        WriteReport report = util.writeString("SN-1", false);
+
+        assertTrue(report.isSuccess());
+        assertEquals("SN-1", util.readAll());
+        byte[] expected = new byte[tag.getMemory().length];
+        byte[] encoded = PayloadCodecs.encode("SN-1", null);
+        System.arraycopy(encoded, 0, expected, 0, encoded.length);
+        assertArrayEquals(expected, tag.getMemory());
+    }
+
+    @Test
+    public void clearFirstRewritesEverything() throws Exception {
+        FaultTag tag = tag(0x84);
+        NfcVUtil util = util(tag);
+        util.writeString(PAYLOAD, false);
+        tag.reset();
+
+        WriteReport report = util.writeString(PAYLOAD, true);
+
+        assertTrue(report.isSuccess());
+        assertTrue(report.getSkippedBlocks().isEmpty());
+        assertTrue(tag.writes() > 0);
+        assertEquals(PAYLOAD, util.readAll());
+    }
+
+    @Test
+    public void lockedBlockIsReportedAsFailed() throws Exception {
+        FaultTag tag = tag(0x85);
+        NfcVUtil util = util(tag);
+        tag.lockBlock(1);
+
+        WriteReport report = util.writeString(PAYLOAD, false);
+
+        assertFalse(report.isSuccess());
+        assertEquals(Arrays.asList(1), report.getFailedBlocks());
+    }
+
+    @Test
+    public void lockStateIsKeptAcrossTaps() throws Exception {
+        FaultTag tag = tag(0x8B);
+        tag.lockBlock(1);
+        TagCache cache = new TagCache(TagCache.DEFAULT_MAX_ENTRIES, TagCache.DEFAULT_MAX_BYTES);
+        NfcVUtil util = util(tag);
+        util.setCache(cache);
+        util.writeString(PAYLOAD, false);
+        assertEquals(1, tag.count(0x2C));
+
+        //再次接触：block内容重新读取，锁定状态从缓存取
+        cache.invalidateBlocks(util.getUID());
+        tag.reset();
+        NfcVUtil again = util(tag);
+        again.setCache(cache);
+        WriteReport report = again.writeString("SN-1", false);
+
+        assertEquals(0, tag.count(0x2C));
+        assertTrue(tag.count(0x23) + tag.count(0xC3) > 0);
+        assertEquals(Arrays.asList(1), report.getFailedBlocks());
+    }
+
+    @Test
+    public void batchedWriteSendsMultipleBlockFrames() throws Exception {
+        FaultTag tag = tag(0x86);
+        NfcVUtil util = util(tag);
+        util.setWriteBatchBlocks(4);
+        byte[] data = data(10);
+
+        WriteReport report = util.writeBlocks(2, data);
+
+        assertTrue(report.isSuccess());
+        assertEquals(10, report.getWrittenBlocks().size());
+        assertEquals(3, tag.count(0x24));
+        assertEquals(0, tag.count(0x21));
+        assertEquals(Boolean.TRUE, util.isWriteBatchSupported());
+        assertArrayEquals(data, Arrays.copyOfRange(tag.getMemory(), 8, 48));
+    }
+
+    @Test
+    public void unsupportedBatchFallsBackToSingleBlocks() throws Exception {
+        FaultTag tag = tag(0x87);
+        tag.setWriteBatchSupported(false);
+        NfcVUtil util = util(tag);
+        byte[] data = data(10);
+
+        assertTrue(util.writeBlocks(0, data).isSuccess());
+        assertEquals(Boolean.FALSE, util.isWriteBatchSupported());
+        assertArrayEquals(data, Arrays.copyOf(tag.getMemory(), 40));
+
+        //之后同类芯片不再探测
+        tag.reset();
+        data[0] = 0x7F;
+        assertTrue(util(tag).writeBlocks(0, data).isSuccess());
+        assertEquals(0, tag.count(0x24));
+        assertEquals(10, tag.count(0x21));
+        assertArrayEquals(data, Arrays.copyOf(tag.getMemory(), 40));
+    }
+
+    @Test
+    public void silentBatchProbeFallsBackToSingleBlocks() throws Exception {
+        FaultTag tag = tag(0x88);
+        tag.silence(0x24);
+        NfcVUtil util = util(tag);
+        byte[] data = data(6);
+
+        WriteReport report = util.writeBlocks(0, data);
+
+        assertTrue(report.isSuccess());
+        assertEquals(Boolean.FALSE, util.isWriteBatchSupported());
+        assertArrayEquals(data, Arrays.copyOf(tag.getMemory(), 24));
+    }
+
+    @Test
+    public void rejectedBatchIsRewrittenBlockByBlock() throws Exception {
+        FaultTag tag = tag(0x89);
+        tag.setMaxWriteBatchBlocks(2);
+        NfcVUtil util = util(tag);
+        util.setWriteBatchBlocks(4);
+        byte[] data = data(8);
+
+        WriteReport report = util.writeBlocks(0, data);
+
+        assertTrue(report.isSuccess());
+        assertEquals(8, report.getWrittenBlocks().size());
+        assertArrayEquals(data, Arrays.copyOf(tag.getMemory(), 32));
+    }
+
+    @Test
+    public void differentialWriteBatchesContiguousRuns() throws Exception {
+        FaultTag tag = tag(0x8A);
+        NfcVUtil util = util(tag);
+        util.setWriteBatchBlocks(4);
+        byte[] image = new byte[util.getBlockSpace()];
+        //两段不同：block 1-3和block 10
+        Arrays.fill(image, 4, 16, (byte) 0x11);
+        Arrays.fill(image, 40, 44, (byte) 0x22);
+
+        WriteReport report = util.writeImage(image);
+
+        assertEquals(Arrays.asList(1, 2, 3, 10), report.getWrittenBlocks());
+        assertEquals(1, tag.count(0x24));
+        assertEquals(1, tag.count(0x21));
+        assertArrayEquals(image, tag.getMemory());
+    }
+
+    private static byte[] data(int blocks) {
+        byte[] data = new byte[blocks * 4];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i + 1);
+        }
+        return data;
+    }
+}
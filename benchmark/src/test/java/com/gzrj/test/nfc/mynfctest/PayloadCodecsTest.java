@@ -0,0 +1,203 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * 内容编码：各编码的往返、长度头的1/2字节边界、字典版本，以及经过卡片的写入和读取
+ * Created by RP_S on 2017/11/11.
+ */
+public class PayloadCodecsTest {
+
+    @Test
+    public void bcdRoundTrip() throws Exception {
+        assertRoundTrip("2017-11-11 08:30:00", PayloadCodecs.BCD);
+        //奇数个字符时最后半个字节为结束标记
+        assertRoundTrip("12345", PayloadCodecs.BCD);
+        assertRoundTrip("", PayloadCodecs.BCD);
+        assertEquals(2 + 3, PayloadCodecs.encode("12345", PayloadCodecs.BCD).length);
+    }
+
+    @Test
+    public void sixBitRoundTrip() throws Exception {
+        assertRoundTrip("SN-0000123456;LOT-A17", PayloadCodecs.SIX_BIT);
+        for (int n = 1; n <= 8; n++) {
+            assertRoundTrip(repeat('Z', n), PayloadCodecs.SIX_BIT);
+        }
+        assertFalse(PayloadCodecs.SIX_BIT.canEncode("lower"));
+    }
+
+    @Test
+    public void dictionaryRoundTrip() throws Exception {
+        String s = "SN-0000123456;LOT-A17;2017-10-27;REWORK;https://www.example.com";
+        byte[] encoded = PayloadCodecs.encode(s, PayloadCodecs.DICTIONARY);
+
+        assertEquals(PayloadCodecs.DICTIONARY_ID, PayloadCodecs.getCodecId(encoded));
+        assertEquals(PayloadCodecs.DICTIONARY.getVersion(), encoded[PayloadCodecs.getHeaderLength(encoded)]);
+        assertTrue(encoded.length < s.length());
+        assertEquals(s, PayloadCodecs.decode(encoded));
+        assertRoundTrip("中文内容", PayloadCodecs.DICTIONARY);
+        assertRoundTrip("", PayloadCodecs.DICTIONARY);
+    }
+
+    @Test
+    public void autoSelectPicksShortestEncoding() throws Exception {
+        assertEquals(PayloadCodecs.BCD.getId(), PayloadCodecs.getCodecId(PayloadCodecs.encode("0123456789", null)));
+        assertEquals(PayloadCodecs.SIX_BIT.getId(), PayloadCodecs.getCodecId(PayloadCodecs.encode("ABCDEFGHIJ", null)));
+        assertEquals("abc", PayloadCodecs.decode(PayloadCodecs.encode("abc", null)));
+    }
+
+    @Test
+    public void lengthHeaderBoundaries() throws Exception {
+        int[] lengths = {0, 1, 0x7F, 0x80, 0x100, PayloadCodecs.MAX_LENGTH};
+        for (int length : lengths) {
+            String s = repeat('a', length);
+            byte[] encoded = PayloadCodecs.encode(s, PayloadCodecs.UTF8);
+            int header = length < 0x80 ? 2 : 3;
+
+            assertEquals("length " + length, header, PayloadCodecs.getHeaderLength(encoded));
+            assertEquals("length " + length, header + length, encoded.length);
+            assertEquals("length " + length, encoded.length, PayloadCodecs.encodedLength(encoded));
+            assertEquals("length " + length, s, PayloadCodecs.decode(encoded));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooLongIsRejected() throws Exception {
+        PayloadCodecs.encode(repeat('a', PayloadCodecs.MAX_LENGTH + 1), PayloadCodecs.UTF8);
+    }
+
+    @Test
+    public void paddingAfterPayloadIsIgnored() throws Exception {
+        byte[] encoded = PayloadCodecs.encode("SN-1", PayloadCodecs.SIX_BIT);
+        byte[] padded = Arrays.copyOf(encoded, 64);
+
+        assertEquals("SN-1", PayloadCodecs.decode(padded));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedPayloadFails() throws Exception {
+        byte[] encoded = PayloadCodecs.encode(repeat('a', 0x80), PayloadCodecs.UTF8);
+        PayloadCodecs.decode(encoded, encoded.length - 1);
+    }
+
+    @Test
+    public void legacyPayloadWithoutHeaderIsUtf8() throws Exception {
+        byte[] bytes = "旧内容".getBytes("UTF-8");
+        byte[] legacy = Arrays.copyOf(bytes, 16);
+
+        assertFalse(PayloadCodecs.hasHeader(legacy));
+        assertEquals("旧内容", PayloadCodecs.decode(legacy, bytes.length));
+    }
+
+    @Test
+    public void olderDictionaryVersionStillDecodes() throws Exception {
+        String s = "SN-0000123456;LOT-A17";
+        byte[] v1 = PayloadCodecs.encode(s, PayloadCodecs.DICTIONARY);
+        PayloadCodecs.DictionaryCodec v2 = new PayloadCodecs.DictionaryCodec(200, new String[]{"SN-0000", "LOT-A"});
+        PayloadCodecs.register(v2);
+        try {
+            byte[] encoded = PayloadCodecs.encode(s, null);
+
+            assertEquals(PayloadCodecs.DICTIONARY_ID, PayloadCodecs.getCodecId(encoded));
+            assertEquals((byte) 200, encoded[PayloadCodecs.getHeaderLength(encoded)]);
+            assertEquals(s, PayloadCodecs.decode(encoded));
+            assertEquals(s, PayloadCodecs.decode(v1));
+        } finally {
+            PayloadCodecs.register(PayloadCodecs.DICTIONARY);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownDictionaryVersionFails() throws Exception {
+        byte[] encoded = PayloadCodecs.encode("SN-1", PayloadCodecs.DICTIONARY);
+        encoded[PayloadCodecs.getHeaderLength(encoded)] = (byte) 0xFE;
+        PayloadCodecs.decode(encoded);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void differentWordsCannotReuseAVersion() {
+        PayloadCodecs.register(new PayloadCodecs.DictionaryCodec(PayloadCodecs.DICTIONARY.getVersion(), new String[]{"XY"}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void singleByteWordsAreRejected() {
+        new PayloadCodecs.DictionaryCodec(201, new String[]{"SN-", ";"});
+    }
+
+    @Test
+    public void everyDictionaryWordIsUsed() throws Exception {
+        String[] words = {"SN-", "LOT-", "2017-", "2018-", "2019-", "REWORK", "0000", "000",
+                "http://", "https://", "www.", ".com", ".cn", "-0", "-1", ";LOT-"};
+        for (String word : words) {
+            byte[] encoded = PayloadCodecs.encode(word, PayloadCodecs.DICTIONARY);
+            //头部、版本、一个字典字节
+            assertEquals(word, PayloadCodecs.getHeaderLength(encoded) + 2, encoded.length);
+            assertEquals(word, PayloadCodecs.decode(encoded));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void dictionaryIdIsReserved() {
+        PayloadCodecs.register(new PayloadCodec() {
+            @Override
+            public int getId() {
+                return PayloadCodecs.DICTIONARY_ID;
+            }
+
+            @Override
+            public boolean canEncode(String s) {
+                return true;
+            }
+
+            @Override
+            public byte[] encode(String s) {
+                return new byte[0];
+            }
+
+            @Override
+            public String decode(byte[] data, int offset, int length) {
+                return "";
+            }
+        });
+    }
+
+    @Test
+    public void writeStringThenReadAllThroughTag() throws Exception {
+        SimulatedNfcVTag tag = new SimulatedNfcVTag(28, 4);
+        tag.connect();
+        NfcVUtil util = new NfcVUtil(tag);
+        util.setCache(null);
+        PayloadCodec[] codecs = {null, PayloadCodecs.UTF8, PayloadCodecs.BCD, PayloadCodecs.SIX_BIT, PayloadCodecs.DICTIONARY};
+        String[] payloads = {"SN-0000123456;LOT-A17", "2017-11-11", "SN-42", "SN-0000987654;REWORK"};
+        for (PayloadCodec codec : codecs) {
+            util.setCodec(codec);
+            for (String s : payloads) {
+                if (codec != null && !codec.canEncode(s)) {
+                    continue;
+                }
+                assertTrue(util.writeString(s, true).isSuccess());
+                assertEquals(s, util.readAll());
+            }
+        }
+    }
+
+    private static void assertRoundTrip(String s, PayloadCodec codec) throws IOException {
+        byte[] encoded = PayloadCodecs.encode(s, codec);
+
+        assertTrue(PayloadCodecs.hasHeader(encoded));
+        assertEquals(codec.getId(), PayloadCodecs.getCodecId(encoded));
+        assertEquals(encoded.length, PayloadCodecs.encodedLength(encoded));
+        assertEquals(s, PayloadCodecs.decode(encoded));
+    }
+
+    private static String repeat(char c, int n) {
+        char[] chars = new char[n];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,244 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import com.gzrj.test.nfc.mynfctest.TestTags.FaultTag;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.gzrj.test.nfc.mynfctest.TestTags.PAYLOAD;
+import static com.gzrj.test.nfc.mynfctest.TestTags.tag;
+import static org.junit.Assert.*;
+
+/**
+ * 离线准备的写入：同一张卡片的写入合并，保存到文件，接触时只写入不同的block，超过存储空间的内容不写入
+ * Created by RP_S on 2017/11/11.
+ */
+public class PendingWriteQueueTest {
+
+    private static final Charset UTF_8 = Charset.forName(NfcVUtil.CHAR_SET);
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("pending_writes", ".properties");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void laterStringReplacesEarlierWrites() throws Exception {
+        FaultTag tag = tag(0xB1);
+        NfcVUtil util = util(tag);
+        PendingWriteQueue queue = queue();
+        queue.putBytes(util.getUID(), 0, new byte[]{0x7F, 0x7F});
+        queue.putString(util.getUID(), "SN-1");
+        queue.putString(util.getUID(), PAYLOAD);
+
+        WriteReport report = queue.flush(util);
+
+        assertTrue(report.isSuccess());
+        assertEquals(PAYLOAD, util.readAll());
+        assertEquals(0, queue.size());
+        assertNull(queue.flush(util));
+    }
+
+    @Test
+    public void bytesOverlayPreparedString() throws Exception {
+        FaultTag tag = tag(0xB2);
+        NfcVUtil util = util(tag);
+        PendingWriteQueue queue = queue();
+        queue.putString(util.getUID(), PAYLOAD);
+        //UTF8编码有2字节头部
+        queue.putBytes(util.getUID(), 2, "XN".getBytes(UTF_8));
+        queue.putBytes(util.getUID(), 3, "Z".getBytes(UTF_8));
+
+        assertTrue(queue.flush(util).isSuccess());
+
+        assertEquals("XZ" + PAYLOAD.substring(2), util.readAll());
+    }
+
+    @Test
+    public void bytesOnlyChangeCurrentContent() throws Exception {
+        FaultTag tag = tag(0xB3);
+        NfcVUtil util = util(tag);
+        util.writeString(PAYLOAD, false);
+        tag.reset();
+        PendingWriteQueue queue = queue();
+        queue.putBytes(util.getUID(), 2 + PAYLOAD.length() - 1, "8".getBytes(UTF_8));
+
+        WriteReport report = queue.flush(util);
+
+        assertEquals(Arrays.asList((2 + PAYLOAD.length() - 1) / 4), report.getWrittenBlocks());
+        assertEquals(1, tag.writes());
+        assertEquals(PAYLOAD.substring(0, PAYLOAD.length() - 1) + "8", util.readAll());
+    }
+
+    @Test
+    public void queueSurvivesReopen() throws Exception {
+        FaultTag tag = tag(0xB4);
+        NfcVUtil util = util(tag);
+        PendingWriteQueue queue = queue();
+        queue.putString(util.getUID(), PAYLOAD);
+        queue.putBytes(util.getUID(), 2, "X".getBytes(UTF_8));
+        queue.putString("E004000000000001", "SN-1");
+
+        PendingWriteQueue reopened = queue();
+        assertEquals(2, reopened.size());
+        assertTrue(reopened.flush(util).isSuccess());
+        assertEquals("X" + PAYLOAD.substring(1), util.readAll());
+
+        //写入后的删除也保存
+        assertEquals(1, queue().size());
+        assertFalse(queue().hasPending(util.getUID()));
+    }
+
+    @Test
+    public void nextTagWritesAnyTag() throws Exception {
+        NfcVUtil first = util(tag(0xB5));
+        NfcVUtil second = util(tag(0xB6));
+        PendingWriteQueue queue = queue();
+        queue.putString(null, "SN-1");
+        queue.putString(second.getUID(), PAYLOAD);
+        assertTrue(queue.hasPending(first.getUID()));
+
+        //该卡片自己的内容优先
+        assertTrue(queue.flush(second).isSuccess());
+        assertEquals(PAYLOAD, second.readAll());
+        assertTrue(queue.hasPending(second.getUID()));
+
+        assertTrue(queue.flush(first).isSuccess());
+        assertEquals("SN-1", first.readAll());
+        assertEquals(0, queue.size());
+        assertNull(queue.flush(second));
+    }
+
+    @Test
+    public void oversizeStringIsRejectedWhenPut() throws Exception {
+        NfcVUtil util = util(tag(0xB7));
+        PendingWriteQueue queue = queue();
+
+        try {
+            queue.putString(util.getUID(), oversize(util), util.getBlockSpace());
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, queue.size());
+        assertEquals(0, queue().size());
+    }
+
+    @Test
+    public void oversizeEntryIsRejectedAndDroppedWhenFlushed() throws Exception {
+        FaultTag tag = tag(0xB8);
+        NfcVUtil util = util(tag);
+        PendingWriteQueue queue = queue();
+        //存储空间未知时只检查能否编码
+        queue.putString(util.getUID(), oversize(util));
+        byte[] before = tag.getMemory().clone();
+
+        WriteReport report = queue.flush(util);
+
+        assertFalse(report.isSuccess());
+        assertNotNull(report.getRejectReason());
+        assertEquals(0, tag.writes());
+        assertArrayEquals(before, tag.getMemory());
+        assertEquals(0, queue.size());
+        assertEquals(0, queue().size());
+    }
+
+    @Test
+    public void sizeIsCheckedWithTheCodecUsedForWriting() throws Exception {
+        FaultTag tag = tag(0xBB);
+        NfcVUtil util = util(tag);
+        int space = util.getBlockSpace();
+        char[] digits = new char[space];
+        Arrays.fill(digits, '7');
+        String text = new String(digits);
+
+        //自动选择编码时数字压缩后可以写入，与util的编码无关
+        PendingWriteQueue auto = new PendingWriteQueue(file);
+        auto.putString(util.getUID(), text, space);
+        assertTrue(auto.flush(util).isSuccess());
+        assertEquals(text, util.readAll());
+
+        //UTF8编码超过存储空间，保存时就拒绝
+        try {
+            queue().putString(util.getUID(), text, space);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void outOfRangeBytesAreRejected() throws Exception {
+        FaultTag tag = tag(0xB9);
+        NfcVUtil util = util(tag);
+        PendingWriteQueue queue = queue();
+        queue.putBytes(util.getUID(), util.getBlockSpace(), new byte[1]);
+
+        WriteReport report = queue.flush(util);
+
+        assertNotNull(report.getRejectReason());
+        assertEquals(0, tag.writes());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void interruptedFlushKeepsEntry() throws Exception {
+        FaultTag tag = tag(0xBA);
+        NfcVUtil util = util(tag);
+        PendingWriteQueue queue = queue();
+        queue.putString(util.getUID(), PAYLOAD);
+        tag.loseWritesAfter(0, -1);
+
+        try {
+            queue.flush(util);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertTrue(queue.hasPending(util.getUID()));
+
+        tag.loseWritesAfter(-1, -1);
+        assertTrue(queue().flush(util(tag)).isSuccess());
+        assertEquals(PAYLOAD, util.readAll());
+    }
+
+    /**
+     * 任何编码都超过卡片存储空间的字符串：随机字符不能压缩
+     */
+    private static String oversize(NfcVUtil util) throws IOException {
+        Random random = new Random(util.getBlockSpace());
+        char[] chars = new char[util.getBlockSpace() * 2];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (0x21 + random.nextInt(0x5E));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * UTF8编码的队列，putBytes的位置从2字节头部之后开始
+     */
+    private PendingWriteQueue queue() {
+        PendingWriteQueue queue = new PendingWriteQueue(file);
+        queue.setCodec(PayloadCodecs.UTF8);
+        return queue;
+    }
+
+    private static NfcVUtil util(FaultTag tag) throws Exception {
+        NfcVUtil util = TestTags.util(tag);
+        util.setCodec(PayloadCodecs.UTF8);
+        return util;
+    }
+}
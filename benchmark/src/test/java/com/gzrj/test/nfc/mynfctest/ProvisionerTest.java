@@ -0,0 +1,180 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import com.gzrj.test.nfc.mynfctest.TestTags.FaultTag;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.gzrj.test.nfc.mynfctest.TestTags.tag;
+import static com.gzrj.test.nfc.mynfctest.TestTags.util;
+import static org.junit.Assert.*;
+
+/**
+ * 批量写入：每张新卡片绑定下一个任务，失败或卡片离开时任务放回队首，完成记录在.done文件中，重新加载时跳过
+ * Created by RP_S on 2017/11/11.
+ */
+public class ProvisionerTest {
+
+    private File doneFile;
+
+    @Before
+    public void setUp() throws IOException {
+        doneFile = File.createTempFile("jobs", ".csv" + Provisioner.DONE_SUFFIX);
+        doneFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        doneFile.delete();
+    }
+
+    @Test
+    public void csvSkipsHeaderAndComments() throws Exception {
+        List<Provisioner.Job> jobs = Provisioner.parseCsv(new StringReader(
+                "id,payload\n# 第一批\nA1,SN-1\n\n\"A2\",\"SN,2\"\nSN-3\n"), PayloadCodecs.UTF8);
+
+        assertEquals(3, jobs.size());
+        assertEquals("A1", jobs.get(0).getId());
+        assertEquals("SN-1", jobs.get(0).getPayload());
+        assertEquals("A2", jobs.get(1).getId());
+        assertEquals("SN,2", jobs.get(1).getPayload());
+        //只有内容时编号为行号
+        assertEquals("4", jobs.get(2).getId());
+        assertEquals("SN-3", jobs.get(2).getPayload());
+    }
+
+    @Test
+    public void eachNewTagGetsTheNextJob() throws Exception {
+        Provisioner provisioner = new Provisioner(jobs("SN-1", "SN-2"), doneFile);
+        NfcVUtil first = util(tag(0x31));
+        NfcVUtil second = util(tag(0x32));
+
+        Provisioner.Result result = provisioner.provision(first);
+        assertEquals(Provisioner.Outcome.WRITTEN, result.getOutcome());
+        assertEquals("1", result.getJob().getId());
+        assertEquals("SN-1", first.readAll());
+
+        //同一张卡片再次接触不写入新的任务
+        assertEquals(Provisioner.Outcome.ALREADY_WRITTEN, provisioner.provision(first).getOutcome());
+
+        assertEquals(Provisioner.Outcome.WRITTEN, provisioner.provision(second).getOutcome());
+        assertEquals("SN-2", second.readAll());
+        assertEquals(Provisioner.Outcome.NO_JOB, provisioner.provision(util(tag(0x33))).getOutcome());
+        assertEquals(2, provisioner.getDone());
+        assertEquals(0, provisioner.getRemaining());
+        assertEquals(2, provisioner.getTagsPerMinute());
+    }
+
+    @Test
+    public void doneFileSkipsCompletedJobsOnReload() throws Exception {
+        NfcVUtil util = util(tag(0x34));
+        new Provisioner(jobs("SN-1", "SN-2"), doneFile).provision(util);
+
+        List<String> lines = lines(doneFile);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0), lines.get(0).startsWith(util.getUID() + ",1,"));
+
+        Provisioner reloaded = new Provisioner(jobs("SN-1", "SN-2"), doneFile);
+        assertEquals(1, reloaded.getRemaining());
+        assertEquals(1, reloaded.getDone());
+        assertEquals(2, reloaded.getTotal());
+        assertEquals(Provisioner.Outcome.ALREADY_WRITTEN, reloaded.provision(util).getOutcome());
+
+        NfcVUtil next = util(tag(0x35));
+        assertEquals("2", reloaded.provision(next).getJob().getId());
+        assertEquals(2, lines(doneFile).size());
+    }
+
+    @Test
+    public void lostTagPutsTheJobBack() throws Exception {
+        Provisioner provisioner = new Provisioner(jobs("SN-0000123456;LOT-A17", "SN-2"), doneFile);
+        FaultTag tag = tag(0x36);
+        tag.loseWritesAfter(1, -1);
+
+        try {
+            provisioner.provision(util(tag));
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(2, provisioner.getRemaining());
+        assertFalse(doneFile.exists());
+
+        //下一张卡片写入同一个任务
+        NfcVUtil next = util(tag(0x37));
+        Provisioner.Result result = provisioner.provision(next);
+        assertEquals(Provisioner.Outcome.WRITTEN, result.getOutcome());
+        assertEquals("1", result.getJob().getId());
+        assertEquals(2, result.getJob().getAttempts());
+        assertEquals("SN-0000123456;LOT-A17", next.readAll());
+    }
+
+    @Test
+    public void failedWritesAreRequeuedUntilMaxAttempts() throws Exception {
+        Provisioner provisioner = new Provisioner(jobs("SN-1", "SN-2"), doneFile);
+        provisioner.setMaxAttempts(2);
+        FaultTag tag = tag(0x38);
+        tag.lockBlock(0);
+        NfcVUtil util = util(tag);
+
+        assertEquals(Provisioner.Outcome.REQUEUED, provisioner.provision(util).getOutcome());
+        assertEquals(2, provisioner.getRemaining());
+
+        Provisioner.Result result = provisioner.provision(util);
+        assertEquals(Provisioner.Outcome.FAILED, result.getOutcome());
+        assertFalse(result.getReport().isSuccess());
+        assertEquals(1, provisioner.getRemaining());
+        assertEquals(Arrays.asList(result.getJob()), provisioner.getFailed());
+        assertEquals(0, provisioner.getDone());
+    }
+
+    @Test
+    public void oversizeJobFailsWithoutWriting() throws Exception {
+        char[] chars = new char[200];
+        Arrays.fill(chars, 'X');
+        Provisioner provisioner = new Provisioner(jobs(new String(chars), "SN-2"), doneFile);
+        FaultTag tag = tag(0x39);
+
+        Provisioner.Result result = provisioner.provision(util(tag));
+
+        assertEquals(Provisioner.Outcome.FAILED, result.getOutcome());
+        assertNull(result.getReport());
+        assertEquals(0, tag.writes());
+        assertEquals(1, provisioner.getFailed().size());
+        assertEquals("2", provisioner.provision(util(tag)).getJob().getId());
+    }
+
+    /**
+     * UTF8编码的任务，编号从1开始
+     */
+    private static List<Provisioner.Job> jobs(String... payloads) throws IOException {
+        List<Provisioner.Job> jobs = new ArrayList<>();
+        for (int i = 0; i < payloads.length; i++) {
+            jobs.add(new Provisioner.Job(String.valueOf(i + 1), payloads[i], PayloadCodecs.UTF8));
+        }
+        return jobs;
+    }
+
+    private static List<String> lines(File file) throws IOException {
+        List<String> lines = new ArrayList<>();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,181 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * 扫描记录：追加后立即可以查询，写满一段后换到下一段，重新打开时重建索引并忽略写坏的记录，压缩后只保留每张卡片最近的记录
+ * Created by RP_S on 2017/11/11.
+ */
+public class ScanLogTest {
+
+    private static final byte[] INFO = {0x00, 0x0F};
+
+    /*
+     * 100KB的内容，11条写满一段
+     */
+    private static final int LARGE = 100 * 1024;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("scans", "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void appendedScanIsVisibleBeforeItIsWritten() throws Exception {
+        ScanLog log = new ScanLog(dir);
+        log.append("E004010000000001", 1000L, INFO, image(1, 112));
+
+        ScanLog.Entry entry = log.get("E004010000000001");
+
+        assertNotNull(entry);
+        assertEquals(1000L, entry.getTime());
+        assertArrayEquals(INFO, entry.getInfo());
+        assertArrayEquals(image(1, 112), entry.getImage());
+        assertEquals(1, log.size());
+        assertNull(log.get("E004010000000002"));
+    }
+
+    @Test
+    public void scansSurviveReopen() throws Exception {
+        ScanLog log = new ScanLog(dir);
+        log.append("E004010000000001", 1000L, INFO, image(1, 112));
+        log.append("E004010000000002", 2000L, INFO, image(2, 112));
+        log.append("E004010000000001", 3000L, INFO, image(3, 112));
+        log.flush();
+
+        ScanLog reopened = new ScanLog(dir);
+
+        assertEquals(2, reopened.size());
+        assertEquals(3000L, reopened.get("E004010000000001").getTime());
+        assertArrayEquals(image(3, 112), reopened.get("E004010000000001").getImage());
+        assertArrayEquals(image(2, 112), reopened.get("E004010000000002").getImage());
+        long[] usage = reopened.getUsage();
+        assertTrue(usage[1] > 0 && usage[1] < usage[0]);
+    }
+
+    @Test
+    public void fullSegmentRollsOverToTheNext() throws Exception {
+        ScanLog log = new ScanLog(dir);
+        for (int i = 0; i < 12; i++) {
+            log.append(uid(i), i, INFO, image(i, LARGE));
+        }
+        log.flush();
+
+        assertTrue(new File(dir, "scan-0.log").isFile());
+        assertTrue(new File(dir, "scan-1.log").isFile());
+        assertEquals(ScanLog.SEGMENT_SIZE, new File(dir, "scan-0.log").length());
+
+        ScanLog reopened = new ScanLog(dir);
+        assertEquals(12, reopened.size());
+        for (int i = 0; i < 12; i++) {
+            assertArrayEquals(uid(i), image(i, LARGE), reopened.get(uid(i)).getImage());
+        }
+    }
+
+    @Test
+    public void compactionKeepsOnlyTheLatestScans() throws Exception {
+        ScanLog log = new ScanLog(dir);
+        log.append("E004010000000001", 1000L, INFO, image(1, 112));
+        log.append("E004010000000001", 2000L, INFO, image(2, 112));
+        log.append("E004010000000002", 3000L, INFO, image(3, 112));
+        log.flush();
+        log.append("E004010000000001", 4000L, INFO, image(4, 112));
+        log.flush();
+        assertTrue(log.getUsage()[1] > 0);
+
+        log.compactNow();
+
+        long[] usage = log.getUsage();
+        assertEquals(0, usage[1]);
+        assertEquals(2 * (24 + 16 + INFO.length + 112), usage[0]);
+        //旧分段已删除
+        assertFalse(new File(dir, "scan-0.log").exists());
+        assertArrayEquals(new String[]{"scan-1.log"}, dir.list());
+        assertEquals(4000L, log.get("E004010000000001").getTime());
+
+        ScanLog reopened = new ScanLog(dir);
+        assertEquals(2, reopened.size());
+        assertArrayEquals(image(4, 112), reopened.get("E004010000000001").getImage());
+        assertArrayEquals(image(3, 112), reopened.get("E004010000000002").getImage());
+        assertEquals(0, reopened.getUsage()[1]);
+    }
+
+    @Test
+    public void mostlyOverwrittenLogIsCompactedAfterWriting() throws Exception {
+        ScanLog log = new ScanLog(dir);
+        for (int i = 0; i < 8; i++) {
+            log.append("E004010000000001", i, INFO, image(i, LARGE));
+        }
+        log.flush();
+
+        assertEquals(0, log.getUsage()[1]);
+        assertEquals(1, dir.list().length);
+        assertArrayEquals(image(7, LARGE), new ScanLog(dir).get("E004010000000001").getImage());
+    }
+
+    @Test
+    public void tornRecordAndEverythingAfterItAreIgnored() throws Exception {
+        ScanLog log = new ScanLog(dir);
+        log.append("E004010000000001", 1000L, INFO, image(1, 112));
+        log.append("E004010000000002", 2000L, INFO, image(2, 112));
+        log.append("E004010000000003", 3000L, INFO, image(3, 112));
+        log.flush();
+
+        //第二条记录写了一半时断电
+        int size = 24 + 16 + INFO.length + 112;
+        RandomAccessFile file = new RandomAccessFile(new File(dir, "scan-0.log"), "rw");
+        file.seek(size + size / 2);
+        file.write(new byte[16]);
+        file.close();
+
+        ScanLog reopened = new ScanLog(dir);
+        assertEquals(1, reopened.size());
+        assertNotNull(reopened.get("E004010000000001"));
+        assertNull(reopened.get("E004010000000002"));
+        assertNull(reopened.get("E004010000000003"));
+
+        //之后的记录从写坏的位置开始覆盖
+        reopened.append("E004010000000004", 4000L, INFO, image(4, 112));
+        reopened.flush();
+        assertArrayEquals(image(4, 112), new ScanLog(dir).get("E004010000000004").getImage());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void scanLargerThanASegmentIsRejected() throws Exception {
+        new ScanLog(dir).append("E004010000000001", 0L, INFO, new byte[ScanLog.SEGMENT_SIZE]);
+    }
+
+    private static String uid(int i) {
+        return String.format("E0040100000000%02X", i);
+    }
+
+    private static byte[] image(int seed, int length) {
+        byte[] image = new byte[length];
+        Arrays.fill(image, (byte) seed);
+        image[0] = (byte) length;
+        return image;
+    }
+}
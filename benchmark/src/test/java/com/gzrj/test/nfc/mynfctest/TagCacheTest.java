@@ -0,0 +1,149 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * 标签内容缓存：按条目数和字节数LRU淘汰，只返回内容已知且未被写坏的block，接触时保留系统信息和锁定状态
+ * Created by RP_S on 2017/11/11.
+ */
+public class TagCacheTest {
+
+    /*
+     * 10个4字节的block，一个条目40字节
+     */
+    private static final int BLOCKS = 10;
+
+    private static final int BLOCK_SIZE = 4;
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() {
+        TagCache cache = new TagCache(2, TagCache.DEFAULT_MAX_BYTES);
+        fill(cache, "A");
+        fill(cache, "B");
+        //读取A之后B最久未使用
+        assertTrue(cache.read("A", 0, 1, new byte[BLOCK_SIZE], 0));
+
+        fill(cache, "C");
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertTrue(cache.isCached("A", 0));
+        assertFalse(cache.isCached("B", 0));
+        assertTrue(cache.isCached("C", 0));
+    }
+
+    @Test
+    public void byteBudgetEvictsEntries() {
+        TagCache cache = new TagCache(TagCache.DEFAULT_MAX_ENTRIES, 100);
+        fill(cache, "A");
+        fill(cache, "B");
+        assertEquals(80, cache.getBytes());
+
+        fill(cache, "C");
+
+        assertEquals(2, cache.size());
+        assertEquals(80, cache.getBytes());
+        assertFalse(cache.isCached("A", 0));
+
+        //系统信息也计入字节数
+        cache.putInfo("B", BLOCKS, BLOCK_SIZE, new byte[30]);
+
+        assertEquals(1, cache.size());
+        assertEquals(70, cache.getBytes());
+        assertNotNull(cache.getInfo("B"));
+        assertFalse(cache.isCached("C", 0));
+    }
+
+    @Test
+    public void entryLargerThanBudgetIsKept() {
+        TagCache cache = new TagCache(TagCache.DEFAULT_MAX_ENTRIES, 10);
+        fill(cache, "A");
+
+        assertEquals(1, cache.size());
+        assertTrue(cache.isCached("A", BLOCKS - 1));
+    }
+
+    @Test
+    public void onlyValidBlocksAreServed() {
+        TagCache cache = new TagCache(TagCache.DEFAULT_MAX_ENTRIES, TagCache.DEFAULT_MAX_BYTES);
+        byte[] data = {1, 2, 3, 4, 5, 6, 7, 8};
+        cache.update("A", BLOCKS, BLOCK_SIZE, 2, 2, data, 0);
+
+        byte[] dest = new byte[8];
+        assertFalse(cache.read("A", 1, 2, dest, 0));
+        assertTrue(cache.read("A", 2, 2, dest, 0));
+        assertArrayEquals(data, dest);
+        assertFalse(cache.read("A", BLOCKS - 1, 2, dest, 0));
+        assertFalse(cache.read("B", 0, 1, dest, 0));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void dirtyBlockIsReadAgainUntilUpdated() {
+        TagCache cache = new TagCache(TagCache.DEFAULT_MAX_ENTRIES, TagCache.DEFAULT_MAX_BYTES);
+        fill(cache, "A");
+
+        cache.markDirty("A", 3);
+
+        assertFalse(cache.isCached("A", 3));
+        assertTrue(cache.isCached("A", 2));
+        assertFalse(cache.read("A", 2, 2, new byte[8], 0));
+        BitSet dirty = new BitSet();
+        dirty.set(3);
+        assertEquals(dirty, cache.getDirtyBlocks("A"));
+
+        cache.update("A", BLOCKS, BLOCK_SIZE, 3, 1, new byte[BLOCK_SIZE], 0);
+
+        assertTrue(cache.isCached("A", 3));
+        assertTrue(cache.getDirtyBlocks("A").isEmpty());
+    }
+
+    @Test
+    public void invalidateBlocksKeepsInfoAndLocks() {
+        TagCache cache = new TagCache(TagCache.DEFAULT_MAX_ENTRIES, TagCache.DEFAULT_MAX_BYTES);
+        fill(cache, "A");
+        BitSet locks = new BitSet();
+        locks.set(1);
+        cache.putInfo("A", BLOCKS, BLOCK_SIZE, new byte[]{0x0F});
+        cache.putLocks("A", BLOCKS, BLOCK_SIZE, locks);
+        cache.markDirty("A", 4);
+
+        cache.invalidateBlocks("A");
+
+        assertFalse(cache.isCached("A", 0));
+        assertTrue(cache.getDirtyBlocks("A").isEmpty());
+        assertArrayEquals(new byte[]{0x0F}, cache.getInfo("A"));
+        assertEquals(locks, cache.getLocks("A"));
+
+        cache.invalidate("A");
+
+        assertNull(cache.getInfo("A"));
+        assertNull(cache.getLocks("A"));
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void changedLayoutDropsCachedBlocks() {
+        TagCache cache = new TagCache(TagCache.DEFAULT_MAX_ENTRIES, TagCache.DEFAULT_MAX_BYTES);
+        fill(cache, "A");
+
+        cache.putInfo("A", BLOCKS * 2, BLOCK_SIZE, new byte[]{0x0F});
+
+        assertFalse(cache.isCached("A", 0));
+        assertEquals(BLOCKS * 2 * BLOCK_SIZE + 1, cache.getBytes());
+    }
+
+    /**
+     * 缓存全部block
+     */
+    private static void fill(TagCache cache, String uid) {
+        byte[] data = new byte[BLOCKS * BLOCK_SIZE];
+        cache.update(uid, BLOCKS, BLOCK_SIZE, 0, BLOCKS, data, 0);
+    }
+}
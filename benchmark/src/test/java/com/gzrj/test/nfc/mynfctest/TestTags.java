@@ -0,0 +1,210 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 行为测试共用的标签和{@link NfcVUtil}。
+ * 批量读写的支持和分段按芯片类型记录在静态表中，每个测试使用不同的芯片标识（UID第5字节），互不影响
+ * Created by RP_S on 2017/11/11.
+ */
+final class TestTags {
+
+    static final String PAYLOAD = "SN-0000123456;LOT-A17;2017-10-27";
+
+    private TestTags() {
+    }
+
+    /**
+     * NXP的UID，低字节在前
+     *
+     * @param ic 芯片标识，每个测试不同
+     */
+    static byte[] id(int ic) {
+        return new byte[]{0x01, 0x02, 0x03, 0x04, 0x05, (byte) ic, 0x04, (byte) 0xE0};
+    }
+
+    /**
+     * 28个4字节block的标签
+     */
+    static FaultTag tag(int ic) {
+        return tag(ic, 28);
+    }
+
+    static FaultTag tag(int ic, int blockCount) {
+        return new FaultTag(id(ic), blockCount, 4);
+    }
+
+    /**
+     * 连接标签，不使用进程共享的缓存、系统信息、统计和写入记录
+     */
+    static NfcVUtil util(NfcVTransceiver tag) throws IOException {
+        tag.connect();
+        NfcVUtil util = new NfcVUtil(tag);
+        util.setCache(null);
+        util.setInfoStore(null);
+        util.setMetrics(null);
+        util.setJournal(null);
+        return util;
+    }
+
+    /**
+     * 记录发送的帧和写入的block，可以注入故障：写入时卡片离开、不响应某个指令、拒绝选中、指令之后关闭连接。
+     * 像{@link NfcVSession}一样未连接时自动连接
+     */
+    static class FaultTag extends SimulatedNfcVTag {
+        final List<byte[]> frames = new ArrayList<>();
+
+        /*
+         * Write Single Block和Write Multiple Blocks写入的block，按发送顺序
+         */
+        final List<Integer> written = new ArrayList<>();
+
+        private final int[] counts = new int[256];
+
+        /*
+         * 写入几个block之后卡片离开，为负数时不离开
+         */
+        private int writesBeforeLoss = -1;
+
+        /*
+         * 离开后还有几次写入不响应，为负数时一直不响应
+         */
+        private int lossCount = -1;
+
+        /*
+         * 起始block小于它的写入不响应
+         */
+        private int lostBelow;
+
+        /*
+         * 不响应的指令，为-1时都响应
+         */
+        private int silentCommand = -1;
+
+        private boolean refuseSelect;
+
+        /*
+         * 第几帧之后关闭连接，模拟空闲关闭
+         */
+        private int closeAfter = -1;
+
+        FaultTag(byte[] id, int blockCount, int blockSize) {
+            super(id, blockCount, blockSize);
+        }
+
+        /**
+         * 再写入count个block后卡片离开，之后的写入抛出{@link NoResponseException}
+         *
+         * @param count 为负数时取消
+         * @param times 不响应的次数，为负数时一直不响应
+         */
+        void loseWritesAfter(int count, int times) {
+            writesBeforeLoss = count < 0 ? -1 : written.size() + count;
+            lossCount = times;
+        }
+
+        /**
+         * 起始block小于block的写入不响应，为0时取消
+         */
+        void loseWritesBelow(int block) {
+            lostBelow = block;
+        }
+
+        /**
+         * 某个指令不响应，为-1时取消
+         */
+        void silence(int code) {
+            silentCommand = code;
+        }
+
+        void refuseSelect(boolean refuseSelect) {
+            this.refuseSelect = refuseSelect;
+        }
+
+        /**
+         * 再发送frames帧后关闭连接
+         */
+        void closeAfter(int frames) {
+            closeAfter = this.frames.size() + frames;
+        }
+
+        int count(int code) {
+            return counts[code];
+        }
+
+        /**
+         * Write Single Block和Write Multiple Blocks的帧数
+         */
+        int writes() {
+            return counts[0x21] + counts[0x24];
+        }
+
+        byte[] last() {
+            return frames.get(frames.size() - 1);
+        }
+
+        /**
+         * 清除帧、写入和指令计数
+         */
+        void reset() {
+            frames.clear();
+            written.clear();
+            Arrays.fill(counts, 0);
+            writesBeforeLoss = -1;
+        }
+
+        @Override
+        public byte[] transceive(byte[] cmd) throws IOException {
+            if (!isConnected()) {
+                connect();
+            }
+            frames.add(cmd.clone());
+            int code = cmd[1] & 0xFF;
+            counts[code]++;
+            try {
+                if (code == 0x21 || code == 0x24) {
+                    //addressed模式：flags、指令、UID、起始block[、数量-1]；selected模式没有UID
+                    int p = (cmd[0] & NfcVUtil.FLAG_ADDRESSED) != 0 ? 10 : 2;
+                    int first = cmd[p] & 0xFF;
+                    int count = code == 0x24 ? (cmd[p + 1] & 0xFF) + 1 : 1;
+                    if (first < lostBelow || lost()) {
+                        throw new NoResponseException("Tag was lost (simulated)");
+                    }
+                    for (int i = 0; i < count; i++) {
+                        written.add(first + i);
+                    }
+                }
+                return super.transceive(cmd);
+            } finally {
+                if (frames.size() == closeAfter) {
+                    close();
+                }
+            }
+        }
+
+        private boolean lost() {
+            if (writesBeforeLoss < 0 || written.size() < writesBeforeLoss || lossCount == 0) {
+                return false;
+            }
+            if (lossCount > 0) {
+                lossCount--;
+            }
+            return true;
+        }
+
+        @Override
+        protected byte[] handle(byte[] cmd) {
+            int code = cmd[1] & 0xFF;
+            if (code == silentCommand) {
+                return null;
+            }
+            if (refuseSelect && code == 0x25) {
+                return new byte[]{0x01, 0x0F};
+            }
+            return super.handle(cmd);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import com.gzrj.test.nfc.mynfctest.TestTags.FaultTag;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.gzrj.test.nfc.mynfctest.TestTags.PAYLOAD;
+import static com.gzrj.test.nfc.mynfctest.TestTags.tag;
+import static com.gzrj.test.nfc.mynfctest.TestTags.util;
+import static org.junit.Assert.*;
+
+/**
+ * 通信记录和重放：记录的帧与实际发送的相同，重放同样的操作只用记录的响应，记录中没有的请求由按记录构造的模拟标签响应
+ * Created by RP_S on 2017/11/11.
+ */
+public class TraceReplayTest {
+
+    @Test
+    public void recorderWritesEveryFrame() throws Exception {
+        FaultTag tag = written(0xF1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NfcVTraceRecorder recorder = new NfcVTraceRecorder(tag, out);
+        recorder.connect();
+        assertEquals(PAYLOAD, util(recorder).readAll());
+        recorder.close();
+
+        NfcVTrace trace = read(out);
+
+        assertArrayEquals(tag.getId(), trace.getId());
+        assertEquals(tag.getMaxTransceiveLength(), trace.getMaxTransceiveLength());
+        List<NfcVTrace.Event> events = trace.getEvents();
+        assertEquals(NfcVTrace.CONNECT, events.get(0).getType());
+        assertEquals(NfcVTrace.CLOSE, events.get(events.size() - 1).getType());
+        List<NfcVTrace.Event> frames = transceives(trace);
+        assertEquals(tag.frames.size(), frames.size());
+        assertEquals(frames.size(), trace.getRoundTrips());
+        for (int i = 0; i < frames.size(); i++) {
+            assertArrayEquals(tag.frames.get(i), frames.get(i).getRequest());
+            assertEquals(NfcVTrace.OK, frames.get(i).getResult());
+            assertEquals(0x00, frames.get(i).getResponse()[0]);
+        }
+    }
+
+    @Test
+    public void sameWorkloadReplaysOnlyRecordedResponses() throws Exception {
+        FaultTag tag = written(0xF2);
+        NfcVTrace trace = record(tag);
+
+        TraceReplayTransceiver replay = new TraceReplayTransceiver(trace);
+        assertEquals(PAYLOAD, util(replay).readAll());
+
+        assertEquals(0, replay.getSimulated());
+        assertEquals(trace.getRoundTrips(), replay.getReplayed());
+        assertTrue(replay.getElapsedNanos() > 0);
+    }
+
+    @Test
+    public void newRequestsAreAnsweredFromTheRecordedContent() throws Exception {
+        FaultTag tag = written(0xF3);
+        NfcVTrace trace = record(tag);
+
+        //模拟的标签按记录中第一次读取的内容构造
+        assertArrayEquals(tag.getMemory(), TraceReplayTransceiver.simulate(trace).getMemory());
+
+        //记录时用快速读取，重放时改用标准指令
+        TraceReplayTransceiver replay = new TraceReplayTransceiver(trace);
+        NfcVUtil util = util(replay);
+        util.setVendorExtension(null);
+
+        assertEquals(PAYLOAD, util.readAll());
+        assertTrue(replay.getSimulated() > 0);
+    }
+
+    @Test
+    public void recordedFailuresAreReplayed() throws Exception {
+        FaultTag tag = tag(0xF4);
+        tag.silence(0x2B);
+        byte[] systemInfo = {0x02, 0x2B};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NfcVTraceRecorder recorder = new NfcVTraceRecorder(tag, out);
+        recorder.connect();
+        try {
+            recorder.transceive(systemInfo);
+            fail();
+        } catch (NoResponseException expected) {
+        }
+        recorder.close();
+
+        NfcVTrace trace = read(out);
+        assertEquals(NfcVTrace.NO_RESPONSE, transceives(trace).get(0).getResult());
+
+        TraceReplayTransceiver replay = new TraceReplayTransceiver(trace);
+        replay.connect();
+        try {
+            replay.transceive(systemInfo);
+            fail();
+        } catch (NoResponseException expected) {
+        }
+        assertEquals(1, replay.getReplayed());
+    }
+
+    @Test
+    public void nothingIsRecordedAfterClose() throws Exception {
+        FaultTag tag = written(0xF5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NfcVTraceRecorder recorder = new NfcVTraceRecorder(tag, out);
+        recorder.connect();
+        recorder.close();
+        int size = out.size();
+
+        recorder.connect();
+        assertEquals(PAYLOAD, util(recorder).readAll());
+
+        assertEquals(size, out.size());
+        assertEquals(0, read(out).getRoundTrips());
+    }
+
+    /**
+     * 写入PAYLOAD的标签，写入的帧不计入
+     */
+    private static FaultTag written(int ic) throws Exception {
+        FaultTag tag = tag(ic);
+        util(tag).writeString(PAYLOAD, false);
+        tag.reset();
+        tag.close();
+        return tag;
+    }
+
+    /**
+     * 记录一次readAll
+     */
+    private static NfcVTrace record(FaultTag tag) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NfcVTraceRecorder recorder = new NfcVTraceRecorder(tag, out);
+        recorder.connect();
+        assertEquals(PAYLOAD, util(recorder).readAll());
+        recorder.close();
+        return read(out);
+    }
+
+    private static NfcVTrace read(ByteArrayOutputStream out) throws IOException {
+        return NfcVTrace.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static List<NfcVTrace.Event> transceives(NfcVTrace trace) {
+        List<NfcVTrace.Event> events = new ArrayList<>();
+        for (NfcVTrace.Event event : trace.getEvents()) {
+            if (event.getType() == NfcVTrace.TRANSCEIVE) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+}
@@ -0,0 +1,123 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import com.gzrj.test.nfc.mynfctest.TestTags.FaultTag;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.gzrj.test.nfc.mynfctest.TestTags.id;
+import static com.gzrj.test.nfc.mynfctest.TestTags.tag;
+import static com.gzrj.test.nfc.mynfctest.TestTags.util;
+import static org.junit.Assert.*;
+
+/**
+ * 厂商自定义指令：按UID中的厂商代码选择；芯片支持时用快速读取，不支持或收不到响应时改用标准指令，之后同类芯片不再尝试
+ * Created by RP_S on 2017/11/11.
+ */
+public class VendorExtensionTest {
+
+    @Test
+    public void extensionIsChosenByManufacturer() {
+        assertSame(VendorExtension.NXP, VendorExtension.forUID(id(0xE1)));
+        assertSame(VendorExtension.NXP, VendorExtension.get(0x04));
+
+        //TI没有注册
+        byte[] ti = id(0xE1);
+        ti[6] = 0x07;
+        assertNull(VendorExtension.forUID(ti));
+        byte[] notIso15693 = id(0xE1);
+        notIso15693[7] = 0x00;
+        assertNull(VendorExtension.forUID(notIso15693));
+        assertNull(VendorExtension.forUID(new byte[7]));
+        assertNull(VendorExtension.forUID(null));
+    }
+
+    @Test
+    public void registerReplacesTheSameManufacturer() {
+        VendorExtension first = new VendorExtension("EM", 0x16, 0xB3, VendorExtension.NONE);
+        VendorExtension second = new VendorExtension("EM", 0x16, VendorExtension.NONE, VendorExtension.NONE);
+        VendorExtension.register(first);
+        VendorExtension.register(second);
+
+        byte[] em = id(0xE2);
+        em[6] = 0x16;
+        assertSame(second, VendorExtension.forUID(em));
+    }
+
+    @Test
+    public void utilUsesTheExtensionOfItsTag() throws Exception {
+        assertSame(VendorExtension.NXP, util(tag(0xE3)).getVendorExtension());
+
+        byte[] ti = id(0xE3);
+        ti[6] = 0x07;
+        assertNull(util(new FaultTag(ti, 28, 4)).getVendorExtension());
+    }
+
+    @Test
+    public void supportedFastReadReplacesStandardRead() throws Exception {
+        FaultTag tag = random(0xE4);
+        NfcVUtil util = util(tag);
+
+        assertArrayEquals(tag.getMemory(), util.readAllBlocks());
+
+        assertTrue(tag.count(0xC3) > 0);
+        assertEquals(0, tag.count(0x23));
+        assertEquals(Boolean.TRUE, util.isFastReadSupported());
+        assertEquals(0xC3, tag.last()[1] & 0xFF);
+        assertEquals(0x04, tag.last()[2]);
+    }
+
+    @Test
+    public void unsupportedFastReadFallsBackOnce() throws Exception {
+        FaultTag tag = random(0xE5);
+        tag.setFastCommandsSupported(false);
+        NfcVUtil util = util(tag);
+
+        assertArrayEquals(tag.getMemory(), util.readAllBlocks());
+        assertEquals(1, tag.count(0xC3));
+        assertEquals(Boolean.FALSE, util.isFastReadSupported());
+
+        //同类芯片之后只用标准指令
+        tag.reset();
+        assertArrayEquals(tag.getMemory(), util(tag).readAllBlocks());
+        assertEquals(0, tag.count(0xC3));
+        assertTrue(tag.count(0x23) > 0);
+    }
+
+    @Test
+    public void unansweredFastReadReconnectsAndFallsBack() throws Exception {
+        FaultTag tag = random(0xE6);
+        //手机收不到加倍速率的响应
+        tag.silence(0xC3);
+        NfcVUtil util = util(tag);
+        long connects = tag.getConnects();
+
+        assertArrayEquals(tag.getMemory(), util.readAllBlocks());
+
+        assertEquals(1, tag.count(0xC3));
+        assertEquals(connects + 1, tag.getConnects());
+        assertEquals(Boolean.FALSE, util.isFastReadSupported());
+    }
+
+    @Test
+    public void noExtensionSendsOnlyStandardReads() throws Exception {
+        FaultTag tag = random(0xE7);
+        NfcVUtil util = util(tag);
+        util.setVendorExtension(null);
+
+        assertArrayEquals(tag.getMemory(), util.readAllBlocks());
+
+        assertEquals(0, tag.count(0xC3));
+        assertNull(util.isFastReadSupported());
+    }
+
+    /**
+     * 内容随机的标签
+     */
+    private static FaultTag random(int ic) {
+        FaultTag tag = tag(ic);
+        new Random(ic).nextBytes(tag.getMemory());
+        return tag;
+    }
+}
@@ -0,0 +1,169 @@
+package com.gzrj.test.nfc.mynfctest;
+
+import com.gzrj.test.nfc.mynfctest.TestTags.FaultTag;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.gzrj.test.nfc.mynfctest.TestTags.PAYLOAD;
+import static com.gzrj.test.nfc.mynfctest.TestTags.tag;
+import static org.junit.Assert.*;
+
+/**
+ * 可恢复的写入：卡片离开时保存进度，重新打开记录后只写入未确认的block
+ * Created by RP_S on 2017/11/11.
+ */
+public class WriteJournalTest {
+
+    /*
+     * UTF8编码：2字节头部 + 32字节内容，block 0-8
+     */
+    private static final int PAYLOAD_BLOCKS = 9;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("write_journal", ".properties");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void interruptedWriteIsPending() throws Exception {
+        FaultTag tag = tag(0xA1);
+        NfcVUtil util = util(tag, journal());
+        tag.loseWritesAfter(3, -1);
+
+        try {
+            util.writeStringResumable(PAYLOAD);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        assertTrue(util.hasPendingWrite());
+        WriteJournal.Entry entry = journal().get(util.getUID());
+        assertNotNull(entry);
+        assertEquals(0, entry.getFirstBlock());
+        for (int i = 0; i < entry.getBlockCount(4); i++) {
+            assertEquals("block " + i, i < 3 || i >= PAYLOAD_BLOCKS, entry.isConfirmed(i));
+        }
+    }
+
+    @Test
+    public void resumeWritesOnlyUnconfirmedBlocks() throws Exception {
+        FaultTag tag = tag(0xA2);
+        interrupt(tag, 3);
+
+        //重新打开记录，相当于应用重启后同一张卡片再次接触
+        WriteJournal reopened = journal();
+        NfcVUtil util = util(tag, reopened);
+        assertTrue(util.hasPendingWrite());
+        WriteReport report = util.resumeWrite();
+
+        assertTrue(report.isSuccess());
+        assertEquals(Arrays.asList(3, 4, 5, 6, 7, 8), report.getWrittenBlocks());
+        assertEquals(PAYLOAD_BLOCKS - 3, tag.written.size());
+        assertEquals(PAYLOAD, util.readAll());
+        assertFalse(util.hasPendingWrite());
+        assertEquals(0, journal().size());
+        assertNull(util.resumeWrite());
+    }
+
+    @Test
+    public void sameContentContinuesInterruptedWrite() throws Exception {
+        FaultTag tag = tag(0xA3);
+        interrupt(tag, 5);
+
+        WriteReport report = util(tag, journal()).writeStringResumable(PAYLOAD);
+
+        assertEquals(Arrays.asList(5, 6, 7, 8), report.getWrittenBlocks());
+        assertEquals(PAYLOAD_BLOCKS - 5, tag.written.size());
+        assertEquals(PAYLOAD, util(tag, null).readAll());
+    }
+
+    @Test
+    public void differentContentStartsOver() throws Exception {
+        FaultTag tag = tag(0xA4);
+        interrupt(tag, 3);
+
+        NfcVUtil util = util(tag, journal());
+        WriteReport report = util.writeStringResumable("SN-1");
+
+        assertTrue(report.isSuccess());
+        assertEquals("SN-1", util.readAll());
+        assertFalse(util.hasPendingWrite());
+    }
+
+    @Test
+    public void transientLossIsRetried() throws Exception {
+        FaultTag tag = tag(0xA5);
+        NfcVUtil util = util(tag, journal());
+        tag.loseWritesAfter(3, 1);
+
+        WriteReport report = util.writeStringResumable(PAYLOAD);
+
+        assertTrue(report.isSuccess());
+        assertEquals(PAYLOAD, util.readAll());
+        assertFalse(util.hasPendingWrite());
+    }
+
+    @Test
+    public void corruptEntriesAreDropped() throws Exception {
+        FaultTag tag = tag(0xA6);
+        interrupt(tag, 3);
+        String uid = util(tag, null).getUID();
+        //另一张卡片的记录内容无效，最后一行写了一半
+        new KeyValueStore(file, WriteJournal.DEFAULT_MAX_ENTRIES).put("E004000000000001", "1:zz:");
+        FileWriter writer = new FileWriter(file, true);
+        writer.write("+E00400000000");
+        writer.close();
+
+        WriteJournal reopened = journal();
+        assertNull(reopened.get("E004000000000001"));
+        assertNotNull(reopened.get(uid));
+        assertEquals(1, reopened.size());
+        assertTrue(util(tag, reopened).resumeWrite().isSuccess());
+        assertEquals(PAYLOAD, util(tag, null).readAll());
+    }
+
+    /**
+     * 写入count个block后卡片离开
+     */
+    private void interrupt(FaultTag tag, int count) throws Exception {
+        NfcVUtil util = util(tag, journal());
+        tag.loseWritesAfter(count, -1);
+        try {
+            util.writeStringResumable(PAYLOAD);
+            fail();
+        } catch (IOException expected) {
+        }
+        tag.reset();
+    }
+
+    private WriteJournal journal() {
+        return new WriteJournal(file, WriteJournal.DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * UTF8编码，逐block写入
+     */
+    private static NfcVUtil util(FaultTag tag, WriteJournal journal) throws Exception {
+        NfcVUtil util = TestTags.util(tag);
+        util.setJournal(journal);
+        util.setCodec(PayloadCodecs.UTF8);
+        util.setWriteBatchBlocks(1);
+        return util;
+    }
+}